@@ -0,0 +1,47 @@
+package twit.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the number of bytes allocated by the current thread, on JVMs which
+ * support it (HotSpot and OpenJDK do).
+ */
+class Allocation {
+	private static final com.sun.management.ThreadMXBean THREAD_BEAN;
+	static {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported()) {
+				sunBean.setThreadAllocatedMemoryEnabled(true);
+				THREAD_BEAN = sunBean;
+			} else {
+				THREAD_BEAN = null;
+			}
+		} else {
+			THREAD_BEAN = null;
+		}
+	}
+
+	/**
+	 * Tells whether or not allocations can be measured on this JVM.
+	 * 
+	 * @return true if allocations can be measured.
+	 */
+	static boolean isSupported() {
+		return THREAD_BEAN != null;
+	}
+
+	/**
+	 * Get the total number of bytes allocated by the current thread so far.
+	 * 
+	 * @return The number of bytes, or 0 if not supported.
+	 */
+	static long currentThreadAllocatedBytes() {
+		if (THREAD_BEAN == null)
+			return 0;
+		return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread()
+				.getId());
+	}
+}
@@ -0,0 +1,176 @@
+package twit.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * A microbenchmark of one operation. The operation is run repeatedly for a
+ * warm-up period, so that the JIT compiler has optimised it, and then for a
+ * number of measured iterations. For each iteration the time per operation,
+ * the bytes allocated per operation and the garbage collection activity are
+ * recorded.
+ * 
+ * Subclasses implement operation(), returning any value computed so that the
+ * compiler cannot remove the work as dead code.
+ */
+public abstract class Benchmark {
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int MEASURED_ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 1000000000L;
+	// operations run between checks of the clock.
+	private static final int BATCH_SIZE = 64;
+
+	private final String name;
+	// results of operation() are stored here so that they are not optimised
+	// away.
+	private Object sink;
+
+	/**
+	 * Create a new benchmark.
+	 * 
+	 * @param name
+	 *            The name under which results are reported.
+	 */
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Prepare the state used by the operation. Called once before warm-up.
+	 * 
+	 * @throws Exception
+	 *             If the benchmark cannot be set up.
+	 */
+	protected void setUp() throws Exception {
+	}
+
+	/**
+	 * Release the state used by the operation. Called once after measuring.
+	 * 
+	 * @throws Exception
+	 *             If the state cannot be released.
+	 */
+	protected void tearDown() throws Exception {
+	}
+
+	/**
+	 * The operation being measured.
+	 * 
+	 * @return Any value computed by the operation.
+	 * @throws Exception
+	 *             If the operation fails. The benchmark is then aborted.
+	 */
+	protected abstract Object operation() throws Exception;
+
+	/**
+	 * Get the number of bytes processed by one operation, if it makes sense
+	 * to report throughput in bytes per second.
+	 * 
+	 * @return The number of bytes, or 0 to report operations only.
+	 */
+	protected long bytesPerOperation() {
+		return 0;
+	}
+
+	/**
+	 * Run the benchmark and print the results.
+	 * 
+	 * @throws Exception
+	 *             If the operation fails.
+	 */
+	public void run() throws Exception {
+		double nanosPerOp = 0;
+		double bytesPerOp = 0;
+		long gcCount;
+		long gcMillis;
+		setUp();
+		try {
+			for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+				iteration();
+			}
+			gcCount = gcCount();
+			gcMillis = gcMillis();
+			for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+				double[] result = iteration();
+				nanosPerOp += result[0] / MEASURED_ITERATIONS;
+				bytesPerOp += result[1] / MEASURED_ITERATIONS;
+			}
+			gcCount = gcCount() - gcCount;
+			gcMillis = gcMillis() - gcMillis;
+		} finally {
+			tearDown();
+		}
+		report(nanosPerOp, bytesPerOp, gcCount, gcMillis);
+	}
+
+	/**
+	 * Run the operation for one iteration.
+	 * 
+	 * @return The nanoseconds per operation and the bytes allocated per
+	 *         operation.
+	 * @throws Exception
+	 *             If the operation fails.
+	 */
+	private double[] iteration() throws Exception {
+		long allocatedBefore = Allocation.currentThreadAllocatedBytes();
+		long start = System.nanoTime();
+		long end = start + ITERATION_NANOS;
+		long operations = 0;
+		long now;
+		do {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				sink = operation();
+			}
+			operations += BATCH_SIZE;
+			now = System.nanoTime();
+		} while (now < end);
+		long allocated = Allocation.currentThreadAllocatedBytes()
+				- allocatedBefore;
+		return new double[] { (double) (now - start) / operations,
+				(double) allocated / operations };
+	}
+
+	/**
+	 * Print one line of results.
+	 */
+	private void report(double nanosPerOp, double bytesPerOp, long gcCount,
+			long gcMillis) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-40s %12.1f ns/op %10.1f ops/ms", name,
+				nanosPerOp, 1e6 / nanosPerOp));
+		if (bytesPerOperation() > 0) {
+			double gbPerSecond = bytesPerOperation() / nanosPerOp;
+			sb.append(String.format(" %8.2f GB/s", gbPerSecond));
+		}
+		if (Allocation.isSupported()) {
+			sb.append(String.format(" %10.1f B/op", bytesPerOp));
+		}
+		sb.append(String.format(" gc: %d (%d ms)", gcCount, gcMillis));
+		// keep the sink reachable.
+		if (sink == this)
+			sb.append('!');
+		System.out.println(sb);
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+}
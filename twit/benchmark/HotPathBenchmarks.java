@@ -0,0 +1,464 @@
+package twit.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import twit.client.Ack;
+import twit.client.HostResolver;
+import twit.client.ServerProfile;
+import twit.client.Validator;
+import twit.metrics.Counter;
+import twit.metrics.Gauge;
+import twit.io.ByteReader;
+import twit.io.ByteWriter;
+import twit.io.Protocol;
+import twit.io.Utf8;
+import twit.server.ClientHandler;
+import twit.server.MessageLog;
+import twit.server.MessageStore;
+import twit.server.RateLimiter;
+import twit.server.Rollups;
+import twit.server.TimingWheel;
+import twit.server.TopSenders;
+import twit.server.TrendingTopics;
+import twit.server.ServerMetrics;
+
+/**
+ * Microbenchmarks of the code run for every message by the server and the
+ * client. Run with the names (or parts of names) of the benchmarks to run as
+ * arguments, or with no arguments to run them all.
+ */
+public class HotPathBenchmarks {
+	private static final byte[] MESSAGE = ("Benchmarking the TWIt server, "
+			+ "one tiny message at a time. This message is exactly as long "
+			+ "as the longest message the server will accept......")
+			.getBytes();
+
+	/**
+	 * Create every benchmark.
+	 * 
+	 * @return A list of benchmarks.
+	 */
+	static List<Benchmark> benchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new HandlerBenchmark());
+		benchmarks.add(new WriteFileBenchmark());
+		benchmarks.add(new AckBenchmark(false));
+		benchmarks.add(new AckBenchmark(true));
+		benchmarks.add(new Utf8Benchmark("Utf8.countCodePoints (ASCII)",
+				repeat("The quick brown fox jumps over the lazy dog. ")));
+		benchmarks.add(new Utf8Benchmark("Utf8.countCodePoints (mixed)",
+				repeat("Gr\u00FC\u00DFe aus St Andrews! "
+						+ "\u039A\u03B1\u03BB\u03B7\u03BC\u03AD\u03C1\u03B1, "
+						+ "\u4F60\u597D\u4E16\u754C \uD83D\uDC26 ")));
+		benchmarks.add(new Benchmark("TrendingTopics.addMessage") {
+			private final TrendingTopics topics = new TrendingTopics();
+			private final byte[] message = ("Benchmarking the #TWIt server "
+					+ "with @ole, one #tiny message at a time.")
+					.getBytes(StandardCharsets.UTF_8);
+
+			protected Object operation() {
+				topics.addMessage(message, 0, message.length,
+						System.currentTimeMillis());
+				return topics;
+			}
+		});
+		benchmarks.add(new Benchmark("TrendingTopics.trending(10)") {
+			private final TrendingTopics topics = new TrendingTopics();
+
+			protected void setUp() {
+				for (int i = 0; i < 100000; i++) {
+					byte[] message = ("#topic" + i % 1000 + " @user" + i % 37)
+							.getBytes(StandardCharsets.UTF_8);
+					topics.addMessage(message, 0, message.length,
+							System.currentTimeMillis());
+				}
+			}
+
+			protected Object operation() {
+				return topics.trending(10);
+			}
+		});
+		benchmarks.add(new Benchmark("TopSenders.stored (1000 clients)") {
+			private final TopSenders senders = new TopSenders();
+			private final InetAddress[] clients = new InetAddress[1000];
+			private int next;
+
+			protected void setUp() throws IOException {
+				for (int i = 0; i < clients.length; i++) {
+					clients[i] = InetAddress.getByAddress(new byte[] { 10, 0,
+							(byte) (i >> 8), (byte) i });
+				}
+			}
+
+			protected Object operation() {
+				// a few clients send most of the messages.
+				int i = next++ & 1023;
+				InetAddress client = clients[i < 768 ? i & 7 : i - 24];
+				senders.stored(client, MESSAGE.length);
+				return senders;
+			}
+		});
+		benchmarks.add(new Benchmark("Rollups.stored") {
+			private File directory;
+			private Rollups rollups;
+
+			protected void setUp() throws IOException {
+				directory = Files.createTempDirectory("twit-bench").toFile();
+				rollups = new Rollups(directory);
+			}
+
+			protected Object operation() {
+				rollups.stored(MESSAGE.length, 50000,
+						System.currentTimeMillis());
+				return rollups;
+			}
+
+			protected void tearDown() {
+				rollups.close();
+				delete(directory);
+			}
+		});
+		benchmarks.add(new Benchmark("MessageLog.append") {
+			private File directory;
+			private MessageLog log;
+			private long id;
+
+			protected void setUp() throws IOException {
+				directory = Files.createTempDirectory("twit-bench").toFile();
+				log = new MessageLog(directory,
+						MessageLog.DEFAULT_SEGMENT_BYTES);
+			}
+
+			protected Object operation() throws IOException {
+				log.append(++id, MESSAGE, 0, MESSAGE.length);
+				return log;
+			}
+
+			protected long bytesPerOperation() {
+				return MESSAGE.length;
+			}
+
+			protected void tearDown() throws IOException {
+				log.close();
+				delete(directory);
+			}
+		});
+		benchmarks.add(new Benchmark("Protocol.checkMessage") {
+			protected Object operation() {
+				return Protocol.checkMessage(MESSAGE, 0, MESSAGE.length);
+			}
+		});
+		benchmarks.add(new Benchmark("timestamp.format") {
+			private final SimpleDateFormat format = new SimpleDateFormat(
+					"yyyy-MM-DD_HH_mm_ss.SSSS");
+
+			protected Object operation() {
+				return format.format(new Date());
+			}
+		});
+		benchmarks.add(new Benchmark("ByteWriter.write") {
+			private final ByteArrayOutputStream out = new ByteArrayOutputStream(
+					MESSAGE.length);
+
+			protected Object operation() throws IOException {
+				out.reset();
+				ByteWriter.write(out, MESSAGE, MESSAGE.length);
+				return out;
+			}
+		});
+		benchmarks.add(new Benchmark("ByteReader.read") {
+			private final ByteArrayInputStream in = new ByteArrayInputStream(
+					MESSAGE);
+
+			protected Object operation() throws IOException {
+				in.reset();
+				return ByteReader.read(in, MESSAGE.length);
+			}
+		});
+		benchmarks.add(new Benchmark("Validator.isValidHostname") {
+			protected Object operation() {
+				return Validator
+						.isValidHostname("host-os75.cs.st-andrews.ac.uk");
+			}
+		});
+		benchmarks.add(new Benchmark("hostname regex") {
+			// what Validator.isValidHostname used to do on every call.
+			protected Object operation() {
+				return Pattern
+						.compile(
+								"\\A[A-Za-z0-9]{1}[A-Za-z0-9-.]*[A-Za-z0-9]{1}\\z|\\A[A-Za-z0-9]{1}\\z")
+						.matcher("host-os75.cs.st-andrews.ac.uk").matches();
+			}
+		});
+		benchmarks.add(new ValidateAllBenchmark());
+		benchmarks.add(new Benchmark("RateLimiter.tryAcquire") {
+			// a client well within its limit, as nearly every client is.
+			private final RateLimiter limiter = new RateLimiter(1e9, 1000);
+			private final InetAddress address = InetAddress
+					.getLoopbackAddress();
+
+			protected Object operation() {
+				return limiter.tryAcquire(address);
+			}
+		});
+		benchmarks.add(new Benchmark("TimingWheel.schedule+cancel") {
+			// what a connection does around every read.
+			private TimingWheel wheel;
+			private final Runnable task = new Runnable() {
+				public void run() {
+				}
+			};
+
+			protected void setUp() {
+				wheel = new TimingWheel(100, 512, new Counter(), new Gauge());
+			}
+
+			protected Object operation() {
+				TimingWheel.Timeout timeout = wheel.schedule(task, 15000);
+				timeout.cancel();
+				return timeout;
+			}
+
+			protected void tearDown() {
+				wheel.stop();
+			}
+		});
+		benchmarks.add(new Benchmark("InetAddress.getAllByName") {
+			protected Object operation() throws IOException {
+				return InetAddress.getAllByName("localhost");
+			}
+		});
+		benchmarks.add(new Benchmark("HostResolver.resolve") {
+			private final HostResolver resolver = new HostResolver();
+
+			protected Object operation() throws IOException {
+				return resolver.resolve("localhost");
+			}
+		});
+		benchmarks.add(new Benchmark("ServerProfile.fromLine") {
+			protected Object operation() {
+				return ServerProfile
+						.fromLine("os75;host-os75.cs.st-andrews.ac.uk;60514");
+			}
+		});
+		benchmarks.add(new Benchmark("ServerProfile.toLine") {
+			private final ServerProfile profile = new ServerProfile("os75",
+					"host-os75.cs.st-andrews.ac.uk", 60514);
+
+			protected Object operation() {
+				return profile.toLine();
+			}
+		});
+		return benchmarks;
+	}
+
+	/**
+	 * A ClientHandler dealing with one message from an in-memory socket,
+	 * including writing the message and the feeds of its day to a temporary
+	 * directory.
+	 */
+	private static class HandlerBenchmark extends Benchmark {
+		private final InMemorySocket socket = new InMemorySocket(MESSAGE);
+		private final ServerMetrics metrics = new ServerMetrics();
+		private File directory;
+		private MessageStore store;
+		private PrintStream console;
+
+		HandlerBenchmark() {
+			super("ClientHandler.run");
+		}
+
+		protected void setUp() throws IOException {
+			directory = Files.createTempDirectory("twit-bench").toFile();
+			store = new MessageStore(directory);
+			// the handler reports every message on the console.
+			console = System.out;
+			System.setOut(new PrintStream(new NullOutputStream()));
+		}
+
+		protected Object operation() {
+			socket.reset();
+			new ClientHandler(socket, store, metrics, System.nanoTime())
+					.run();
+			return socket;
+		}
+
+		protected void tearDown() {
+			System.setOut(console);
+			store.close();
+			delete(directory);
+		}
+	}
+
+	/**
+	 * ClientHandler.writeFile, overwriting the same file every time.
+	 */
+	private static class WriteFileBenchmark extends Benchmark {
+		private File file;
+
+		WriteFileBenchmark() {
+			super("ClientHandler.writeFile");
+		}
+
+		protected void setUp() throws IOException {
+			file = File.createTempFile("twit-bench", null);
+		}
+
+		protected Object operation() throws IOException {
+			ClientHandler.writeFile(file, MESSAGE, MESSAGE.length);
+			return file;
+		}
+
+		protected void tearDown() {
+			file.delete();
+		}
+	}
+
+	/**
+	 * The server writing the reply to a stored message and the client reading
+	 * it, either by echoing the message back, which the client decodes and
+	 * compares, or as a compact ack.
+	 */
+	private static class AckBenchmark extends Benchmark {
+		private final String message = new String(MESSAGE);
+		private final boolean compact;
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		AckBenchmark(boolean compact) {
+			super(compact ? "ack (compact)" : "ack (echo)");
+			this.compact = compact;
+		}
+
+		protected Object operation() throws IOException {
+			out.reset();
+			if (compact) {
+				Protocol.writeCompactAck(out, 1235978547209000L,
+						1235978547209L);
+			} else {
+				Protocol.writeFrame(out, Protocol.OK, MESSAGE, 0,
+						MESSAGE.length);
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					out.toByteArray()));
+			in.readUnsignedByte();
+			int length = in.readUnsignedShort();
+			if (compact) {
+				return new Ack(message, in.readLong(), in.readLong());
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			Ack ack = new Ack(message, new String(payload,
+					StandardCharsets.UTF_8));
+			ack.isSuccess();
+			return ack;
+		}
+	}
+
+	/**
+	 * Utf8.countCodePoints over 64 KB of text, to measure its throughput.
+	 */
+	private static class Utf8Benchmark extends Benchmark {
+		private final byte[] text;
+
+		Utf8Benchmark(String name, byte[] text) {
+			super(name);
+			this.text = text;
+		}
+
+		protected Object operation() {
+			return Utf8.countCodePoints(text, 0, text.length);
+		}
+
+		protected long bytesPerOperation() {
+			return text.length;
+		}
+	}
+
+	/**
+	 * Encode a string as UTF-8, repeated to fill 64 KB, cutting off the last
+	 * repeat which does not fit whole.
+	 */
+	private static byte[] repeat(String s) {
+		byte[] unit = s.getBytes(StandardCharsets.UTF_8);
+		byte[] text = new byte[65536 / unit.length * unit.length];
+		for (int i = 0; i < text.length; i += unit.length) {
+			System.arraycopy(unit, 0, text, i, unit.length);
+		}
+		return text;
+	}
+
+	/**
+	 * Validator.validateAll over a list of 100000 profiles.
+	 */
+	private static class ValidateAllBenchmark extends Benchmark {
+		private final List<ServerProfile> profiles = new ArrayList<ServerProfile>();
+
+		ValidateAllBenchmark() {
+			super("Validator.validateAll (100000 profiles)");
+		}
+
+		protected void setUp() {
+			for (int i = 0; i < 100000; i++) {
+				profiles.add(new ServerProfile("server" + i, "host" + i
+						+ ".cs.st-andrews.ac.uk", 32768 + i % 28000));
+			}
+		}
+
+		protected Object operation() {
+			return Validator.validateAll(profiles);
+		}
+	}
+
+	/**
+	 * An OutputStream which discards everything written to it.
+	 */
+	static class NullOutputStream extends OutputStream {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+
+	/**
+	 * Delete a file, or a directory and everything in it.
+	 * 
+	 * @param file
+	 *            The file or directory.
+	 */
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		for (Benchmark benchmark : benchmarks()) {
+			boolean selected = args.length == 0;
+			for (String arg : args) {
+				if (benchmark.getName().contains(arg))
+					selected = true;
+			}
+			if (selected)
+				benchmark.run();
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package twit.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A Socket which is never connected to the network. What the peer "sends" is
+ * read from a byte array, and what is written to the socket is collected in
+ * memory. Closing the socket does nothing, so it can be reset and reused.
+ */
+class InMemorySocket extends Socket {
+	private final byte[] input;
+	private ByteArrayInputStream in;
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+	/**
+	 * Create a new InMemorySocket.
+	 * 
+	 * @param input
+	 *            The bytes which will be read from the socket.
+	 */
+	InMemorySocket(byte[] input) {
+		this.input = input;
+		reset();
+	}
+
+	/**
+	 * Rewind the input and discard the output.
+	 */
+	void reset() {
+		in = new ByteArrayInputStream(input);
+		out.reset();
+	}
+
+	/**
+	 * @return The bytes written to the socket since the last reset.
+	 */
+	byte[] written() {
+		return out.toByteArray();
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) {
+	}
+
+	@Override
+	public void close() {
+	}
+}
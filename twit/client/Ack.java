@@ -0,0 +1,146 @@
+package twit.client;
+
+import twit.io.Protocol;
+
+/**
+ * The server's answer to a message which has been sent.
+ */
+public class Ack {
+	private final String message;
+	private final String reply;
+	private final ServerProfile server;
+	// the Protocol status of the reply, or -1 if it has none.
+	private final int status;
+	// -1 unless the server sent a compact ack.
+	private final long id;
+	private final long timeMillis;
+
+	/**
+	 * Create a new Ack.
+	 * 
+	 * @param message
+	 *            The message which was sent.
+	 * @param reply
+	 *            The string sent back by the server.
+	 */
+	public Ack(String message, String reply) {
+		this(message, reply, null);
+	}
+
+	/**
+	 * Create a new Ack from a server chosen by the sender.
+	 * 
+	 * @param message
+	 *            The message which was sent.
+	 * @param reply
+	 *            The string sent back by the server.
+	 * @param server
+	 *            The server to which the message was sent.
+	 */
+	public Ack(String message, String reply, ServerProfile server) {
+		this.message = message;
+		this.reply = reply;
+		this.server = server;
+		this.status = -1;
+		this.id = -1;
+		this.timeMillis = -1;
+	}
+
+	/**
+	 * Create a new Ack for a reply read from a keep-alive connection.
+	 * 
+	 * @param message
+	 *            The message which was sent.
+	 * @param status
+	 *            The status of the reply.
+	 * @param reply
+	 *            The payload of the reply.
+	 * @see twit.io.Protocol
+	 */
+	public Ack(String message, int status, String reply) {
+		this.message = message;
+		this.reply = reply;
+		this.server = null;
+		this.status = status;
+		this.id = -1;
+		this.timeMillis = -1;
+	}
+
+	/**
+	 * Create a new Ack for a message the server stored and confirmed with a
+	 * compact ack.
+	 * 
+	 * @param message
+	 *            The message which was sent.
+	 * @param id
+	 *            The id the server gave the message.
+	 * @param timeMillis
+	 *            The time at which the server stored the message.
+	 * @see twit.io.Protocol#COMPACT_ACKS
+	 */
+	public Ack(String message, long id, long timeMillis) {
+		this.message = message;
+		this.reply = message;
+		this.server = null;
+		this.status = Protocol.OK;
+		this.id = id;
+		this.timeMillis = timeMillis;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public String getReply() {
+		return reply;
+	}
+
+	/**
+	 * Get the status of the reply, which only replies read from a keep-alive
+	 * connection have.
+	 * 
+	 * @return A Protocol status, or -1 if the server answered a single
+	 *         message.
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Get the server which answered, if the sender chose it.
+	 * 
+	 * @return The server, or null if the caller named the server.
+	 */
+	public ServerProfile getServer() {
+		return server;
+	}
+
+	/**
+	 * Get the id the server gave the message.
+	 * 
+	 * @return The id, or -1 if the server did not send one.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Get the time at which the server stored the message.
+	 * 
+	 * @return Milliseconds since the epoch, or -1 if the server did not say.
+	 */
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	/**
+	 * Tells whether or not the server stored the message. The server confirms
+	 * a message by sending it back unchanged, or with a compact ack; anything
+	 * else is an error message.
+	 * 
+	 * @return true if the message was stored.
+	 */
+	public boolean isSuccess() {
+		return id != -1 || reply.equals(message);
+	}
+}
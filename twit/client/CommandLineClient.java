@@ -0,0 +1,404 @@
+package twit.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import twit.metrics.Counter;
+
+/**
+ * Sends every line of standard input, or of a file, to a server as a message,
+ * without a window. Lines are checked with the same rules as in GUIClient
+ * before they are sent; empty lines are skipped.
+ * 
+ * Messages are streamed over several keep-alive connections. On each
+ * connection up to WINDOW messages are sent before their replies have been
+ * read, so the client does not wait a round trip for every message, and the
+ * server is asked for compact acks, so messages are not sent back. Servers
+ * which do not support keep-alive connections are sent one message per
+ * connection instead. A summary of what was sent, and how fast, is printed
+ * at the end.
+ * 
+ * Usage: CommandLineClient [-host hostname] [-port port] [-profile name]
+ * [-connections n] [-window n] [-quiet] [file]
+ */
+public class CommandLineClient {
+	private static final String SERVER_PROFILE_FILENAME = "servers.txt";
+	// messages written to a connection in one go.
+	private static final int MAX_BATCH = 64;
+	private static final int DEFAULT_WINDOW = 256;
+	private static final int DEFAULT_CONNECTIONS = 4;
+	// marks the end of the input in the queue.
+	private static final String END = new String("END");
+
+	private final String hostname;
+	private final int port;
+	private final int window;
+	private final boolean quiet;
+	private final BlockingQueue<String> queue;
+	private final List<Thread> senders = new ArrayList<Thread>();
+	private final AtomicInteger sendersRunning = new AtomicInteger();
+
+	private final Counter read = new Counter();
+	private final Counter stored = new Counter();
+	private final Counter empty = new Counter();
+	private final Counter tooLong = new Counter();
+	private final Counter rejected = new Counter();
+	private final Counter failed = new Counter();
+
+	/**
+	 * Create a new CommandLineClient.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port of the server.
+	 * @param connections
+	 *            The number of connections over which messages are sent.
+	 * @param window
+	 *            The most messages sent over a connection without a reply.
+	 * @param quiet
+	 *            Whether to keep quiet about messages the server rejects.
+	 */
+	public CommandLineClient(String hostname, int port, int connections,
+			int window, boolean quiet) {
+		this.hostname = hostname;
+		this.port = port;
+		this.window = window;
+		this.quiet = quiet;
+		queue = new ArrayBlockingQueue<String>(connections * window);
+		for (int i = 0; i < connections; i++) {
+			Thread sender = new Thread(new Runnable() {
+				public void run() {
+					try {
+						sendUntilEnd();
+					} finally {
+						sendersRunning.decrementAndGet();
+					}
+				}
+			}, "sender-" + (i + 1));
+			senders.add(sender);
+		}
+	}
+
+	/**
+	 * Send every line read from a reader, and print a summary.
+	 * 
+	 * @param in
+	 *            The lines to be sent.
+	 * @throws IOException
+	 *             If there is a problem reading the lines.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the messages
+	 *             to be sent.
+	 */
+	public void run(BufferedReader in) throws IOException,
+			InterruptedException {
+		long start = System.nanoTime();
+		sendersRunning.set(senders.size());
+		for (Thread sender : senders) {
+			sender.start();
+		}
+		String line;
+		while ((line = in.readLine()) != null) {
+			read.increment();
+			String message = line.trim();
+			if (!Validator.isValidMessage(message)) {
+				if (message.length() == 0) {
+					empty.increment();
+				} else {
+					tooLong.increment();
+				}
+				continue;
+			}
+			if (!offer(message)) {
+				failed.increment();
+			}
+		}
+		// every sender puts END back for the next one.
+		offer(END);
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		for (String message : queue) {
+			if (message != END)
+				failed.increment();
+		}
+		report((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Queue a message for the senders, waiting while the queue is full.
+	 * 
+	 * @return false if every sender has given up, so the message will never
+	 *         be sent.
+	 */
+	private boolean offer(String message) throws InterruptedException {
+		while (sendersRunning.get() > 0) {
+			if (queue.offer(message, 100, TimeUnit.MILLISECONDS))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Send queued messages over one connection until the end of the input.
+	 */
+	private void sendUntilEnd() {
+		Connection connection;
+		try {
+			connection = new Connection(hostname, port, true);
+		} catch (ProtocolException e) {
+			sendSingleMessages();
+			return;
+		} catch (IOException e) {
+			System.out.println("Could not connect to " + hostname + ":"
+					+ port + ": " + e.getMessage());
+			return;
+		}
+		try {
+			stream(connection);
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Take the next message from the queue.
+	 * 
+	 * @return The message, or END once the input has been used up.
+	 */
+	private String take() throws InterruptedException {
+		String message = queue.take();
+		if (message == END)
+			queue.put(END);
+		return message;
+	}
+
+	/**
+	 * Write batches of queued messages to a connection on this thread while
+	 * another thread reads the replies.
+	 */
+	private void stream(final Connection connection) {
+		final Semaphore unanswered = new Semaphore(window);
+		final BlockingQueue<String> inFlight = new LinkedBlockingQueue<String>();
+		final CountDownLatch readerDone = new CountDownLatch(1);
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					readReplies(connection, inFlight, unanswered);
+				} finally {
+					readerDone.countDown();
+				}
+			}
+		}, Thread.currentThread().getName() + "-replies");
+		reader.start();
+		List<String> batch = new ArrayList<String>();
+		List<byte[]> bytes = new ArrayList<byte[]>();
+		boolean end = false;
+		try {
+			while (!end && readerDone.getCount() > 0) {
+				batch.clear();
+				bytes.clear();
+				String first = take();
+				if (first == END)
+					break;
+				batch.add(first);
+				queue.drainTo(batch, Math.min(MAX_BATCH, window) - 1);
+				int last = batch.size() - 1;
+				if (batch.get(last) == END) {
+					batch.remove(last);
+					queue.put(END);
+					end = true;
+				}
+				unanswered.acquire(batch.size());
+				for (String message : batch) {
+					bytes.add(message.getBytes(StandardCharsets.UTF_8));
+					inFlight.add(message);
+				}
+				connection.writeMessages(bytes);
+			}
+		} catch (IOException e) {
+			// the reader then fails on the same connection.
+			connection.close();
+		} catch (InterruptedException e) {
+			connection.close();
+		}
+		inFlight.add(END);
+		try {
+			readerDone.await();
+		} catch (InterruptedException e) {
+			// the counts may be incomplete.
+		}
+		// messages written after the reader failed.
+		for (String message : inFlight) {
+			if (message != END)
+				failed.increment();
+		}
+	}
+
+	/**
+	 * Read the reply to every message written to a connection, in order, until
+	 * END is found in inFlight or the connection fails.
+	 */
+	private void readReplies(Connection connection,
+			BlockingQueue<String> inFlight, Semaphore unanswered) {
+		String message = null;
+		try {
+			while ((message = inFlight.take()) != END) {
+				Ack ack = connection.readAck(message);
+				unanswered.release();
+				if (ack.isSuccess()) {
+					stored.increment();
+				} else {
+					rejected.increment();
+					if (!quiet)
+						System.out.println("Rejected: " + message + ": "
+								+ ack.getReply());
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Connection failed: " + e.getMessage());
+			// the message whose reply was lost.
+			failed.increment();
+			connection.close();
+		} catch (InterruptedException e) {
+			// the writer counts what is left.
+		}
+		// let a writer blocked on the window find out.
+		unanswered.release(window);
+	}
+
+	/**
+	 * Send queued messages one per connection, for servers which do not
+	 * support keep-alive connections.
+	 */
+	private void sendSingleMessages() {
+		try {
+			String message;
+			while ((message = take()) != END) {
+				try {
+					String reply = MessageSender.send(hostname, port, message);
+					if (reply.equals(message)) {
+						stored.increment();
+					} else {
+						rejected.increment();
+						if (!quiet)
+							System.out.println("Rejected: " + message + ": "
+									+ reply);
+					}
+				} catch (IOException e) {
+					failed.increment();
+				}
+			}
+		} catch (InterruptedException e) {
+			// stop sending.
+		}
+	}
+
+	private void report(double seconds) {
+		System.out.printf("%d lines read in %.2f s: %d stored (%.1f messages/s), "
+				+ "%d rejected by the server, %d failed%n", read.get(),
+				seconds, stored.get(), stored.get() / seconds, rejected.get(),
+				failed.get());
+		if (empty.get() > 0 || tooLong.get() > 0)
+			System.out.printf("Not sent: %d empty, %d longer than %d characters%n",
+					empty.get(), tooLong.get(), Validator.MAX_MESSAGE_LENGTH);
+	}
+
+	/**
+	 * Exit status 1 if any message was not stored, so scripts can tell.
+	 */
+	private int exitStatus() {
+		return stored.get() == read.get() - empty.get() ? 0 : 1;
+	}
+
+	/**
+	 * Find a server profile by name in the profile file used by GUIClient,
+	 * with the changes in its journal. Neither file is written, so GUIClient
+	 * may be running at the same time.
+	 * 
+	 * @return The profile, or null if there is none with that name.
+	 */
+	private static ServerProfile findProfile(String name) throws IOException {
+		ProfileStore store = new ProfileStore(
+				new File(SERVER_PROFILE_FILENAME), true);
+		for (ServerProfile server : store.getProfiles()) {
+			if (server.getProfileName().equals(name))
+				return server;
+		}
+		return null;
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		String hostname = MessageSender.DEFAULT_HOSTNAME;
+		int port = MessageSender.DEFAULT_PORT;
+		String profile = null;
+		int connections = DEFAULT_CONNECTIONS;
+		int window = DEFAULT_WINDOW;
+		boolean quiet = false;
+		String file = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String option = args[i];
+				if (option.equals("-quiet")) {
+					quiet = true;
+				} else if (!option.startsWith("-")) {
+					file = option;
+				} else if (option.equals("-host")) {
+					hostname = args[++i];
+				} else if (option.equals("-port")) {
+					port = Integer.parseInt(args[++i]);
+				} else if (option.equals("-profile")) {
+					profile = args[++i];
+				} else if (option.equals("-connections")) {
+					connections = Integer.parseInt(args[++i]);
+				} else if (option.equals("-window")) {
+					window = Integer.parseInt(args[++i]);
+				} else {
+					throw new IllegalArgumentException(option);
+				}
+			}
+			if (connections < 1 || window < 1)
+				throw new IllegalArgumentException();
+		} catch (RuntimeException e) {
+			System.out.println("Usage: CommandLineClient [-host hostname]"
+					+ " [-port port] [-profile name] [-connections n]"
+					+ " [-window n] [-quiet] [file]");
+			System.exit(2);
+		}
+		if (profile != null) {
+			ServerProfile server = findProfile(profile);
+			if (server == null) {
+				System.out.println("No profile called " + profile + " in "
+						+ SERVER_PROFILE_FILENAME);
+				System.exit(2);
+			}
+			hostname = server.getHostname();
+			port = server.getPort();
+		}
+		// the messages are checked and sent as UTF-8, whatever the locale.
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				file == null ? System.in : new FileInputStream(file),
+				StandardCharsets.UTF_8));
+		CommandLineClient client = new CommandLineClient(hostname, port,
+				connections, window, quiet);
+		client.run(in);
+		in.close();
+		System.exit(client.exitStatus());
+	}
+}
@@ -0,0 +1,375 @@
+package twit.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import twit.io.Protocol;
+
+/**
+ * A keep-alive connection to a server, over which any number of messages can
+ * be sent one after another.
+ * 
+ * A server which does not support keep-alive connections rejects the
+ * handshake as a message which is too long, so nothing is stored. Such servers
+ * are remembered for the life of the process, once they have answered the
+ * handshake that way (or echoed it back), and a connection to one of them
+ * fails at once with a ProtocolException, without contacting the server. Any
+ * other unexpected answer, such as a server turning the client away for
+ * connecting too often, is an IOException, and the next connection tries the
+ * handshake again.
+ * 
+ * @see Protocol
+ */
+public class Connection {
+	// "hostname:port" of servers which do not support keep-alive connections.
+	private static final Set<String> legacyServers = ConcurrentHashMap
+			.newKeySet();
+
+	private final String hostname;
+	private final int port;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final OutputStream out;
+	// whether the server agreed to compact acks.
+	private final boolean compactAcks;
+	private long lastUsed;
+
+	/**
+	 * Open a keep-alive connection to a server and perform the handshake.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port to connect to on the server.
+	 * @throws ProtocolException
+	 *             If the server does not support keep-alive connections.
+	 * @throws SocketTimeoutException
+	 *             If the server does not accept the connection or answer the
+	 *             handshake in time.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be located.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the server.
+	 */
+	public Connection(String hostname, int port) throws ProtocolException,
+			SocketTimeoutException, UnknownHostException, IOException {
+		this(hostname, port, false);
+	}
+
+	/**
+	 * Open a keep-alive connection to a server and perform the handshake,
+	 * optionally asking for compact acks. A server which does not know them
+	 * sends the message back as usual.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port to connect to on the server.
+	 * @param compactAcks
+	 *            Whether to ask for compact acks, which must then be read
+	 *            with readAck().
+	 * @throws ProtocolException
+	 *             If the server does not support keep-alive connections.
+	 * @throws SocketTimeoutException
+	 *             If the server does not accept the connection or answer the
+	 *             handshake in time.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be located.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the server,
+	 *             or it answers the handshake with anything else.
+	 * @see Protocol#COMPACT_ACKS
+	 */
+	public Connection(String hostname, int port, boolean compactAcks)
+			throws ProtocolException, SocketTimeoutException,
+			UnknownHostException, IOException {
+		if (isLegacyServer(hostname, port))
+			throw new ProtocolException(
+					"Server does not support keep-alive connections.");
+		this.hostname = hostname;
+		this.port = port;
+		// a host which is down must not stall the caller for minutes.
+		socket = MessageSender.getResolver().connect(hostname, port,
+				MessageSender.SO_TIMEOUT);
+		try {
+			socket.setSoTimeout(MessageSender.SO_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			out = socket.getOutputStream();
+			int requested = compactAcks ? Protocol.COMPACT_ACKS : 0;
+			Protocol.writeHandshake(out, requested);
+			int magic = in.readUnsignedByte();
+			if (magic != Protocol.MAGIC) {
+				String reply = readText(magic);
+				if (!reply.equals(Protocol.LEGACY_TOO_LONG_REPLY))
+					throw new IOException("Unexpected answer to handshake: "
+							+ reply);
+				legacyServers.add(hostname + ":" + port);
+				throw new ProtocolException(
+						"Server does not support keep-alive connections.");
+			}
+			int version = in.readUnsignedByte();
+			int flags = in.readUnsignedByte();
+			if (version == Protocol.VERSION && flags == requested) {
+				// the start of the handshake, echoed as a message.
+				legacyServers.add(hostname + ":" + port);
+				throw new ProtocolException(
+						"Server does not support keep-alive connections.");
+			}
+			if (version != Protocol.VERSION
+					|| (flags & Protocol.ACCEPTED) == 0)
+				throw new IOException("Unexpected answer to handshake.");
+			this.compactAcks = (flags & Protocol.COMPACT_ACKS) != 0;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Tells whether a server has been found not to support keep-alive
+	 * connections, so that messages to it must be sent with
+	 * MessageSender.send.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port of the server.
+	 * @return true if the server has answered a handshake the way a server
+	 *         without keep-alive connections does.
+	 */
+	public static boolean isLegacyServer(String hostname, int port) {
+		return legacyServers.contains(hostname + ":" + port);
+	}
+
+	public String getHostname() {
+		return hostname;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Tells whether the server agreed to send compact acks.
+	 * 
+	 * @return true if OK replies carry the message id and time.
+	 */
+	public boolean hasCompactAcks() {
+		return compactAcks;
+	}
+
+	/**
+	 * Get the time at which the connection was last used.
+	 * 
+	 * @return Milliseconds since the epoch.
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Send a message and wait for the server's reply.
+	 * 
+	 * @param messageBytes
+	 *            The bytes of a message.
+	 * @param offset
+	 *            The index of the beginning of the message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @return The message itself if the server stored it, otherwise the error
+	 *         message sent by the server. This is the same as what
+	 *         MessageSender.send returns.
+	 * @throws ConnectionClosedException
+	 *             If the server closed the connection before replying.
+	 * @throws SocketTimeoutException
+	 *             If the server does not reply in time.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the server.
+	 */
+	public String send(byte[] messageBytes, int offset, int length)
+			throws SocketTimeoutException, IOException {
+		try {
+			Protocol.writeFrame(out, Protocol.MESSAGE, messageBytes, offset,
+					length);
+		} catch (SocketTimeoutException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new ConnectionClosedException(e);
+		}
+		if (compactAcks)
+			return readAck(new String(messageBytes, offset, length,
+					StandardCharsets.UTF_8))
+					.getReply();
+		return readReply();
+	}
+
+	/**
+	 * Send several messages without waiting for replies in between. The
+	 * replies must then be read with readReply(), one per message, in order.
+	 * 
+	 * @param messages
+	 *            The bytes of each message.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the server.
+	 */
+	public void writeMessages(List<byte[]> messages) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		for (byte[] message : messages) {
+			Protocol.writeFrame(buffer, Protocol.MESSAGE, message, 0,
+					message.length);
+		}
+		// one write, so the whole batch goes out in as few packets as possible.
+		buffer.writeTo(out);
+		out.flush();
+	}
+
+	/**
+	 * Read the reply to the oldest message which has not been answered yet.
+	 * 
+	 * @return The message itself if the server stored it, otherwise the error
+	 *         message sent by the server.
+	 * @throws IllegalStateException
+	 *             If the server sends compact acks, which must be read with
+	 *             readAck().
+	 * @throws SocketTimeoutException
+	 *             If the server does not reply in time.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the server.
+	 */
+	public String readReply() throws SocketTimeoutException, IOException {
+		if (compactAcks)
+			throw new IllegalStateException(
+					"Compact acks must be read with readAck().");
+		readStatus(); // the payload tells the caller.
+		String reply = readPayload();
+		lastUsed = System.currentTimeMillis();
+		return reply;
+	}
+
+	/**
+	 * Read the reply to the oldest message which has not been answered yet.
+	 * A compact ack is read without decoding or comparing the message.
+	 * 
+	 * @param message
+	 *            The message the reply is to.
+	 * @return The server's answer.
+	 * @throws SocketTimeoutException
+	 *             If the server does not reply in time.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the server.
+	 */
+	public Ack readAck(String message) throws SocketTimeoutException,
+			IOException {
+		int status = readStatus();
+		Ack ack;
+		if (compactAcks && status == Protocol.OK) {
+			int length = in.readUnsignedShort();
+			if (length != Protocol.COMPACT_ACK_LENGTH)
+				throw new ProtocolException("Compact ack of " + length
+						+ " bytes.");
+			ack = new Ack(message, in.readLong(), in.readLong());
+		} else {
+			ack = new Ack(message, status, readPayload());
+		}
+		lastUsed = System.currentTimeMillis();
+		return ack;
+	}
+
+	/**
+	 * Check that the server is still answering on this connection.
+	 * 
+	 * @return true if the server answered the ping, false otherwise. The
+	 *         connection should be closed if false is returned.
+	 */
+	public boolean ping() {
+		try {
+			Protocol.writeFrame(out, Protocol.PING, new byte[0], 0, 0);
+			int status = in.readUnsignedByte();
+			readPayload();
+			lastUsed = System.currentTimeMillis();
+			return status == Protocol.PONG;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Read the status of a reply, which is its first byte.
+	 * 
+	 * @return The status.
+	 * @throws ConnectionClosedException
+	 *             If the server closed or reset the connection instead.
+	 * @throws SocketTimeoutException
+	 *             If the server does not reply in time.
+	 */
+	private int readStatus() throws IOException {
+		try {
+			return in.readUnsignedByte();
+		} catch (SocketTimeoutException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new ConnectionClosedException(e);
+		}
+	}
+
+	/**
+	 * Read the rest of an answer which is text rather than a handshake, up to
+	 * the end of the connection.
+	 * 
+	 * @param first
+	 *            The first byte of the answer, already read.
+	 * @return The answer.
+	 * @throws IOException
+	 *             If there is a problem reading the answer.
+	 */
+	private String readText(int first) throws IOException {
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		text.write(first);
+		int b;
+		while (text.size() < Protocol.MAX_MESSAGE_BYTES
+				&& (b = in.read()) != -1) {
+			text.write(b);
+		}
+		return new String(text.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read the length and payload of a reply.
+	 * 
+	 * @return The payload as a String.
+	 * @throws IOException
+	 *             If there is a problem reading the reply.
+	 */
+	private String readPayload() throws IOException {
+		int length = in.readUnsignedShort();
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return new String(payload, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Close the connection. Closing an already closed connection has no
+	 * effect.
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing more can be done.
+		}
+	}
+}
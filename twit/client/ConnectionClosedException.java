@@ -0,0 +1,24 @@
+package twit.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a Connection when the server closed or reset the connection
+ * before any byte of the reply to a message arrived, so that a message sent
+ * over a connection which had been closed while it was idle can be sent
+ * again. The server may still have stored the message if it failed after
+ * storing it but before replying; a time out is never reported this way.
+ */
+public class ConnectionClosedException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Create a new ConnectionClosedException.
+	 * 
+	 * @param cause
+	 *            The failure of the write or read.
+	 */
+	public ConnectionClosedException(IOException cause) {
+		super("Connection closed by the server: " + cause.getMessage(), cause);
+	}
+}
@@ -0,0 +1,145 @@
+package twit.client;
+
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The outcome of sending one message to several servers with FanOutSender.
+ */
+public class FanOutReport {
+	/**
+	 * The outcome of sending the message to one server.
+	 */
+	public static class Result {
+		private final ServerProfile server;
+		private final Ack ack;
+		private final Throwable error;
+		private final long elapsedMillis;
+
+		Result(ServerProfile server, Ack ack, Throwable error,
+				long elapsedMillis) {
+			this.server = server;
+			this.ack = ack;
+			this.error = error;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public ServerProfile getServer() {
+			return server;
+		}
+
+		/**
+		 * Get the server's answer.
+		 * 
+		 * @return The answer, or null if sending failed or timed out.
+		 */
+		public Ack getAck() {
+			return ack;
+		}
+
+		/**
+		 * Get the reason sending failed.
+		 * 
+		 * @return The exception, a TimeoutException if the server did not
+		 *         answer in time, or null if the server answered.
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 * Tells whether or not the server stored the message.
+		 * 
+		 * @return true if the message was stored.
+		 */
+		public boolean isSuccess() {
+			return error == null && ack.isSuccess();
+		}
+
+		/**
+		 * Describe the outcome in a few words.
+		 * 
+		 * @return "sent", or the reason the message was not stored.
+		 */
+		public String describe() {
+			if (isSuccess())
+				return "sent";
+			if (error == null)
+				return ack.getReply();
+			if (error instanceof TimeoutException
+					|| error instanceof SocketTimeoutException)
+				return "timed out";
+			if (error instanceof UnknownHostException)
+				return "unknown host";
+			return "could not connect";
+		}
+	}
+
+	private final List<Result> results;
+	private final long elapsedMillis;
+
+	FanOutReport(List<Result> results, long elapsedMillis) {
+		this.results = Collections.unmodifiableList(new ArrayList<Result>(
+				results));
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Get the outcome for each server, in the order the servers were given.
+	 * 
+	 * @return The results.
+	 */
+	public List<Result> getResults() {
+		return results;
+	}
+
+	/**
+	 * Get the time from sending the message until the last server answered or
+	 * timed out.
+	 * 
+	 * @return The time in milliseconds.
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Get the number of servers which stored the message.
+	 * 
+	 * @return The number of successful results.
+	 */
+	public int getSuccessCount() {
+		int count = 0;
+		for (Result result : results) {
+			if (result.isSuccess())
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Represent the report as text, one line per server.
+	 * 
+	 * @return The report.
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Sent to ").append(getSuccessCount()).append(" of ")
+				.append(results.size()).append(" server(s) in ")
+				.append(elapsedMillis).append(" ms.\n");
+		for (Result result : results) {
+			sb.append('\n').append(result.getServer().getProfileName())
+					.append(": ").append(result.describe()).append(" (")
+					.append(result.getElapsedMillis()).append(" ms)");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,92 @@
+package twit.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Sends the same message to several servers at once. The message is sent to
+ * every server in parallel on MessageSender's I/O executor, so sending takes
+ * as long as the slowest server (or the timeout) rather than the sum of all of
+ * them.
+ */
+public class FanOutSender {
+	// completes sends which take too long.
+	private static final Timer TIMEOUT_TIMER = new Timer("fan-out-timeout",
+			true);
+
+	/**
+	 * Send a message to several servers in parallel.
+	 * 
+	 * @param servers
+	 *            The servers to which the message is to be sent. Their
+	 *            hostnames and ports are read immediately.
+	 * @param message
+	 *            A String message.
+	 * @param timeoutMillis
+	 *            How long to wait for each server before giving up on it.
+	 * @return A future which completes with the outcome for every server once
+	 *         all of them have answered, failed or timed out. It never
+	 *         completes exceptionally.
+	 */
+	public static CompletableFuture<FanOutReport> send(
+			List<ServerProfile> servers, String message, long timeoutMillis) {
+		final long start = System.nanoTime();
+		final List<CompletableFuture<FanOutReport.Result>> futures = new ArrayList<CompletableFuture<FanOutReport.Result>>();
+		for (ServerProfile server : servers) {
+			futures.add(send(server, message, timeoutMillis, start));
+		}
+		return CompletableFuture.allOf(
+				futures.toArray(new CompletableFuture<?>[futures.size()]))
+				.thenApply(new Function<Void, FanOutReport>() {
+					public FanOutReport apply(Void done) {
+						List<FanOutReport.Result> results = new ArrayList<FanOutReport.Result>();
+						for (CompletableFuture<FanOutReport.Result> future : futures) {
+							results.add(future.join());
+						}
+						return new FanOutReport(results, elapsedMillis(start));
+					}
+				});
+	}
+
+	/**
+	 * Send a message to one server, giving up after a timeout.
+	 * 
+	 * @return A future which completes with the outcome, and never completes
+	 *         exceptionally.
+	 */
+	private static CompletableFuture<FanOutReport.Result> send(
+			final ServerProfile server, String message,
+			final long timeoutMillis, final long start) {
+		final CompletableFuture<Ack> ack = MessageSender.sendAsync(server,
+				message);
+		final TimerTask timeout = new TimerTask() {
+			public void run() {
+				// has no effect if the server has answered.
+				ack.completeExceptionally(new TimeoutException(
+						"No answer within " + timeoutMillis + " ms"));
+			}
+		};
+		TIMEOUT_TIMER.schedule(timeout, timeoutMillis);
+		return ack.handle(new BiFunction<Ack, Throwable, FanOutReport.Result>() {
+			public FanOutReport.Result apply(Ack ack, Throwable error) {
+				timeout.cancel();
+				if (error instanceof CompletionException
+						&& error.getCause() != null)
+					error = error.getCause();
+				return new FanOutReport.Result(server, ack, error,
+						elapsedMillis(start));
+			}
+		});
+	}
+
+	private static long elapsedMillis(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+}
@@ -1,442 +1,806 @@
-package twit.client;
-
-import java.awt.Dimension;
-import java.awt.Menu;
-import java.awt.MenuBar;
-import java.awt.MenuItem;
-import java.awt.MenuShortcut;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.awt.event.KeyAdapter;
-import java.awt.event.KeyEvent;
-import java.awt.event.WindowAdapter;
-import java.awt.event.WindowEvent;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-import java.util.Vector;
-
-import javax.swing.Box;
-import javax.swing.DefaultComboBoxModel;
-import javax.swing.JButton;
-import javax.swing.JComboBox;
-import javax.swing.JFrame;
-import javax.swing.JLabel;
-import javax.swing.JOptionPane;
-import javax.swing.JPanel;
-import javax.swing.JTextArea;
-
-import twit.awt.HorizontalPanel;
-import twit.awt.Popup;
-import twit.awt.VerticalPanel;
-
-@SuppressWarnings("serial")
-public class GUIClient extends JFrame implements ActionListener {
-	private static final String SERVER_PROFILE_FILENAME = "servers.txt";
-	private static final String TITLE = "TWIt Client";
-	private JComboBox serverComboBox;
-	private JTextArea textArea;
-	private JButton sendButton;
-
-	// Vector of ServerProfiles.
-	private Vector<ServerProfile> servers;
-	private MenuItem quitMenuItem;
-	private MenuItem editServerMenuItem;
-	private MenuItem addServerMenuItem;
-	private MenuItem deleteServerMenuItem;
-
-	/**
-	 * Create a new GUIClient window and make it visible.
-	 */
-	public GUIClient() {
-		super(TITLE);
-		loadServerProfiles();
-
-		makeGUI();
-
-		setVisible(true);
-		textArea.requestFocus();
-	}
-
-	/**
-	 * Initialise all GUI components of the main GUIClient window.
-	 */
-	private void makeGUI() {
-		setWindowListener();
-		this.setSize(300, 275);
-		// put frame to the center of the screen
-		setLocationRelativeTo(null);
-		initMenus();
-		final JPanel mainPanel = new VerticalPanel();
-		JPanel serverPanel = initSelectServerPanel();
-		mainPanel.add(serverPanel);
-		JPanel textFieldPanel = initTextAreaPanel();
-		mainPanel.add(textFieldPanel);
-		initTextArea();
-		mainPanel.add(textArea);
-		JPanel buttonPanel = initButtonPanel();
-		mainPanel.add(buttonPanel);
-		setContentPane(mainPanel);
-	}
-
-	/**
-	 * Setup a window listener which makes the program save the profile servers
-	 * and close the problem when the window is closed.
-	 */
-	private void setWindowListener() {
-		addWindowListener(new WindowAdapter() {
-			public void windowClosing(WindowEvent e) {
-				/*
-				 * Make the program save the profile servers and shut down the
-				 * process when the window is closing.
-				 */
-				saveAndExit();
-			}
-		});
-	}
-
-	/**
-	 * Initialise the text area; turning on word-wrap, and adding a
-	 * keyboard-shortcut to send a message (Ctrl+S) to the textarea.
-	 */
-	private void initTextArea() {
-		textArea = new JTextArea();
-		textArea.addKeyListener(new KeyAdapter() {
-			@Override
-			public void keyPressed(KeyEvent keyEvent) {
-				int keyCode = keyEvent.getKeyCode();
-				if (keyCode == KeyEvent.VK_S && keyEvent.isControlDown()) {
-					sendButton.doClick();
-				}
-			}
-		});
-		// turn on word-wrap
-		textArea.setLineWrap(true);
-		textArea.setWrapStyleWord(true);
-	}
-
-	/**
-	 * Initialise the menus. Including adding ActionListeners and shortcuts.
-	 */
-	private void initMenus() {
-		Menu fileMenu = new Menu("File");
-		quitMenuItem = new MenuItem("Quit");
-		quitMenuItem.setShortcut(new MenuShortcut(KeyEvent.VK_Q));
-		fileMenu.add(quitMenuItem);
-
-		Menu editMenu = new Menu("Edit");
-		addServerMenuItem = new MenuItem("Add new server");
-		addServerMenuItem.setShortcut(new MenuShortcut(KeyEvent.VK_N));
-		editMenu.add(addServerMenuItem);
-		editServerMenuItem = new MenuItem("Edit selected server");
-		editServerMenuItem.setShortcut(new MenuShortcut(KeyEvent.VK_E));
-		editMenu.add(editServerMenuItem);
-		deleteServerMenuItem = new MenuItem("Delete selected server");
-		editMenu.add(deleteServerMenuItem);
-
-		addMenuActionListeners();
-
-		MenuBar menuBar = new MenuBar();
-		menuBar.add(fileMenu);
-		menuBar.add(editMenu);
-		this.setMenuBar(menuBar);
-	}
-
-	/**
-	 * Add ActionListener to each of the MenuItems.
-	 */
-	private void addMenuActionListeners() {
-		MenuItem[] menuItems = { quitMenuItem, editServerMenuItem,
-				addServerMenuItem, deleteServerMenuItem };
-
-		for (MenuItem item : menuItems) {
-			item.addActionListener(this);
-		}
-	}
-
-	/**
-	 * Initialise select server-profile panel, containing a label and a ComboBox
-	 * from which server-profiles can be chosen.
-	 * 
-	 * @return The select server profile panel.
-	 */
-	private JPanel initSelectServerPanel() {
-		JPanel serverPanel = new HorizontalPanel();
-		JLabel serverLabel = new JLabel("Select server: ");
-		serverComboBox = new JComboBox(servers);
-		initButtonPanel();
-		serverPanel.add(serverLabel);
-		serverPanel.add(serverComboBox);
-		return serverPanel;
-	}
-
-	private JPanel initTextAreaPanel() {
-		JPanel textPanel = new HorizontalPanel();
-		JLabel enterTextLabel = new JLabel("Enter text to TWIt:");
-		textPanel.add(enterTextLabel);
-		Dimension min = new Dimension(10000, 1);
-		textPanel.add(new Box.Filler(min, min, min));
-		return textPanel;
-	}
-
-	private JPanel initButtonPanel() {
-		JPanel buttonPanel = new HorizontalPanel();
-		sendButton = new JButton("Send");
-		addListeners(sendButton);
-		buttonPanel.add(sendButton);
-		return buttonPanel;
-	}
-
-	/**
-	 * Add Action- and KeyListeners to a button.
-	 * 
-	 * @param button
-	 *            A button.
-	 */
-	private void addListeners(final JButton button) {
-		button.addKeyListener(new KeyAdapter() {
-			@Override
-			public void keyPressed(KeyEvent e) {
-				if (e.getKeyCode() == KeyEvent.VK_ENTER)
-					button.doClick();
-			}
-		});
-		button.addActionListener(this);
-	}
-
-	/**
-	 * Load server profiles from a file. If the file does not exist, or is
-	 * empty, add a default profile to the list of profiles.
-	 */
-	private void loadServerProfiles() {
-		servers = new Vector<ServerProfile>();
-		File serverFile = new File(SERVER_PROFILE_FILENAME);
-		BufferedReader in;
-		try {
-			in = new BufferedReader(new FileReader(serverFile));
-		} catch (FileNotFoundException fnfe) {
-			createProfileServerFile(serverFile);
-			addDefaultServer();
-			return;
-		}
-		try {
-			while (in.ready()) {
-				ServerProfile server = ServerProfile.fromLine(in.readLine());
-				if (server != null)
-					servers.add(server);
-			}
-			in.close();
-		} catch (IOException ioe) {
-			reportError("Error reading profile server file, loading defaults.",
-					"Reading file");
-		}
-		if (servers.isEmpty()) {
-			addDefaultServer();
-		}
-	}
-
-	/**
-	 * Add default server to the list of profiles.
-	 */
-	private void addDefaultServer() {
-		servers.add(MessageSender.DEFAULT_SERVER);
-	}
-
-	private void createProfileServerFile(File serverFile) {
-		try {
-			serverFile.createNewFile();
-		} catch (IOException e) {
-			reportError(
-					"The profile server file could not be found or created.\nIt may not be possible to save profile servers.",
-					"Writing error");
-		}
-	}
-
-	/**
-	 * Save server profiles to a pre-specified file.
-	 */
-	private void saveServerProfiles() {
-		try {
-			PrintWriter out = new PrintWriter(new BufferedWriter(
-					new FileWriter(SERVER_PROFILE_FILENAME)));
-			for (ServerProfile server : servers) {
-				out.println(server.toLine());
-			}
-			out.flush();
-			out.close();
-		} catch (IOException e) {
-			reportError("The server profile file could not be saved.",
-					"Writing error");
-		}
-	}
-
-	/**
-	 * @see ActionListener#actionPerformed(ActionEvent)
-	 */
-	public void actionPerformed(ActionEvent evt) {
-		Object source = evt.getSource();
-		if (source instanceof JButton) {
-			JButton button = (JButton) source;
-			if (button == sendButton) {
-				sendMessage();
-			}
-		} else if (source instanceof MenuItem) {
-			MenuItem item = (MenuItem) source;
-			if (item == quitMenuItem) {
-				saveAndExit();
-			} else if (item == editServerMenuItem) {
-				editServer();
-			} else if (item == addServerMenuItem) {
-				addServer();
-			} else if (item == deleteServerMenuItem) {
-				deleteServer();
-			}
-		}
-	}
-
-	/**
-	 * Save server profiles and close the application.
-	 */
-	private void saveAndExit() {
-		saveServerProfiles();
-		System.exit(0);
-	}
-
-	/**
-	 * Open a window in which the user can edit the server currently selected in
-	 * the ComboBox.
-	 */
-	private void editServer() {
-		int index = serverComboBox.getSelectedIndex();
-		if (index == -1) {
-			reportError("There is no server to edit.", "No server");
-		}
-		new ServerProfileDialog(this, servers, index);
-		refreshServerComboBox();
-		serverComboBox.setSelectedIndex(index);
-	}
-
-	/**
-	 * Open a window from which the user can add a new server profile.
-	 */
-	private void addServer() {
-		new ServerProfileDialog(this, servers);
-		refreshServerComboBox();
-		serverComboBox.setSelectedIndex(servers.size() - 1);
-	}
-
-	/**
-	 * Refresh the profile server combo box with a newly edited/added profile.
-	 */
-	private void refreshServerComboBox() {
-		serverComboBox.setModel(new DefaultComboBoxModel(servers));
-	}
-
-	/**
-	 * Delete the currently selected server profile.
-	 */
-	private void deleteServer() {
-		Object selected = serverComboBox.getSelectedItem();
-		if (selected == null) {
-			reportError("There is no server to delete.", "No server");
-		}
-		ServerProfile server = (ServerProfile) selected;
-		String profileName = server.getProfileName();
-		int option = JOptionPane.showConfirmDialog(this,
-				"Are you sure you want to delete the " + profileName
-						+ " profile?", "Delete?", JOptionPane.YES_NO_OPTION,
-				JOptionPane.WARNING_MESSAGE);
-		if (option == JOptionPane.YES_OPTION) {
-			servers.remove(serverComboBox.getSelectedIndex());
-			refreshServerComboBox();
-		}
-	}
-
-	/**
-	 * Send the text written in the textArea to the server specified by the
-	 * combobox.
-	 */
-	private void sendMessage() {
-		String message = textArea.getText().trim();
-		if (message.length() == 0) {
-			reportError("Please enter a message before trying to send.",
-					"No message entered");
-			return;
-		} else if (message.length() > 140) {
-			reportError(
-					"The maximum message length is 140 characters.\nPlease shorten it.",
-					"Message too long");
-			return;
-		} else if (message.indexOf('\n') != -1)
-			// replace new line symbols with spaces.
-			message = message.replaceAll("\n", " ");
-
-		Object selected = serverComboBox.getSelectedItem();
-		if (selected == null) {
-			reportError(
-					"There is no server to send the message to.\nPlease create a server profile and try again.",
-					"No server");
-		}
-		ServerProfile server = (ServerProfile) selected;
-		try {
-			String received = MessageSender.send(server, message);
-			if (received.equals(message)) {
-				report("Message sent.", "Success");
-				textArea.setText("");
-			} else {
-				reportError(received, "Unsuccessful");
-			}
-		} catch (SocketTimeoutException ste) {
-			reportError("Connection timed out. Please try again later.",
-					"Server not responding");
-		} catch (UnknownHostException uhe) {
-			reportError("Could not connect to server.\n"
-					+ "Make sure the hostname and port is correct.",
-					"Invalid server");
-		} catch (IOException ioe) {
-			reportError("Could not connect to server. Please try again later.",
-					"Server not responding");
-		}
-	}
-
-	/**
-	 * Report some information to the user in a pop-up window.
-	 * 
-	 * @param message
-	 *            The message to be displayed.
-	 * @param title
-	 *            The title of the window.
-	 */
-	public void report(String message, String title) {
-		Popup.report(this, message, title);
-	}
-
-	/**
-	 * Report an error to the user in a pop-up window.
-	 * 
-	 * @param message
-	 *            The error-message to be displayed.
-	 * @param title
-	 *            The title of the window.
-	 */
-	public void reportError(String message, String title) {
-		Popup.reportError(this, message, title);
-	}
-
-	/**
-	 * Runs the program.
-	 * 
-	 * @param args
-	 *            Array of strings. Unused.
-	 */
-	public static void main(String[] args) {
-		new GUIClient();
-	}
-}
+package twit.client;
+
+import java.awt.Dimension;
+import java.awt.Menu;
+import java.awt.MenuBar;
+import java.awt.MenuItem;
+import java.awt.MenuShortcut;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.swing.Box;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+import twit.awt.HorizontalPanel;
+import twit.awt.Popup;
+import twit.awt.VerticalPanel;
+
+@SuppressWarnings("serial")
+public class GUIClient extends JFrame implements ActionListener {
+	private static final String SERVER_PROFILE_FILENAME = "servers.txt";
+	private static final String OUTBOX_FILENAME = "outbox.dat";
+	private static final String TITLE = "TWIt Client";
+	// how long to wait for each server when sending to several.
+	private static final long FAN_OUT_TIMEOUT = 5000;
+	// most servers probed when sending to the fastest one.
+	private static final int MAX_POOL_SIZE = 64;
+	// most servers a message is sent to at once.
+	private static final int MAX_FAN_OUT = 64;
+	private JComboBox<ServerProfile> serverComboBox;
+	private JTextField findField;
+	private JCheckBox fastestCheckBox;
+	private JTextArea textArea;
+	private JButton sendButton;
+	private JLabel statusLabel;
+
+	// messages queued or being sent. Only used on the event dispatch thread.
+	private int sendsInFlight;
+	// completes when the last queued message has been dealt with.
+	private CompletableFuture<Void> lastSend = CompletableFuture
+			.completedFuture(null);
+	// messages to be sent again when their server is back, or null.
+	private Outbox outbox;
+	// probes the servers shown, to send to the fastest one; null unless
+	// "Fastest" is ticked.
+	private ServerPool serverPool;
+
+	private ProfileStore servers;
+	private ProfileComboBoxModel serverModel;
+	private MenuItem quitMenuItem;
+	private MenuItem editServerMenuItem;
+	private MenuItem addServerMenuItem;
+	private MenuItem deleteServerMenuItem;
+	private MenuItem sendToAllMenuItem;
+	private MenuItem sendToGroupMenuItem;
+	private MenuItem serverHealthMenuItem;
+
+	/**
+	 * Create a new GUIClient window and make it visible.
+	 */
+	public GUIClient() {
+		super(TITLE);
+		loadServerProfiles();
+
+		makeGUI();
+		openOutbox();
+
+		setVisible(true);
+		textArea.requestFocus();
+	}
+
+	/**
+	 * Initialise all GUI components of the main GUIClient window.
+	 */
+	private void makeGUI() {
+		setWindowListener();
+		this.setSize(300, 300);
+		// put frame to the center of the screen
+		setLocationRelativeTo(null);
+		initMenus();
+		final JPanel mainPanel = new VerticalPanel();
+		JPanel serverPanel = initSelectServerPanel();
+		mainPanel.add(serverPanel);
+		mainPanel.add(initFindServerPanel());
+		JPanel textFieldPanel = initTextAreaPanel();
+		mainPanel.add(textFieldPanel);
+		initTextArea();
+		mainPanel.add(textArea);
+		JPanel buttonPanel = initButtonPanel();
+		mainPanel.add(buttonPanel);
+		setContentPane(mainPanel);
+	}
+
+	/**
+	 * Open the outbox, which starts sending any messages left from the last
+	 * run. Without an outbox, messages which could not be sent are only put
+	 * back in the textArea.
+	 */
+	private void openOutbox() {
+		try {
+			outbox = new Outbox(new File(OUTBOX_FILENAME),
+					new Outbox.Listener() {
+						public void delivered(Outbox.Entry entry) {
+							SwingUtilities.invokeLater(new Runnable() {
+								public void run() {
+									showOutboxStatus("Queued message sent.");
+								}
+							});
+						}
+
+						public void rejected(final Outbox.Entry entry,
+								final String reply) {
+							SwingUtilities.invokeLater(new Runnable() {
+								public void run() {
+									showOutboxStatus(" ");
+									reportError("A queued message was not stored:\n"
+											+ entry.getMessage() + "\n" + reply,
+											"Unsuccessful");
+								}
+							});
+						}
+					});
+		} catch (IOException e) {
+			reportError(
+					"The outbox file could not be opened.\nMessages will not be resent if the server is not responding.",
+					"Reading file");
+		}
+		showOutboxStatus(" ");
+	}
+
+	/**
+	 * Show a status, followed by the number of messages waiting in the outbox
+	 * if there are any. Does nothing while messages are being sent, as their
+	 * progress is shown instead.
+	 * 
+	 * @param status
+	 *            The status to be shown.
+	 */
+	private void showOutboxStatus(String status) {
+		if (sendsInFlight > 0)
+			return;
+		int pending = outbox == null ? 0 : outbox.getPendingCount();
+		if (pending > 0) {
+			statusLabel.setText(status.trim() + " " + pending
+					+ " message(s) queued.");
+		} else {
+			statusLabel.setText(status);
+		}
+	}
+
+	/**
+	 * Setup a window listener which makes the program save the profile servers
+	 * and close the problem when the window is closed.
+	 */
+	private void setWindowListener() {
+		// saveAndExit() decides whether the window really closes.
+		setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+		addWindowListener(new WindowAdapter() {
+			public void windowClosing(WindowEvent e) {
+				/*
+				 * Make the program save the profile servers and shut down the
+				 * process when the window is closing.
+				 */
+				saveAndExit();
+			}
+		});
+	}
+
+	/**
+	 * Initialise the text area; turning on word-wrap, and adding a
+	 * keyboard-shortcut to send a message (Ctrl+S) to the textarea.
+	 */
+	private void initTextArea() {
+		textArea = new JTextArea();
+		textArea.addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(KeyEvent keyEvent) {
+				int keyCode = keyEvent.getKeyCode();
+				if (keyCode == KeyEvent.VK_S && keyEvent.isControlDown()) {
+					sendButton.doClick();
+				}
+			}
+		});
+		// turn on word-wrap
+		textArea.setLineWrap(true);
+		textArea.setWrapStyleWord(true);
+	}
+
+	/**
+	 * Initialise the menus. Including adding ActionListeners and shortcuts.
+	 */
+	private void initMenus() {
+		Menu fileMenu = new Menu("File");
+		quitMenuItem = new MenuItem("Quit");
+		quitMenuItem.setShortcut(new MenuShortcut(KeyEvent.VK_Q));
+		fileMenu.add(quitMenuItem);
+
+		Menu editMenu = new Menu("Edit");
+		addServerMenuItem = new MenuItem("Add new server");
+		addServerMenuItem.setShortcut(new MenuShortcut(KeyEvent.VK_N));
+		editMenu.add(addServerMenuItem);
+		editServerMenuItem = new MenuItem("Edit selected server");
+		editServerMenuItem.setShortcut(new MenuShortcut(KeyEvent.VK_E));
+		editMenu.add(editServerMenuItem);
+		deleteServerMenuItem = new MenuItem("Delete selected server");
+		editMenu.add(deleteServerMenuItem);
+
+		Menu sendMenu = new Menu("Send");
+		sendToAllMenuItem = new MenuItem("Send to all servers shown");
+		sendMenu.add(sendToAllMenuItem);
+		sendToGroupMenuItem = new MenuItem("Send to servers...");
+		sendMenu.add(sendToGroupMenuItem);
+		serverHealthMenuItem = new MenuItem("Server health");
+		sendMenu.add(serverHealthMenuItem);
+
+		addMenuActionListeners();
+
+		MenuBar menuBar = new MenuBar();
+		menuBar.add(fileMenu);
+		menuBar.add(editMenu);
+		menuBar.add(sendMenu);
+		this.setMenuBar(menuBar);
+	}
+
+	/**
+	 * Add ActionListener to each of the MenuItems.
+	 */
+	private void addMenuActionListeners() {
+		MenuItem[] menuItems = { quitMenuItem, editServerMenuItem,
+				addServerMenuItem, deleteServerMenuItem, sendToAllMenuItem,
+				sendToGroupMenuItem, serverHealthMenuItem };
+
+		for (MenuItem item : menuItems) {
+			item.addActionListener(this);
+		}
+	}
+
+	/**
+	 * Initialise select server-profile panel, containing a label and a ComboBox
+	 * from which server-profiles can be chosen, and a CheckBox with which the
+	 * fastest server is chosen instead.
+	 * 
+	 * @return The select server profile panel.
+	 */
+	private JPanel initSelectServerPanel() {
+		JPanel serverPanel = new HorizontalPanel();
+		JLabel serverLabel = new JLabel("Select server: ");
+		serverModel = new ProfileComboBoxModel(servers);
+		serverComboBox = new JComboBox<ServerProfile>(serverModel);
+		// otherwise every profile is measured to size the combo box.
+		serverComboBox.setPrototypeDisplayValue(new ServerProfile(
+				"a long profile name", "", 0));
+		initButtonPanel();
+		fastestCheckBox = new JCheckBox("Fastest");
+		fastestCheckBox.setToolTipText("Send to the fastest of the servers shown");
+		fastestCheckBox.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				boolean fastest = fastestCheckBox.isSelected();
+				serverComboBox.setEnabled(!fastest);
+				if (fastest) {
+					serverPool = new ServerPool(serverModel
+							.getShown(MAX_POOL_SIZE));
+				} else {
+					serverPool.close();
+					serverPool = null;
+				}
+			}
+		});
+		serverPanel.add(serverLabel);
+		serverPanel.add(serverComboBox);
+		serverPanel.add(fastestCheckBox);
+		return serverPanel;
+	}
+
+	/**
+	 * Initialise the find server panel, containing a text field which limits
+	 * the server-profiles in the ComboBox to those whose name or hostname
+	 * contains the text, as it is typed.
+	 * 
+	 * @return The find server panel.
+	 */
+	private JPanel initFindServerPanel() {
+		JPanel findPanel = new HorizontalPanel();
+		findField = new JTextField();
+		findField.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				serverModel.setFilter(findField.getText());
+			}
+
+			public void removeUpdate(DocumentEvent e) {
+				serverModel.setFilter(findField.getText());
+			}
+
+			public void changedUpdate(DocumentEvent e) {
+			}
+		});
+		findPanel.add(new JLabel("Find server: "));
+		findPanel.add(findField);
+		return findPanel;
+	}
+
+	private JPanel initTextAreaPanel() {
+		JPanel textPanel = new HorizontalPanel();
+		JLabel enterTextLabel = new JLabel("Enter text to TWIt:");
+		textPanel.add(enterTextLabel);
+		Dimension min = new Dimension(10000, 1);
+		textPanel.add(new Box.Filler(min, min, min));
+		return textPanel;
+	}
+
+	private JPanel initButtonPanel() {
+		JPanel buttonPanel = new HorizontalPanel();
+		sendButton = new JButton("Send");
+		addListeners(sendButton);
+		buttonPanel.add(sendButton);
+		statusLabel = new JLabel(" ");
+		buttonPanel.add(Box.createHorizontalStrut(10));
+		buttonPanel.add(statusLabel);
+		return buttonPanel;
+	}
+
+	/**
+	 * Add Action- and KeyListeners to a button.
+	 * 
+	 * @param button
+	 *            A button.
+	 */
+	private void addListeners(final JButton button) {
+		button.addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(KeyEvent e) {
+				if (e.getKeyCode() == KeyEvent.VK_ENTER)
+					button.doClick();
+			}
+		});
+		button.addActionListener(this);
+	}
+
+	/**
+	 * Load server profiles from a file. If the file does not exist, or is
+	 * empty, add a default profile to the list of profiles.
+	 */
+	private void loadServerProfiles() {
+		try {
+			servers = new ProfileStore(new File(SERVER_PROFILE_FILENAME));
+		} catch (IOException ioe) {
+			reportError(
+					"Error reading profile server file, loading defaults.\nIt may not be possible to save profile servers.",
+					"Reading file");
+			servers = new ProfileStore();
+		}
+		if (servers.size() == 0) {
+			addDefaultServer();
+		}
+	}
+
+	/**
+	 * Add default server to the list of profiles.
+	 */
+	private void addDefaultServer() {
+		try {
+			servers.add(MessageSender.DEFAULT_SERVER);
+		} catch (IOException e) {
+			reportSaveError();
+		}
+	}
+
+	private void reportSaveError() {
+		reportError("The server profile file could not be saved.",
+				"Writing error");
+	}
+
+	/**
+	 * Close the server profile file. Every change has been saved as it was
+	 * made, so nothing needs to be written.
+	 */
+	private void saveServerProfiles() {
+		servers.close();
+	}
+
+	/**
+	 * @see ActionListener#actionPerformed(ActionEvent)
+	 */
+	public void actionPerformed(ActionEvent evt) {
+		Object source = evt.getSource();
+		if (source instanceof JButton) {
+			JButton button = (JButton) source;
+			if (button == sendButton) {
+				sendMessage();
+			}
+		} else if (source instanceof MenuItem) {
+			MenuItem item = (MenuItem) source;
+			if (item == quitMenuItem) {
+				saveAndExit();
+			} else if (item == editServerMenuItem) {
+				editServer();
+			} else if (item == addServerMenuItem) {
+				addServer();
+			} else if (item == deleteServerMenuItem) {
+				deleteServer();
+			} else if (item == sendToAllMenuItem) {
+				sendToAll();
+			} else if (item == sendToGroupMenuItem) {
+				sendToGroup();
+			} else if (item == serverHealthMenuItem) {
+				if (serverPool == null) {
+					report("Tick \"Fastest\" to probe the servers shown.",
+							"Server health");
+				} else {
+					report(serverPool.format(), "Server health");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Save server profiles and close the application. If messages are still
+	 * being sent, the user is asked first, as they would be lost.
+	 */
+	private void saveAndExit() {
+		if (sendsInFlight > 0) {
+			int option = JOptionPane.showConfirmDialog(this, sendsInFlight
+					+ " message(s) are still being sent. Quit anyway?",
+					"Quit?", JOptionPane.YES_NO_OPTION,
+					JOptionPane.WARNING_MESSAGE);
+			if (option != JOptionPane.YES_OPTION)
+				return;
+		}
+		saveServerProfiles();
+		if (serverPool != null)
+			serverPool.close();
+		if (outbox != null)
+			outbox.close();
+		System.exit(0);
+	}
+
+	/**
+	 * Open a window in which the user can edit the server currently selected in
+	 * the ComboBox.
+	 */
+	private void editServer() {
+		int index = selectedServerIndex();
+		if (index == -1) {
+			reportError("There is no server to edit.", "No server");
+			return;
+		}
+		new ServerProfileDialog(this, servers, index);
+		serverModel.setSelectedItem(servers.get(index));
+	}
+
+	/**
+	 * Open a window from which the user can add a new server profile.
+	 */
+	private void addServer() {
+		int size = servers.size();
+		new ServerProfileDialog(this, servers);
+		if (servers.size() > size)
+			serverModel.setSelectedItem(servers.get(size));
+	}
+
+	/**
+	 * Find the server selected in the ComboBox in the list of profiles. The
+	 * index in the ComboBox differs while it is filtered.
+	 * 
+	 * @return The index of the profile, or -1 if there is none selected.
+	 */
+	private int selectedServerIndex() {
+		return servers.getProfiles().indexOf(serverModel.getSelectedItem());
+	}
+
+	/**
+	 * Delete the currently selected server profile.
+	 */
+	private void deleteServer() {
+		Object selected = serverComboBox.getSelectedItem();
+		if (selected == null) {
+			reportError("There is no server to delete.", "No server");
+			return;
+		}
+		ServerProfile server = (ServerProfile) selected;
+		String profileName = server.getProfileName();
+		int option = JOptionPane.showConfirmDialog(this,
+				"Are you sure you want to delete the " + profileName
+						+ " profile?", "Delete?", JOptionPane.YES_NO_OPTION,
+				JOptionPane.WARNING_MESSAGE);
+		if (option == JOptionPane.YES_OPTION) {
+			try {
+				servers.remove(selectedServerIndex());
+			} catch (IOException e) {
+				reportSaveError();
+			}
+		}
+	}
+
+	/**
+	 * Send the text written in the textArea to the server specified by the
+	 * combobox, or to the fastest server if that is ticked. The message is
+	 * queued behind any messages still being sent
+	 * and sent in the background, so the window stays responsive while the
+	 * server is slow to answer.
+	 */
+	private void sendMessage() {
+		String message = readMessage();
+		if (message == null)
+			return;
+
+		Object selected = serverComboBox.getSelectedItem();
+		if (selected == null) {
+			reportError(
+					"There is no server to send the message to.\nPlease create a server profile and try again.",
+					"No server");
+			return;
+		}
+		ServerProfile server = (ServerProfile) selected;
+		// read now, in case the profile is edited while the message waits.
+		final String hostname = server.getHostname();
+		final int port = server.getPort();
+		final String text = message;
+		final ServerPool pool = serverPool;
+		if (pool != null)
+			pool.setServers(serverModel.getShown(MAX_POOL_SIZE));
+		textArea.setText("");
+		sendsInFlight++;
+		statusLabel.setText("Sending " + sendsInFlight + " message(s)...");
+		lastSend = lastSend.thenCompose(
+				new Function<Void, CompletionStage<Ack>>() {
+					public CompletionStage<Ack> apply(Void previous) {
+						if (pool != null)
+							return pool.sendAsync(text);
+						return MessageSender.sendAsync(hostname, port, text);
+					}
+				}).handle(new BiFunction<Ack, Throwable, Void>() {
+			public Void apply(final Ack ack, final Throwable error) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						sendFinished(hostname, port, pool != null, text, ack,
+								error);
+					}
+				});
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Read the message written in the textArea, reporting an error if it
+	 * cannot be sent.
+	 * 
+	 * @return The message, with new lines replaced by spaces, or null if it is
+	 *         empty or too long.
+	 */
+	private String readMessage() {
+		String message = textArea.getText().trim();
+		if (message.length() == 0) {
+			reportError("Please enter a message before trying to send.",
+					"No message entered");
+			return null;
+		} else if (!Validator.isValidMessage(message)) {
+			reportError(
+					"The maximum message length is 140 characters.\nPlease shorten it.",
+					"Message too long");
+			return null;
+		} else if (message.indexOf('\n') != -1)
+			// replace new line symbols with spaces.
+			message = message.replaceAll("\n", " ");
+		return message;
+	}
+
+	/**
+	 * Send the text in the textArea to the servers shown in the ComboBox, or
+	 * to the first MAX_FAN_OUT of them if the user agrees when more are
+	 * shown.
+	 */
+	private void sendToAll() {
+		int shown = serverModel.getSize();
+		if (shown > MAX_FAN_OUT) {
+			int option = JOptionPane.showConfirmDialog(this, shown
+					+ " servers are shown. Send to the first " + MAX_FAN_OUT
+					+ " only?\nType in the find field to choose others.",
+					"Send to servers", JOptionPane.OK_CANCEL_OPTION,
+					JOptionPane.WARNING_MESSAGE);
+			if (option != JOptionPane.OK_OPTION)
+				return;
+		}
+		sendToServers(serverModel.getShown(MAX_FAN_OUT));
+	}
+
+	/**
+	 * Let the user pick the servers to send the text in the textArea to, from
+	 * those shown in the ComboBox, and send it to all of them.
+	 */
+	private void sendToGroup() {
+		JList<ServerProfile> list = new JList<ServerProfile>(serverModel);
+		list.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+		list.setVisibleRowCount(8);
+		list.setPrototypeCellValue(serverComboBox.getPrototypeDisplayValue());
+		int option = JOptionPane.showConfirmDialog(this, new JScrollPane(list),
+				"Send to servers", JOptionPane.OK_CANCEL_OPTION,
+				JOptionPane.PLAIN_MESSAGE);
+		List<ServerProfile> selected = list.getSelectedValuesList();
+		// stop the list listening to the model.
+		list.setModel(new DefaultListModel<ServerProfile>());
+		if (option != JOptionPane.OK_OPTION)
+			return;
+		sendToServers(selected);
+	}
+
+	/**
+	 * Send the text written in the textArea to several servers in parallel,
+	 * and report the outcome for each of them once they have all answered or
+	 * timed out.
+	 * 
+	 * @param targets
+	 *            The servers to which the message is to be sent, at most
+	 *            MAX_FAN_OUT of them.
+	 */
+	private void sendToServers(List<ServerProfile> targets) {
+		if (targets.isEmpty()) {
+			reportError("No server was selected.", "No server");
+			return;
+		} else if (targets.size() > MAX_FAN_OUT) {
+			reportError("A message can be sent to at most " + MAX_FAN_OUT
+					+ " servers at once.\n" + targets.size()
+					+ " were selected.", "Too many servers");
+			return;
+		}
+		final String message = readMessage();
+		if (message == null)
+			return;
+		textArea.setText("");
+		sendsInFlight++;
+		statusLabel.setText("Sending to " + targets.size() + " server(s)...");
+		FanOutSender.send(targets, message, FAN_OUT_TIMEOUT).thenAccept(
+				new Consumer<FanOutReport>() {
+					public void accept(final FanOutReport report) {
+						SwingUtilities.invokeLater(new Runnable() {
+							public void run() {
+								fanOutFinished(message, report);
+							}
+						});
+					}
+				});
+	}
+
+	/**
+	 * Report the outcome of sending a message to several servers. Called on
+	 * the event dispatch thread. If any server did not store the message, it
+	 * is put back in the textArea (unless the user has started writing another
+	 * one).
+	 * 
+	 * @param message
+	 *            The message which was sent.
+	 * @param report
+	 *            The outcome for each server.
+	 */
+	private void fanOutFinished(String message, FanOutReport report) {
+		sendsInFlight--;
+		boolean allSent = report.getSuccessCount() == report.getResults()
+				.size();
+		if (sendsInFlight > 0) {
+			statusLabel.setText("Sending " + sendsInFlight + " message(s)...");
+		} else {
+			showOutboxStatus(allSent ? "Message sent." : " ");
+		}
+		if (!allSent && textArea.getText().trim().length() == 0)
+			textArea.setText(message);
+		if (allSent) {
+			report(report.format(), "Sent");
+		} else {
+			reportError(report.format(), "Not sent to every server");
+		}
+	}
+
+	/**
+	 * Report the outcome of sending a message. Called on the event dispatch
+	 * thread. If the server could not be reached, the message is put in the
+	 * outbox to be sent again later, unless it was sent through the pool of
+	 * fastest servers, which has no one server to retry. If it was not stored
+	 * for any other reason, it is put back in the textArea (unless the user
+	 * has started writing another one) so it can be corrected.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server selected.
+	 * @param port
+	 *            The port of the server selected.
+	 * @param pooled
+	 *            true if the message was sent through the pool rather than
+	 *            to the server selected.
+	 * @param message
+	 *            The message which was sent.
+	 * @param ack
+	 *            The server's answer, or null if sending failed.
+	 * @param error
+	 *            The reason sending failed, or null if it did not.
+	 */
+	private void sendFinished(String hostname, int port, boolean pooled,
+			String message, Ack ack, Throwable error) {
+		sendsInFlight--;
+		if (sendsInFlight > 0) {
+			statusLabel.setText("Sending " + sendsInFlight + " message(s)...");
+		}
+		if (error == null && ack.isSuccess()) {
+			if (ack.getServer() == null) {
+				showOutboxStatus("Message sent.");
+			} else {
+				showOutboxStatus("Message sent to "
+						+ ack.getServer().getProfileName() + ".");
+			}
+			return;
+		}
+		if (error instanceof CompletionException && error.getCause() != null)
+			error = error.getCause();
+		if (error instanceof IOException
+				&& !(error instanceof UnknownHostException) && outbox != null
+				&& !pooled) {
+			try {
+				outbox.add(hostname, port, message);
+				showOutboxStatus("Server not responding.");
+				return;
+			} catch (IOException e) {
+				// report the original error below.
+			}
+		}
+		showOutboxStatus(" ");
+		if (textArea.getText().trim().length() == 0)
+			textArea.setText(message);
+		if (error == null) {
+			reportError(ack.getReply(), "Unsuccessful");
+		} else if (error instanceof SocketTimeoutException) {
+			reportError("Connection timed out. Please try again later.",
+					"Server not responding");
+		} else if (error instanceof UnknownHostException) {
+			reportError("Could not connect to server.\n"
+					+ "Make sure the hostname and port is correct.",
+					"Invalid server");
+		} else if (error instanceof IOException) {
+			reportError("Could not connect to server. Please try again later.",
+					"Server not responding");
+		} else {
+			reportError("Could not send message: " + error, "Error");
+		}
+	}
+
+	/**
+	 * Report some information to the user in a pop-up window.
+	 * 
+	 * @param message
+	 *            The message to be displayed.
+	 * @param title
+	 *            The title of the window.
+	 */
+	public void report(String message, String title) {
+		Popup.report(this, message, title);
+	}
+
+	/**
+	 * Report an error to the user in a pop-up window.
+	 * 
+	 * @param message
+	 *            The error-message to be displayed.
+	 * @param title
+	 *            The title of the window.
+	 */
+	public void reportError(String message, String title) {
+		Popup.reportError(this, message, title);
+	}
+
+	/**
+	 * Runs the program.
+	 * 
+	 * @param args
+	 *            Array of strings. Unused.
+	 */
+	public static void main(String[] args) {
+		new GUIClient();
+	}
+}
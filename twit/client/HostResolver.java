@@ -0,0 +1,284 @@
+package twit.client;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resolves hostnames, remembering the answers so that a client sending many
+ * messages to the same server does not look its name up for every message.
+ * 
+ * Addresses are kept for POSITIVE_TTL milliseconds, and hostnames which could
+ * not be resolved for NEGATIVE_TTL milliseconds. A hostname which is used
+ * after REFRESH_AFTER milliseconds is looked up again in the background while
+ * the cached addresses go on being used, so a busy hostname never waits for
+ * a lookup once it has been resolved.
+ * 
+ * When a hostname has several addresses, connect tries them in the manner of
+ * "happy eyeballs" (RFC 8305): the next address is tried whenever the previous
+ * attempts have not connected within CONNECTION_ATTEMPT_DELAY milliseconds,
+ * alternating between IPv6 and IPv4, and the first connection made is used.
+ */
+public class HostResolver {
+	public static final long POSITIVE_TTL = 60000;
+	public static final long NEGATIVE_TTL = 10000;
+	public static final long REFRESH_AFTER = 45000;
+	public static final long CONNECTION_ATTEMPT_DELAY = 250;
+
+	/**
+	 * The answer of one lookup.
+	 */
+	private static class Entry {
+		// null if the hostname could not be resolved.
+		final InetAddress[] addresses;
+		final UnknownHostException error;
+		final long resolvedAt;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Entry(InetAddress[] addresses, UnknownHostException error) {
+			this.addresses = addresses;
+			this.error = error;
+			this.resolvedAt = System.currentTimeMillis();
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Get the addresses of a host, from the cache if possible.
+	 * 
+	 * @param hostname
+	 *            The hostname.
+	 * @return The addresses of the host, in the order the name service gave
+	 *         them.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be resolved, now or when it was
+	 *             looked up less than NEGATIVE_TTL milliseconds ago.
+	 */
+	public InetAddress[] resolve(final String hostname)
+			throws UnknownHostException {
+		Entry entry = cache.get(hostname);
+		long now = System.currentTimeMillis();
+		if (entry == null || isExpired(entry, now)) {
+			entry = lookUp(hostname);
+		} else if (entry.error == null
+				&& now - entry.resolvedAt >= REFRESH_AFTER
+				&& entry.refreshing.compareAndSet(false, true)) {
+			MessageSender.getIoExecutor().execute(new Runnable() {
+				public void run() {
+					refresh(hostname);
+				}
+			});
+		}
+		if (entry.error != null)
+			throw entry.error;
+		return entry.addresses;
+	}
+
+	/**
+	 * Forget every cached answer.
+	 */
+	public void clear() {
+		cache.clear();
+	}
+
+	private static boolean isExpired(Entry entry, long now) {
+		long ttl = entry.error == null ? POSITIVE_TTL : NEGATIVE_TTL;
+		return now - entry.resolvedAt >= ttl;
+	}
+
+	/**
+	 * Look a hostname up and cache the answer.
+	 */
+	private Entry lookUp(String hostname) {
+		Entry entry;
+		try {
+			entry = new Entry(InetAddress.getAllByName(hostname), null);
+		} catch (UnknownHostException e) {
+			entry = new Entry(null, e);
+		}
+		cache.put(hostname, entry);
+		return entry;
+	}
+
+	/**
+	 * Look a hostname up again in the background. If the lookup fails, the
+	 * cached addresses are kept until they expire.
+	 */
+	private void refresh(String hostname) {
+		try {
+			cache.put(hostname, new Entry(InetAddress.getAllByName(hostname),
+					null));
+		} catch (UnknownHostException e) {
+			// keep using the addresses which worked.
+		}
+	}
+
+	/**
+	 * Open a connection to a host, trying its addresses as described above.
+	 * 
+	 * @param hostname
+	 *            The hostname.
+	 * @param port
+	 *            The port to connect to.
+	 * @param timeout
+	 *            How long to wait for a connection, in milliseconds.
+	 * @return A connected socket.
+	 * @throws SocketTimeoutException
+	 *             If no connection was made within the timeout.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be resolved.
+	 * @throws IOException
+	 *             The error from the last address tried, if no address could
+	 *             be connected to.
+	 */
+	public Socket connect(String hostname, int port, int timeout)
+			throws SocketTimeoutException, UnknownHostException, IOException {
+		List<InetAddress> addresses = interleave(resolve(hostname));
+		if (addresses.size() == 1) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(addresses.get(0), port),
+						timeout);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			return socket;
+		}
+		return race(addresses, port, timeout);
+	}
+
+	/**
+	 * Connect to several addresses, starting one attempt after another, and
+	 * keep the first connection made.
+	 */
+	private static Socket race(List<InetAddress> addresses, int port,
+			int timeout) throws IOException {
+		final BlockingQueue<Object> outcomes = new LinkedBlockingQueue<Object>();
+		// set once a connection has been chosen; later ones are closed.
+		final AtomicBoolean won = new AtomicBoolean();
+		long deadline = System.currentTimeMillis() + timeout;
+		int started = 0;
+		int finished = 0;
+		IOException lastError = null;
+		while (true) {
+			if (started < addresses.size()) {
+				attempt(addresses.get(started++), port, timeout, outcomes, won);
+			}
+			long wait = deadline - System.currentTimeMillis();
+			if (started < addresses.size())
+				wait = Math.min(wait, CONNECTION_ATTEMPT_DELAY);
+			Object outcome;
+			try {
+				outcome = wait > 0 ? outcomes.poll(wait, TimeUnit.MILLISECONDS)
+						: null;
+			} catch (InterruptedException e) {
+				// an attempt which has connected already leaves its socket in
+				// outcomes, where nobody would close it.
+				if (!won.compareAndSet(false, true)) {
+					try {
+						takeLateSocket(outcomes).close();
+					} catch (IOException closeError) {
+						// nothing more can be done.
+					}
+				}
+				throw new IOException("Interrupted while connecting");
+			}
+			if (outcome instanceof Socket) {
+				return (Socket) outcome;
+			} else if (outcome instanceof IOException) {
+				lastError = (IOException) outcome;
+				if (++finished == addresses.size())
+					throw lastError;
+				// a failed attempt starts the next one at once.
+				continue;
+			}
+			if (System.currentTimeMillis() >= deadline) {
+				if (won.compareAndSet(false, true))
+					throw new SocketTimeoutException("connect timed out");
+				// an attempt connected just now, and is adding its socket.
+				return takeLateSocket(outcomes);
+			}
+		}
+	}
+
+	/**
+	 * Take the socket of the attempt which set won, which may not have been
+	 * added to outcomes yet.
+	 */
+	private static Socket takeLateSocket(BlockingQueue<Object> outcomes) {
+		while (true) {
+			Object late = outcomes.poll();
+			if (late instanceof Socket)
+				return (Socket) late;
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Connect to one address on MessageSender's I/O executor, and report the
+	 * socket or error in outcomes.
+	 */
+	private static void attempt(final InetAddress address, final int port,
+			final int timeout, final BlockingQueue<Object> outcomes,
+			final AtomicBoolean won) {
+		MessageSender.getIoExecutor().execute(new Runnable() {
+			public void run() {
+				Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress(address, port),
+							timeout);
+					if (won.compareAndSet(false, true)) {
+						outcomes.add(socket);
+					} else {
+						socket.close();
+					}
+				} catch (IOException e) {
+					try {
+						socket.close();
+					} catch (IOException closeError) {
+						// nothing more can be done.
+					}
+					outcomes.add(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Order addresses so that IPv6 and IPv4 addresses alternate, starting with
+	 * the family of the first address.
+	 */
+	private static List<InetAddress> interleave(InetAddress[] addresses) {
+		List<InetAddress> first = new ArrayList<InetAddress>();
+		List<InetAddress> second = new ArrayList<InetAddress>();
+		boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+		for (InetAddress address : addresses) {
+			if ((address instanceof Inet6Address) == firstIsV6) {
+				first.add(address);
+			} else {
+				second.add(address);
+			}
+		}
+		List<InetAddress> ordered = new ArrayList<InetAddress>();
+		for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+			if (i < first.size())
+				ordered.add(first.get(i));
+			if (i < second.size())
+				ordered.add(second.get(i));
+		}
+		return ordered;
+	}
+}
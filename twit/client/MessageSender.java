@@ -1,153 +1,279 @@
-package twit.client;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-
-import twit.io.ByteReader;
-
-public class MessageSender {
-	public static final String DEFAULT_HOSTNAME = "host-os75.cs.st-andrews.ac.uk";
-	public static final int DEFAULT_PORT = 60514;
-	public static final ServerProfile DEFAULT_SERVER = new ServerProfile(
-			"os75", DEFAULT_HOSTNAME, DEFAULT_PORT);
-	// timeout after 15 seconds.
-	public static final int SO_TIMEOUT = 4000;
-
-	/**
-	 * Sends a String message to a server, with a given hostname and port.
-	 * 
-	 * @param server
-	 *            The server to which the message is to be sent.
-	 * @param message
-	 *            A String message.
-	 * @return A string sent back by the server after the message is sent.
-	 * @throws SocketTimeoutException
-	 *             If the connection with the client times out.
-	 * @throws UnknownHostException
-	 *             If the hostname cannot be located.
-	 * @throws IOException
-	 *             If there is a problem with the connection with the client.
-	 */
-	public static String send(ServerProfile server, String message)
-			throws SocketTimeoutException, UnknownHostException, IOException {
-		return send(server.getHostname(), server.getPort(), message);
-	}
-
-	/**
-	 * Sends a String message to a server, with a given hostname and port.
-	 * 
-	 * @param hostname
-	 *            The hostname of the server.
-	 * @param port
-	 *            The port to connect to on the server.
-	 * @param message
-	 *            A String message.
-	 * @return A string sent back by the server after the message is sent.
-	 * @throws SocketTimeoutException
-	 *             If the connection with the client times out.
-	 * @throws UnknownHostException
-	 *             If the hostname cannot be located.
-	 * @throws IOException
-	 *             If there is a problem with the connection with the client.
-	 */
-	public static String send(String hostname, int port, String message)
-			throws SocketTimeoutException, UnknownHostException, IOException {
-		return send(hostname, port, message.getBytes());
-	}
-
-	/**
-	 * Sends a message to a server, with a given hostname and port. The message
-	 * is contained in an array of bytes.
-	 * 
-	 * @param hostname
-	 *            The hostname of the server.
-	 * @param port
-	 *            The port to connect to on the server.
-	 * @param messageBytes
-	 *            The bytes of a message.
-	 * @return A string sent back by the server after the message is sent.
-	 * @throws SocketTimeoutException
-	 *             If the connection with the client times out.
-	 * @throws UnknownHostException
-	 *             If the hostname cannot be located.
-	 * @throws IOException
-	 *             If there is a problem with the connection with the client.
-	 */
-	public static String send(String hostname, int port, byte[] messageBytes)
-			throws SocketTimeoutException, UnknownHostException, IOException {
-		return send(hostname, port, messageBytes, messageBytes.length);
-	}
-
-	/**
-	 * Sends a message to a server, with a given hostname and port. The message
-	 * is contained in an array of bytes, and length of the message in the array
-	 * is given.
-	 * 
-	 * @param hostname
-	 *            The hostname of the server.
-	 * @param port
-	 *            The port to connect to on the server.
-	 * @param messageBytes
-	 *            The bytes of a message.
-	 * @param length
-	 *            The number of bytes of the message.
-	 * @return A string sent back by the server after the message is sent.
-	 * @throws SocketTimeoutException
-	 *             If the connection with the client times out.
-	 * @throws UnknownHostException
-	 *             If the hostname cannot be located.
-	 * @throws IOException
-	 *             If there is a problem with the connection with the client.
-	 */
-	public static String send(String hostname, int port, byte[] messageBytes,
-			int length) throws SocketTimeoutException, UnknownHostException,
-			IOException {
-		return send(hostname, port, messageBytes, 0, length);
-	}
-
-	/**
-	 * Sends a message to a server, with a given hostname and port, and attempts
-	 * to receive a confirmation that the message was received. The message is
-	 * contained in an array of bytes, and the offset and length of the message
-	 * in the array is given.
-	 * 
-	 * @param hostname
-	 *            The hostname of the server.
-	 * @param port
-	 *            The port to connect to on the server.
-	 * @param messageBytes
-	 *            The bytes of a message.
-	 * @param offset
-	 *            The index of the beginning of the message.
-	 * @param length
-	 *            The number of bytes of the message.
-	 * @return A string sent back by the server after the message is sent.
-	 * @throws SocketTimeoutException
-	 *             If the connection with the client times out.
-	 * @throws UnknownHostException
-	 *             If the hostname cannot be located.
-	 * @throws IOException
-	 *             If there is a problem with the connection with the client.
-	 */
-	public static String send(String hostname, int port, byte[] messageBytes,
-			int offset, int length) throws SocketTimeoutException,
-			UnknownHostException, IOException {
-		if(length - offset <= 0) { 
-			return "Cannot send empty string.";
-		}
-		Socket clientSocket = new Socket(hostname, port);
-		clientSocket.setSoTimeout(SO_TIMEOUT);
-		OutputStream out = clientSocket.getOutputStream();
-		out.write(messageBytes, offset, length);
-		InputStream in = clientSocket.getInputStream();
-		String messageReceived = ByteReader.read(in, length);
-		out.close();
-		in.close();
-		clientSocket.close();
-		return messageReceived;
-	}
-}
+package twit.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import twit.io.ByteReader;
+
+public class MessageSender {
+	public static final String DEFAULT_HOSTNAME = "host-os75.cs.st-andrews.ac.uk";
+	public static final int DEFAULT_PORT = 60514;
+	public static final ServerProfile DEFAULT_SERVER = new ServerProfile(
+			"os75", DEFAULT_HOSTNAME, DEFAULT_PORT);
+	// timeout after 15 seconds.
+	public static final int SO_TIMEOUT = 4000;
+
+	// caches the addresses of servers between messages.
+	private static final HostResolver RESOLVER = new HostResolver();
+
+	// threads on which asynchronous sends block on the network.
+	private static final ExecutorService IO_EXECUTOR = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "twit-io-"
+							+ count.incrementAndGet());
+					// never keep the program running just for a send.
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Get the shared executor on which asynchronous sends are run.
+	 * 
+	 * @return The I/O executor.
+	 */
+	public static Executor getIoExecutor() {
+		return IO_EXECUTOR;
+	}
+
+	/**
+	 * Get the shared resolver with which servers are connected to.
+	 * 
+	 * @return The resolver.
+	 */
+	public static HostResolver getResolver() {
+		return RESOLVER;
+	}
+
+	/**
+	 * Sends a String message to a server without blocking the calling thread.
+	 * The message is sent on the shared I/O executor.
+	 * 
+	 * @param server
+	 *            The server to which the message is to be sent. Its hostname
+	 *            and port are read immediately.
+	 * @param message
+	 *            A String message.
+	 * @return A future which completes with the server's answer, or
+	 *         exceptionally with the IOException which send would have
+	 *         thrown.
+	 * @see #send(ServerProfile, String)
+	 */
+	public static CompletableFuture<Ack> sendAsync(ServerProfile server,
+			String message) {
+		return sendAsync(server.getHostname(), server.getPort(), message);
+	}
+
+	/**
+	 * Sends a String message to a server, with a given hostname and port,
+	 * without blocking the calling thread. The message is sent on the shared
+	 * I/O executor.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port to connect to on the server.
+	 * @param message
+	 *            A String message.
+	 * @return A future which completes with the server's answer, or
+	 *         exceptionally with the IOException which send would have
+	 *         thrown.
+	 * @see #send(String, int, String)
+	 */
+	public static CompletableFuture<Ack> sendAsync(final String hostname,
+			final int port, final String message) {
+		final CompletableFuture<Ack> future = new CompletableFuture<Ack>();
+		IO_EXECUTOR.execute(new Runnable() {
+			public void run() {
+				try {
+					future.complete(new Ack(message, send(hostname, port,
+							message)));
+				} catch (IOException e) {
+					future.completeExceptionally(e);
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Sends a String message to a server, with a given hostname and port.
+	 * 
+	 * @param server
+	 *            The server to which the message is to be sent.
+	 * @param message
+	 *            A String message.
+	 * @return A string sent back by the server after the message is sent.
+	 * @throws SocketTimeoutException
+	 *             If the connection with the client times out.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be located.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the client.
+	 */
+	public static String send(ServerProfile server, String message)
+			throws SocketTimeoutException, UnknownHostException, IOException {
+		return send(server.getHostname(), server.getPort(), message);
+	}
+
+	/**
+	 * Sends a String message to a server, with a given hostname and port.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port to connect to on the server.
+	 * @param message
+	 *            A String message.
+	 * @return A string sent back by the server after the message is sent.
+	 * @throws SocketTimeoutException
+	 *             If the connection with the client times out.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be located.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the client.
+	 */
+	public static String send(String hostname, int port, String message)
+			throws SocketTimeoutException, UnknownHostException, IOException {
+		return send(hostname, port, message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Sends a message to a server, with a given hostname and port. The message
+	 * is contained in an array of bytes.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port to connect to on the server.
+	 * @param messageBytes
+	 *            The bytes of a message.
+	 * @return A string sent back by the server after the message is sent.
+	 * @throws SocketTimeoutException
+	 *             If the connection with the client times out.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be located.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the client.
+	 */
+	public static String send(String hostname, int port, byte[] messageBytes)
+			throws SocketTimeoutException, UnknownHostException, IOException {
+		return send(hostname, port, messageBytes, messageBytes.length);
+	}
+
+	/**
+	 * Sends a message to a server, with a given hostname and port. The message
+	 * is contained in an array of bytes, and length of the message in the array
+	 * is given.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port to connect to on the server.
+	 * @param messageBytes
+	 *            The bytes of a message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @return A string sent back by the server after the message is sent.
+	 * @throws SocketTimeoutException
+	 *             If the connection with the client times out.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be located.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the client.
+	 */
+	public static String send(String hostname, int port, byte[] messageBytes,
+			int length) throws SocketTimeoutException, UnknownHostException,
+			IOException {
+		return send(hostname, port, messageBytes, 0, length);
+	}
+
+	/**
+	 * Sends a message to a server, with a given hostname and port, and attempts
+	 * to receive a confirmation that the message was received. The message is
+	 * contained in an array of bytes, and the offset and length of the message
+	 * in the array is given.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port to connect to on the server.
+	 * @param messageBytes
+	 *            The bytes of a message.
+	 * @param offset
+	 *            The index of the beginning of the message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @return A string sent back by the server after the message is sent.
+	 * @throws SocketTimeoutException
+	 *             If the connection with the client times out.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be located.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the client.
+	 */
+	public static String send(String hostname, int port, byte[] messageBytes,
+			int offset, int length) throws SocketTimeoutException,
+			UnknownHostException, IOException {
+		if(length - offset <= 0) { 
+			return "Cannot send empty string.";
+		}
+		Socket clientSocket = RESOLVER.connect(hostname, port, SO_TIMEOUT);
+		clientSocket.setSoTimeout(SO_TIMEOUT);
+		OutputStream out = clientSocket.getOutputStream();
+		out.write(messageBytes, offset, length);
+		InputStream in = clientSocket.getInputStream();
+		String messageReceived = ByteReader.read(in, length);
+		out.close();
+		in.close();
+		clientSocket.close();
+		return messageReceived;
+	}
+
+	/**
+	 * Sends a message to a server as a single UDP datagram, without waiting
+	 * for an answer. The message may be lost, and the server must have been
+	 * started with datagrams turned on.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The UDP port of the server.
+	 * @param message
+	 *            A String message.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be located.
+	 * @throws IOException
+	 *             If the datagram cannot be sent.
+	 */
+	public static void sendDatagram(String hostname, int port, String message)
+			throws UnknownHostException, IOException {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		InetAddress address = RESOLVER.resolve(hostname)[0];
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			socket.send(new DatagramPacket(bytes, bytes.length, address, port));
+		} finally {
+			socket.close();
+		}
+	}
+}
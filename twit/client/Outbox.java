@@ -0,0 +1,470 @@
+package twit.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import twit.io.Protocol;
+
+/**
+ * Messages waiting to be sent to servers which could not be reached. Every
+ * message added to the outbox is first appended to a spool file, so messages
+ * survive the client being restarted. A background thread sends the waiting
+ * messages of each server in batches over one keep-alive connection, and
+ * waits longer and longer (with random jitter) before trying a server again
+ * after each failure.
+ * 
+ * The spool file is a sequence of records: ADD (id, hostname, port, message)
+ * when a message is added and DONE (id) when the server has answered it. It
+ * is rewritten with only the waiting messages once enough DONE records have
+ * accumulated. Messages are delivered at least once: a message whose reply was
+ * lost is sent again, and so is one the server could not store or turned
+ * away. Only messages the server rejects for good, as too long, empty or
+ * malformed, are dropped.
+ */
+public class Outbox {
+	private static final byte ADD = 'A';
+	private static final byte DONE = 'D';
+	// most messages sent over one connection at a time.
+	private static final int MAX_BATCH = 100;
+	private static final long MIN_BACKOFF = 500;
+	private static final long MAX_BACKOFF = 60000;
+	// rewrite the spool file after this many DONE records.
+	private static final int COMPACT_AFTER = 1000;
+
+	/**
+	 * Told what happens to messages in the outbox. Called on the outbox's
+	 * background thread.
+	 */
+	public interface Listener {
+		/**
+		 * A message has been stored by its server.
+		 * 
+		 * @param entry
+		 *            The message.
+		 */
+		void delivered(Entry entry);
+
+		/**
+		 * A server has refused a message, so it will not be sent again.
+		 * 
+		 * @param entry
+		 *            The message.
+		 * @param reply
+		 *            The error message sent by the server.
+		 */
+		void rejected(Entry entry, String reply);
+	}
+
+	/**
+	 * A message waiting in the outbox.
+	 */
+	public static class Entry {
+		private final long id;
+		private final String hostname;
+		private final int port;
+		private final String message;
+
+		Entry(long id, String hostname, int port, String message) {
+			this.id = id;
+			this.hostname = hostname;
+			this.port = port;
+			this.message = message;
+		}
+
+		public String getHostname() {
+			return hostname;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		String getKey() {
+			return hostname + ":" + port;
+		}
+	}
+
+	/**
+	 * How long to wait before trying a server again.
+	 */
+	private static class Backoff {
+		int failures;
+		long nextAttempt;
+	}
+
+	private final File spoolFile;
+	private final Listener listener;
+	// waiting messages by id, oldest first. Guarded by "this".
+	private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+	// backoff for each "hostname:port" which has failed. Guarded by "this".
+	private final Map<String, Backoff> backoffs = new HashMap<String, Backoff>();
+	private final Random random = new Random();
+	private DataOutputStream spool;
+	private long nextId;
+	private int doneRecords;
+	private volatile boolean closed;
+
+	/**
+	 * Open an outbox, sending any messages left in its spool file from an
+	 * earlier run.
+	 * 
+	 * @param spoolFile
+	 *            The file in which waiting messages are kept.
+	 * @param listener
+	 *            Told when messages are delivered or rejected.
+	 * @throws IOException
+	 *             If the spool file cannot be read or written.
+	 */
+	public Outbox(File spoolFile, Listener listener) throws IOException {
+		this.spoolFile = spoolFile;
+		this.listener = listener;
+		load();
+		compact();
+		Thread flusher = new Thread(new Runnable() {
+			public void run() {
+				flushUntilClosed();
+			}
+		}, "outbox-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Add a message to the outbox. Once this method returns, the message is
+	 * in the spool file.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port of the server.
+	 * @param message
+	 *            The message.
+	 * @return The entry for the message.
+	 * @throws IOException
+	 *             If the message cannot be written to the spool file.
+	 */
+	public synchronized Entry add(String hostname, int port, String message)
+			throws IOException {
+		Entry entry = new Entry(nextId++, hostname, port, message);
+		writeAdd(spool, entry);
+		spool.flush();
+		pending.put(entry.id, entry);
+		notifyAll();
+		return entry;
+	}
+
+	/**
+	 * Get the number of messages waiting to be sent.
+	 * 
+	 * @return The number of messages in the outbox.
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Stop sending messages and close the spool file. Waiting messages stay in
+	 * the file and are sent when the outbox is next opened.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+		try {
+			spool.close();
+		} catch (IOException e) {
+			// nothing more can be done.
+		}
+	}
+
+	/**
+	 * Read the spool file, if there is one. A record cut short by the client
+	 * being killed while writing it is ignored.
+	 */
+	private void load() throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(spoolFile)));
+		} catch (FileNotFoundException e) {
+			return;
+		}
+		try {
+			while (true) {
+				byte type = in.readByte();
+				long id = in.readLong();
+				if (type == ADD) {
+					String hostname = in.readUTF();
+					int port = in.readInt();
+					String message = in.readUTF();
+					pending.put(id, new Entry(id, hostname, port, message));
+				} else if (type == DONE) {
+					pending.remove(id);
+				} else {
+					throw new IOException("Corrupt outbox file: "
+							+ spoolFile.getAbsolutePath());
+				}
+				nextId = Math.max(nextId, id + 1);
+			}
+		} catch (EOFException e) {
+			// end of the file, or of the last complete record.
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Rewrite the spool file so it contains only the waiting messages, and
+	 * open it for appending. The new file is written beside the old one and
+	 * moved over it in one step, so a crash leaves one or the other. Must be
+	 * called while holding the lock on this outbox, or from the constructor.
+	 */
+	private void compact() throws IOException {
+		if (spool != null)
+			spool.close();
+		File temp = new File(spoolFile.getPath() + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				file));
+		try {
+			for (Entry entry : pending.values()) {
+				writeAdd(out, entry);
+			}
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+		// the old spool stays in place until the new one replaces it whole.
+		Files.move(temp.toPath(), spoolFile.toPath(),
+				StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		spool = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(spoolFile, true)));
+		doneRecords = 0;
+	}
+
+	private static void writeAdd(DataOutputStream out, Entry entry)
+			throws IOException {
+		out.writeByte(ADD);
+		out.writeLong(entry.id);
+		out.writeUTF(entry.hostname);
+		out.writeInt(entry.port);
+		out.writeUTF(entry.message);
+	}
+
+	/**
+	 * Remove an answered message from the outbox.
+	 * 
+	 * @param entry
+	 *            The message.
+	 */
+	private synchronized void done(Entry entry) {
+		if (closed || pending.remove(entry.id) == null)
+			return;
+		try {
+			spool.writeByte(DONE);
+			spool.writeLong(entry.id);
+			spool.flush();
+			if (++doneRecords >= COMPACT_AFTER)
+				compact();
+		} catch (IOException e) {
+			// the message may be sent again after a restart.
+			System.out.println("Could not update outbox file: " + e);
+		}
+	}
+
+	/**
+	 * Send batches of waiting messages until the outbox is closed.
+	 */
+	private void flushUntilClosed() {
+		while (!closed) {
+			List<Entry> batch;
+			try {
+				batch = nextBatch();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (batch != null)
+				deliver(batch);
+		}
+	}
+
+	/**
+	 * Wait until there are messages for a server which may be tried now, and
+	 * take up to MAX_BATCH of them, oldest first.
+	 * 
+	 * @return The batch, or null if the outbox has been closed.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	private synchronized List<Entry> nextBatch() throws InterruptedException {
+		while (!closed) {
+			long now = System.currentTimeMillis();
+			long wakeUp = Long.MAX_VALUE;
+			String key = null;
+			for (Entry entry : pending.values()) {
+				Backoff backoff = backoffs.get(entry.getKey());
+				if (backoff == null || backoff.nextAttempt <= now) {
+					key = entry.getKey();
+					break;
+				}
+				wakeUp = Math.min(wakeUp, backoff.nextAttempt);
+			}
+			if (key != null) {
+				List<Entry> batch = new ArrayList<Entry>();
+				Iterator<Entry> it = pending.values().iterator();
+				while (it.hasNext() && batch.size() < MAX_BATCH) {
+					Entry entry = it.next();
+					if (entry.getKey().equals(key))
+						batch.add(entry);
+				}
+				return batch;
+			}
+			if (wakeUp == Long.MAX_VALUE) {
+				wait();
+			} else {
+				wait(wakeUp - now);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Send a batch of messages to their server, over one connection.
+	 * Messages answered before a failure are not sent again.
+	 * 
+	 * @param batch
+	 *            Messages for the same server.
+	 */
+	private void deliver(List<Entry> batch) {
+		Entry first = batch.get(0);
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (Entry entry : batch) {
+			messages.add(entry.message.getBytes(StandardCharsets.UTF_8));
+		}
+		try {
+			Connection connection;
+			try {
+				connection = new Connection(first.hostname, first.port,
+						true);
+			} catch (ProtocolException e) {
+				if (deliverOneByOne(batch)) {
+					succeeded(first.getKey());
+				} else {
+					failed(first.getKey());
+				}
+				return;
+			}
+			boolean retry = false;
+			try {
+				connection.writeMessages(messages);
+				for (Entry entry : batch) {
+					if (!answered(entry, connection.readAck(entry.message)))
+						retry = true;
+				}
+			} finally {
+				connection.close();
+			}
+			if (retry) {
+				failed(first.getKey());
+			} else {
+				succeeded(first.getKey());
+			}
+		} catch (IOException e) {
+			failed(first.getKey());
+		}
+	}
+
+	/**
+	 * Send a batch of messages to a server which does not support keep-alive
+	 * connections, stopping at the first one to be sent again.
+	 * 
+	 * @return false if a message is to be sent again.
+	 */
+	private boolean deliverOneByOne(List<Entry> batch) throws IOException {
+		for (Entry entry : batch) {
+			if (!answered(entry, new Ack(entry.message, MessageSender.send(
+					entry.hostname, entry.port, entry.message))))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Deal with the server's answer to a message. A message the server could
+	 * not store, or turned away, stays in the outbox.
+	 * 
+	 * @return false if the message is to be sent again.
+	 */
+	private boolean answered(Entry entry, Ack ack) {
+		if (!ack.isSuccess() && !isRejectedForGood(ack))
+			return false;
+		done(entry);
+		if (listener == null)
+			return true;
+		if (ack.isSuccess()) {
+			listener.delivered(entry);
+		} else {
+			listener.rejected(entry, ack.getReply());
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether the server rejected a message for what it is, rather
+	 * than because it could not take it just then. A server which does not
+	 * support keep-alive connections only rejects messages as too long.
+	 */
+	private static boolean isRejectedForGood(Ack ack) {
+		int status = ack.getStatus();
+		if (status == -1)
+			return ack.getReply().equals(Protocol.LEGACY_TOO_LONG_REPLY);
+		return status == Protocol.TOO_LONG || status == Protocol.EMPTY
+				|| status == Protocol.MALFORMED;
+	}
+
+	private synchronized void succeeded(String key) {
+		backoffs.remove(key);
+	}
+
+	/**
+	 * Schedule the next attempt for a server after a failure: the delay
+	 * doubles with each failure up to MAX_BACKOFF, and is then randomly
+	 * spread between half and one and a half times that.
+	 */
+	private synchronized void failed(String key) {
+		Backoff backoff = backoffs.get(key);
+		if (backoff == null) {
+			backoff = new Backoff();
+			backoffs.put(key, backoff);
+		}
+		long delay = MIN_BACKOFF << Math.min(backoff.failures, 16);
+		delay = Math.min(delay, MAX_BACKOFF);
+		delay = delay / 2 + (long) (random.nextDouble() * delay);
+		backoff.failures++;
+		backoff.nextAttempt = System.currentTimeMillis() + delay;
+	}
+}
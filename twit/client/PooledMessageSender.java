@@ -0,0 +1,226 @@
+package twit.client;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Sends messages over keep-alive connections which are kept open between
+ * messages, one pool of connections per server. Consecutive messages to the
+ * same server therefore do not pay for setting up a new connection.
+ * 
+ * Idle connections are closed after IDLE_TIMEOUT milliseconds, which is less
+ * than the time the server keeps an idle connection open. A connection which
+ * has been idle for more than HEALTH_CHECK_AFTER milliseconds is pinged before
+ * it is reused. If a reused connection turns out to have been closed by the
+ * server, before any of the reply arrived, the message is sent again over a
+ * new connection; it is then only stored twice if the server stored it and
+ * failed before replying. Any other failure, such as a time out while a slow
+ * server stores the message, is passed on rather than retried. Messages to
+ * servers which do not support keep-alive connections, as remembered by
+ * Connection, are sent with MessageSender.send instead.
+ */
+public class PooledMessageSender {
+	public static final long IDLE_TIMEOUT = 10000;
+	public static final long HEALTH_CHECK_AFTER = 1000;
+	// idle connections kept per server.
+	private static final int MAX_IDLE_PER_SERVER = 8;
+
+	// idle connections for each "hostname:port".
+	private final Map<String, Deque<Connection>> idle = new HashMap<String, Deque<Connection>>();
+	private final Timer evictionTimer = new Timer("connection-eviction", true);
+
+	/**
+	 * Create a new PooledMessageSender, with a background timer which closes
+	 * connections that have been idle for too long.
+	 */
+	public PooledMessageSender() {
+		evictionTimer.schedule(new TimerTask() {
+			public void run() {
+				evictIdle();
+			}
+		}, IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2);
+	}
+
+	/**
+	 * Sends a String message to a server.
+	 * 
+	 * @param server
+	 *            The server to which the message is to be sent.
+	 * @param message
+	 *            A String message.
+	 * @return A string sent back by the server after the message is sent.
+	 * @throws SocketTimeoutException
+	 *             If the connection with the server times out.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be located.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the server.
+	 * @see MessageSender#send(ServerProfile, String)
+	 */
+	public String send(ServerProfile server, String message)
+			throws SocketTimeoutException, UnknownHostException, IOException {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		return send(server.getHostname(), server.getPort(), bytes, 0,
+				bytes.length);
+	}
+
+	/**
+	 * Sends a message to a server, with a given hostname and port, reusing an
+	 * idle connection to the server if there is one.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port to connect to on the server.
+	 * @param messageBytes
+	 *            The bytes of a message.
+	 * @param offset
+	 *            The index of the beginning of the message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @return A string sent back by the server after the message is sent.
+	 * @throws SocketTimeoutException
+	 *             If the connection with the server times out.
+	 * @throws UnknownHostException
+	 *             If the hostname cannot be located.
+	 * @throws IOException
+	 *             If there is a problem with the connection with the server.
+	 */
+	public String send(String hostname, int port, byte[] messageBytes,
+			int offset, int length) throws SocketTimeoutException,
+			UnknownHostException, IOException {
+		if (length <= 0) {
+			return "Cannot send empty string.";
+		}
+		String key = hostname + ":" + port;
+		if (Connection.isLegacyServer(hostname, port))
+			return MessageSender.send(hostname, port, messageBytes, offset,
+					length);
+		Connection connection = borrow(key);
+		if (connection != null) {
+			try {
+				String reply = connection.send(messageBytes, offset, length);
+				release(key, connection);
+				return reply;
+			} catch (ConnectionClosedException e) {
+				// closed by the server in the meantime; use a new connection.
+				connection.close();
+			} catch (IOException e) {
+				connection.close();
+				throw e;
+			}
+		}
+		try {
+			connection = new Connection(hostname, port);
+		} catch (ProtocolException e) {
+			return MessageSender.send(hostname, port, messageBytes, offset,
+					length);
+		}
+		try {
+			String reply = connection.send(messageBytes, offset, length);
+			release(key, connection);
+			return reply;
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Take an idle connection to a server out of the pool, checking that it
+	 * still works if it has been idle for a while.
+	 * 
+	 * @param key
+	 *            "hostname:port" of the server.
+	 * @return A connection, or null if there is no usable idle connection.
+	 */
+	private Connection borrow(String key) {
+		while (true) {
+			Connection connection;
+			synchronized (idle) {
+				Deque<Connection> connections = idle.get(key);
+				if (connections == null || connections.isEmpty())
+					return null;
+				connection = connections.pollFirst();
+			}
+			long idleTime = System.currentTimeMillis()
+					- connection.getLastUsed();
+			if (idleTime >= IDLE_TIMEOUT) {
+				connection.close();
+			} else if (idleTime >= HEALTH_CHECK_AFTER && !connection.ping()) {
+				connection.close();
+			} else {
+				return connection;
+			}
+		}
+	}
+
+	/**
+	 * Put a connection back in the pool, or close it if the pool is full.
+	 * 
+	 * @param key
+	 *            "hostname:port" of the server.
+	 * @param connection
+	 *            A working connection to the server.
+	 */
+	private void release(String key, Connection connection) {
+		synchronized (idle) {
+			Deque<Connection> connections = idle.get(key);
+			if (connections == null) {
+				connections = new ArrayDeque<Connection>();
+				idle.put(key, connections);
+			}
+			if (connections.size() < MAX_IDLE_PER_SERVER) {
+				// most recently used first, so the oldest ones expire.
+				connections.addFirst(connection);
+				return;
+			}
+		}
+		connection.close();
+	}
+
+	/**
+	 * Close every connection which has been idle for longer than
+	 * IDLE_TIMEOUT.
+	 */
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		synchronized (idle) {
+			for (Deque<Connection> connections : idle.values()) {
+				Iterator<Connection> it = connections.iterator();
+				while (it.hasNext()) {
+					Connection connection = it.next();
+					if (now - connection.getLastUsed() >= IDLE_TIMEOUT) {
+						it.remove();
+						connection.close();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close every idle connection and stop the eviction timer.
+	 */
+	public void close() {
+		evictionTimer.cancel();
+		synchronized (idle) {
+			for (Deque<Connection> connections : idle.values()) {
+				for (Connection connection : connections) {
+					connection.close();
+				}
+			}
+			idle.clear();
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package twit.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+import javax.swing.ComboBoxModel;
+
+/**
+ * A ComboBoxModel showing the profiles in a ProfileStore, optionally only
+ * those whose name or hostname contains a filter string. Nothing is copied
+ * when there is no filter, the store is only scanned when the filter changes,
+ * and changes to the store are passed on to the combo box one profile at a
+ * time, so the model stays cheap with very many profiles.
+ */
+@SuppressWarnings("serial")
+public class ProfileComboBoxModel extends AbstractListModel<ServerProfile>
+		implements ComboBoxModel<ServerProfile>, ProfileStore.Listener {
+	private final ProfileStore store;
+	// lower case; empty if every profile is shown.
+	private String filter = "";
+	// indices in the store of the profiles shown, or null if there is no
+	// filter.
+	private int[] matches;
+	private int matchCount;
+	private Object selected;
+	// the index in the store of the selected profile, or -1 if there is none.
+	private int selectedIndex = -1;
+
+	/**
+	 * Create a model of every profile in a store.
+	 * 
+	 * @param store
+	 *            The profiles.
+	 */
+	public ProfileComboBoxModel(ProfileStore store) {
+		this.store = store;
+		store.addListener(this);
+		if (store.size() > 0)
+			select(0);
+	}
+
+	/**
+	 * Only show profiles whose name or hostname contains a string, ignoring
+	 * case. If the selected profile is no longer shown, the first one shown is
+	 * selected.
+	 * 
+	 * @param filter
+	 *            The string, or an empty string to show every profile.
+	 */
+	public void setFilter(String filter) {
+		String lower = filter.trim().toLowerCase();
+		if (lower.equals(this.filter))
+			return;
+		this.filter = lower;
+		refilter();
+		if (!isShown(selectedIndex))
+			select(getSize() > 0 ? getStoreIndex(0) : -1);
+		fireContentsChanged(this, -1, -1);
+	}
+
+	/**
+	 * Get some of the profiles shown.
+	 * 
+	 * @param max
+	 *            The most profiles to be returned.
+	 * @return The first max profiles shown.
+	 */
+	public List<ServerProfile> getShown(int max) {
+		int count = Math.min(max, getSize());
+		List<ServerProfile> shown = new ArrayList<ServerProfile>(count);
+		for (int i = 0; i < count; i++) {
+			shown.add(getElementAt(i));
+		}
+		return shown;
+	}
+
+	private void refilter() {
+		if (filter.length() == 0) {
+			matches = null;
+			matchCount = 0;
+			return;
+		}
+		int[] found = new int[16];
+		int count = 0;
+		for (int i = 0; i < store.size(); i++) {
+			if (isMatch(store.get(i))) {
+				if (count == found.length)
+					found = Arrays.copyOf(found, count * 2);
+				found[count++] = i;
+			}
+		}
+		matches = found;
+		matchCount = count;
+	}
+
+	private boolean isMatch(ServerProfile profile) {
+		return profile.getProfileName().toLowerCase().contains(filter)
+				|| profile.getHostname().toLowerCase().contains(filter);
+	}
+
+	public int getSize() {
+		return matches == null ? store.size() : matchCount;
+	}
+
+	public ServerProfile getElementAt(int index) {
+		return store.get(getStoreIndex(index));
+	}
+
+	public Object getSelectedItem() {
+		return selected;
+	}
+
+	public void setSelectedItem(Object item) {
+		if (item == selected)
+			return;
+		selected = item;
+		selectedIndex = store.getProfiles().indexOf(item);
+		fireContentsChanged(this, -1, -1);
+	}
+
+	/**
+	 * Select a profile by its index in the store.
+	 * 
+	 * @param index
+	 *            The index, or -1 to select nothing.
+	 */
+	private void select(int index) {
+		Object item = index == -1 ? null : store.get(index);
+		selectedIndex = index;
+		if (item == selected)
+			return;
+		selected = item;
+		fireContentsChanged(this, -1, -1);
+	}
+
+	public void added(int index) {
+		if (matches == null) {
+			fireIntervalAdded(this, index, index);
+		} else if (isMatch(store.get(index))) {
+			// profiles are only added at the end, after every match.
+			insertMatch(matchCount, index);
+			fireIntervalAdded(this, matchCount - 1, matchCount - 1);
+		}
+		if (selected == null)
+			select(index);
+	}
+
+	public void changed(int index) {
+		if (matches == null) {
+			fireContentsChanged(this, index, index);
+		} else {
+			int position = Arrays.binarySearch(matches, 0, matchCount, index);
+			boolean match = isMatch(store.get(index));
+			if (position >= 0 && match) {
+				fireContentsChanged(this, position, position);
+			} else if (position >= 0) {
+				removeMatch(position);
+				fireIntervalRemoved(this, position, position);
+			} else if (match) {
+				position = -position - 1;
+				insertMatch(position, index);
+				fireIntervalAdded(this, position, position);
+			}
+		}
+		// keep the replaced profile selected, unless it is no longer shown.
+		if (index == selectedIndex)
+			select(isShown(index) ? index : getSize() > 0 ? getStoreIndex(0)
+					: -1);
+	}
+
+	public void removed(int index) {
+		// where the profile after the one removed is now shown.
+		int next = index;
+		if (matches == null) {
+			fireIntervalRemoved(this, index, index);
+		} else {
+			int position = Arrays.binarySearch(matches, 0, matchCount, index);
+			int later = position >= 0 ? position + 1 : -position - 1;
+			// profiles after the one removed have moved up one place.
+			for (int i = later; i < matchCount; i++) {
+				matches[i]--;
+			}
+			if (position >= 0) {
+				removeMatch(position);
+				fireIntervalRemoved(this, position, position);
+			}
+			next = later - 1;
+		}
+		if (selectedIndex > index) {
+			selectedIndex--;
+		} else if (selectedIndex == index) {
+			int size = getSize();
+			select(size > 0 ? getStoreIndex(Math.min(next, size - 1)) : -1);
+		}
+	}
+
+	private void insertMatch(int position, int index) {
+		if (matchCount == matches.length)
+			matches = Arrays.copyOf(matches, matchCount * 2 + 1);
+		System.arraycopy(matches, position, matches, position + 1, matchCount
+				- position);
+		matches[position] = index;
+		matchCount++;
+	}
+
+	private void removeMatch(int position) {
+		System.arraycopy(matches, position + 1, matches, position, matchCount
+				- position - 1);
+		matchCount--;
+	}
+
+	/**
+	 * Get the index in the store of a profile shown.
+	 */
+	private int getStoreIndex(int position) {
+		return matches == null ? position : matches[position];
+	}
+
+	/**
+	 * Tells whether the profile at an index in the store is shown.
+	 */
+	private boolean isShown(int index) {
+		if (index < 0)
+			return false;
+		return matches == null
+				|| Arrays.binarySearch(matches, 0, matchCount, index) >= 0;
+	}
+}
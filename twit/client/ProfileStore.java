@@ -0,0 +1,390 @@
+package twit.client;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The list of server profiles, kept in a file. Changes are not saved by
+ * rewriting the whole file but by appending a line to a journal next to it,
+ * so adding, editing or deleting a profile costs the same however many
+ * profiles there are. Once the journal holds COMPACT_AFTER changes (or more
+ * changes than there are profiles) the profiles are written to the file
+ * again and the journal is emptied.
+ * 
+ * The profile file starts with a line "G;generation", followed by one
+ * ServerProfile.toLine() per line. The generation goes up by one every time
+ * the file is written. The journal starts with the generation of the file it
+ * extends, and each further line is one of "A;profile" (profile added at the
+ * end), "S;index;profile" (profile at index replaced) or "D;index" (profile
+ * at index deleted). A journal of another generation is left from a crash
+ * after the file was written but before the journal was emptied, and is
+ * ignored, as its changes are already in the file. A line cut short by the
+ * client being killed is ignored too. Files written before there were
+ * generations have no "G;" line, and count as generation 0.
+ * 
+ * A ProfileStore is not thread safe; GUIClient only uses it on the event
+ * dispatch thread.
+ */
+public class ProfileStore {
+	private static final int COMPACT_AFTER = 1000;
+
+	/**
+	 * Told about every change to the profiles, after it has been made.
+	 */
+	public interface Listener {
+		void added(int index);
+
+		void changed(int index);
+
+		void removed(int index);
+	}
+
+	private final File file;
+	private final File journalFile;
+	// true if the files are only read, never written.
+	private final boolean readOnly;
+	private final List<ServerProfile> profiles = new ArrayList<ServerProfile>();
+	private final List<Listener> listeners = new ArrayList<Listener>();
+	private PrintWriter journal;
+	private int journalEntries;
+	// the generation of the profile file.
+	private long generation;
+	// true if the journal belongs to another generation of the file.
+	private boolean staleJournal;
+
+	/**
+	 * Create an empty store which is not kept in any file, for when the
+	 * profile file cannot be read.
+	 */
+	public ProfileStore() {
+		this.file = null;
+		this.journalFile = null;
+		this.readOnly = false;
+	}
+
+	/**
+	 * Load the profiles from a file and its journal. Missing files count as
+	 * empty.
+	 * 
+	 * @param file
+	 *            The profile file. The journal is the same file with
+	 *            ".journal" added to its name.
+	 * @throws IOException
+	 *             If the files cannot be read, or the journal cannot be
+	 *             opened for appending.
+	 */
+	public ProfileStore(File file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Load the profiles from a file and its journal, optionally without
+	 * opening either for writing, for a program which only looks profiles up
+	 * while GUIClient may be changing them. Missing files count as empty.
+	 * 
+	 * @param file
+	 *            The profile file. The journal is the same file with
+	 *            ".journal" added to its name.
+	 * @param readOnly
+	 *            If true, the files are never written, and every change to the
+	 *            profiles fails with an IOException.
+	 * @throws IOException
+	 *             If the files cannot be read, or the journal of a store
+	 *             which is not read-only cannot be opened for appending.
+	 */
+	public ProfileStore(File file, boolean readOnly) throws IOException {
+		this.file = file;
+		this.journalFile = new File(file.getPath() + ".journal");
+		this.readOnly = readOnly;
+		load();
+		replayJournal();
+		if (readOnly)
+			return;
+		if (staleJournal || journalEntries >= COMPACT_AFTER)
+			compact();
+		else
+			openJournal();
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public int size() {
+		return profiles.size();
+	}
+
+	public ServerProfile get(int index) {
+		return profiles.get(index);
+	}
+
+	/**
+	 * Get every profile, in order.
+	 * 
+	 * @return A read-only view of the profiles, which changes with the store.
+	 */
+	public List<ServerProfile> getProfiles() {
+		return Collections.unmodifiableList(profiles);
+	}
+
+	/**
+	 * Add a profile at the end of the list.
+	 * 
+	 * @param profile
+	 *            The profile to be added.
+	 * @throws IOException
+	 *             If the change cannot be saved. The profile is added anyway.
+	 */
+	public void add(ServerProfile profile) throws IOException {
+		profiles.add(profile);
+		for (Listener listener : listeners) {
+			listener.added(profiles.size() - 1);
+		}
+		record("A;" + profile.toLine());
+	}
+
+	/**
+	 * Replace a profile.
+	 * 
+	 * @param index
+	 *            The index of the profile to be replaced.
+	 * @param profile
+	 *            The new profile.
+	 * @throws IOException
+	 *             If the change cannot be saved. The profile is replaced
+	 *             anyway.
+	 */
+	public void set(int index, ServerProfile profile) throws IOException {
+		profiles.set(index, profile);
+		for (Listener listener : listeners) {
+			listener.changed(index);
+		}
+		record("S;" + index + ";" + profile.toLine());
+	}
+
+	/**
+	 * Delete a profile.
+	 * 
+	 * @param index
+	 *            The index of the profile to be deleted.
+	 * @throws IOException
+	 *             If the change cannot be saved. The profile is deleted
+	 *             anyway.
+	 */
+	public void remove(int index) throws IOException {
+		profiles.remove(index);
+		for (Listener listener : listeners) {
+			listener.removed(index);
+		}
+		record("D;" + index);
+	}
+
+	/**
+	 * Write every profile to the profile file, as the next generation, and
+	 * start a new journal. The new file is written next to the old one and
+	 * moved over it in one step, so a crash leaves either the old profiles
+	 * and their journal, or the new profiles and a journal of the old
+	 * generation, which is ignored.
+	 * 
+	 * @throws IOException
+	 *             If the profiles cannot be written, or the store is
+	 *             read-only.
+	 */
+	public void compact() throws IOException {
+		if (file == null)
+			return;
+		if (readOnly)
+			throw new IOException("The profile store is read-only.");
+		if (journal != null)
+			journal.close();
+		long next = generation + 1;
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temp);
+		PrintWriter out = new PrintWriter(new BufferedWriter(
+				new OutputStreamWriter(stream)));
+		try {
+			out.println("G;" + next);
+			for (ServerProfile profile : profiles) {
+				out.println(profile.toLine());
+			}
+			out.flush();
+			if (out.checkError())
+				throw new IOException("Could not write "
+						+ temp.getAbsolutePath());
+			stream.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		generation = next;
+		staleJournal = false;
+		journal = new PrintWriter(new BufferedWriter(new FileWriter(
+				journalFile)));
+		journal.println("G;" + generation);
+		journal.flush();
+		journalEntries = 0;
+	}
+
+	/**
+	 * Close the journal. Nothing needs to be written, as every change has
+	 * already been saved.
+	 */
+	public void close() {
+		if (journal != null)
+			journal.close();
+		journal = null;
+	}
+
+	/**
+	 * Append a change to the journal, compacting it if it has grown too long.
+	 */
+	private void record(String entry) throws IOException {
+		if (file == null)
+			return;
+		if (readOnly)
+			throw new IOException("The profile store is read-only.");
+		if (journal == null)
+			throw new IOException("The profile store is closed.");
+		journal.println(entry);
+		journal.flush();
+		if (journal.checkError())
+			throw new IOException("Could not write "
+					+ journalFile.getAbsolutePath());
+		journalEntries++;
+		if (journalEntries >= COMPACT_AFTER
+				|| journalEntries > profiles.size())
+			compact();
+	}
+
+	private void load() throws IOException {
+		BufferedReader in;
+		try {
+			in = new BufferedReader(new FileReader(file));
+		} catch (FileNotFoundException e) {
+			return;
+		}
+		try {
+			String line = in.readLine();
+			long header = parseGeneration(line);
+			if (header != -1) {
+				generation = header;
+				line = in.readLine();
+			}
+			for (; line != null; line = in.readLine()) {
+				ServerProfile profile = ServerProfile.fromLine(line);
+				if (profile != null)
+					profiles.add(profile);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void replayJournal() throws IOException {
+		BufferedReader in;
+		try {
+			in = new BufferedReader(new FileReader(journalFile));
+		} catch (FileNotFoundException e) {
+			return;
+		}
+		int ignored = 0;
+		try {
+			String line = in.readLine();
+			if (line == null)
+				return;
+			long header = parseGeneration(line);
+			if (header == -1 ? generation != 0 : header != generation) {
+				staleJournal = true;
+				System.out.println("Ignored " + journalFile
+						+ ", which was written before the profiles were"
+						+ " last saved.");
+				return;
+			}
+			if (header != -1)
+				line = in.readLine();
+			for (; line != null; line = in.readLine()) {
+				if (apply(line))
+					journalEntries++;
+				else
+					ignored++;
+			}
+		} finally {
+			in.close();
+		}
+		if (ignored > 0)
+			System.out.println("Ignored " + ignored + " line(s) of "
+					+ journalFile + " which could not be applied.");
+	}
+
+	/**
+	 * Read a "G;generation" line.
+	 * 
+	 * @return The generation, or -1 if the line is not one.
+	 */
+	private static long parseGeneration(String line) {
+		if (line == null || !line.startsWith("G;"))
+			return -1;
+		try {
+			return Long.parseLong(line.substring(2));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Apply one line of the journal to the profiles.
+	 * 
+	 * @return false if the line is not a valid change.
+	 */
+	private boolean apply(String line) {
+		try {
+			if (line.startsWith("A;")) {
+				ServerProfile profile = ServerProfile.fromLine(line
+						.substring(2));
+				if (profile == null)
+					return false;
+				profiles.add(profile);
+			} else if (line.startsWith("S;")) {
+				int separator = line.indexOf(';', 2);
+				int index = Integer.parseInt(line.substring(2, separator));
+				ServerProfile profile = ServerProfile.fromLine(line
+						.substring(separator + 1));
+				if (profile == null)
+					return false;
+				profiles.set(index, profile);
+			} else if (line.startsWith("D;")) {
+				profiles.remove(Integer.parseInt(line.substring(2)));
+			} else {
+				return false;
+			}
+			return true;
+		} catch (RuntimeException e) {
+			// a line cut short, or an index which does not exist.
+			return false;
+		}
+	}
+
+	private void openJournal() throws IOException {
+		journal = new PrintWriter(new BufferedWriter(new FileWriter(
+				journalFile, true)));
+	}
+}
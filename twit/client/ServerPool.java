@@ -0,0 +1,513 @@
+package twit.client;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A group of servers which all accept the same messages. Each message is sent
+ * to the fastest healthy server, and to the next one if that fails.
+ * 
+ * Every PROBE_INTERVAL milliseconds each server is probed in the background:
+ * its keep-alive connection is pinged (measuring the round trip to the
+ * server), and opened first if there is none (measuring the connect time).
+ * The connection is then kept open, which the probes keep the server from
+ * closing as idle, and messages are sent over it, so a message usually costs
+ * a single round trip and also updates the time the server takes to answer.
+ * A server which does not support keep-alive connections is probed by
+ * connecting to it only, and the whole time a message to it takes counts as
+ * its connect time. Probes and sends
+ * both update an exponentially weighted moving average of the error rate. A
+ * server which fails EJECT_AFTER times in a row, or whose error rate gets too
+ * high, is ejected: it is only used when every server is ejected, until its
+ * cooldown has passed. The cooldown doubles each time a server is ejected
+ * again soon after coming back, so a flapping server stays out for longer.
+ */
+public class ServerPool {
+	public static final long PROBE_INTERVAL = 5000;
+	// weight of the newest sample in the moving averages.
+	private static final double ALPHA = 0.3;
+	private static final int EJECT_AFTER = 3;
+	private static final double EJECT_ERROR_RATE = 0.5;
+	private static final long MIN_COOLDOWN = 10000;
+	private static final long MAX_COOLDOWN = 300000;
+
+	/**
+	 * What is known about the health of one server. Guarded by the lock on the
+	 * pool.
+	 */
+	public static class Health {
+		private final ServerProfile server;
+		// -1 until measured.
+		private double connectMillis = -1;
+		private double ackMillis = -1;
+		private double errorRate;
+		private int consecutiveFailures;
+		private int ejections;
+		private long ejectedUntil;
+		private long lastEjected;
+		// an idle keep-alive connection to the server, or null.
+		private Connection warm;
+
+		Health(ServerProfile server) {
+			this.server = server;
+		}
+
+		public ServerProfile getServer() {
+			return server;
+		}
+
+		/**
+		 * Get the average time to connect and shake hands.
+		 * 
+		 * @return Milliseconds, or -1 if the server has not been probed yet.
+		 */
+		public double getConnectMillis() {
+			return connectMillis;
+		}
+
+		/**
+		 * Get the average time for the server to answer a ping or a message.
+		 * 
+		 * @return Milliseconds, or -1 if the server has not answered one yet.
+		 */
+		public double getAckMillis() {
+			return ackMillis;
+		}
+
+		/**
+		 * Get the moving average of the error rate.
+		 * 
+		 * @return A number between 0 and 1.
+		 */
+		public double getErrorRate() {
+			return errorRate;
+		}
+
+		/**
+		 * Tells whether or not the server is ejected at a given time.
+		 * 
+		 * @param now
+		 *            Milliseconds since the epoch.
+		 * @return true if the server should not be used.
+		 */
+		public boolean isEjected(long now) {
+			return now < ejectedUntil;
+		}
+
+		/**
+		 * Estimate how long a message to the server would take. Servers which
+		 * have not been probed are assumed to be slow rather than fast, and
+		 * errors count as timeouts.
+		 * 
+		 * @return The estimate in milliseconds.
+		 */
+		double score() {
+			double connect = connectMillis < 0 ? MessageSender.SO_TIMEOUT / 2
+					: connectMillis;
+			double ack = ackMillis < 0 ? 0 : ackMillis;
+			return connect + ack + errorRate * MessageSender.SO_TIMEOUT;
+		}
+
+		private void succeeded() {
+			consecutiveFailures = 0;
+			errorRate = (1 - ALPHA) * errorRate;
+		}
+
+		private void failed(long now) {
+			consecutiveFailures++;
+			errorRate = (1 - ALPHA) * errorRate + ALPHA;
+			if (isEjected(now))
+				return;
+			if (consecutiveFailures >= EJECT_AFTER
+					|| errorRate >= EJECT_ERROR_RATE) {
+				// forgive servers which have been fine for a long time.
+				if (now - lastEjected > 2 * MAX_COOLDOWN)
+					ejections = 0;
+				long cooldown = MIN_COOLDOWN << Math.min(ejections, 16);
+				cooldown = Math.min(cooldown, MAX_COOLDOWN);
+				ejections++;
+				lastEjected = now;
+				ejectedUntil = now + cooldown;
+			}
+		}
+
+		private static double average(double average, double sample) {
+			return average < 0 ? sample : (1 - ALPHA) * average + ALPHA
+					* sample;
+		}
+
+		/**
+		 * Describe the health of the server on one line.
+		 * 
+		 * @return A description.
+		 */
+		public String format() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(server.getProfileName()).append(": ");
+			if (connectMillis < 0) {
+				sb.append("not probed");
+			} else {
+				sb.append(String.format("connect %.1f ms, ack %.1f ms",
+						connectMillis, ackMillis < 0 ? 0.0 : ackMillis));
+			}
+			sb.append(String.format(", errors %.0f%%", errorRate * 100));
+			long now = System.currentTimeMillis();
+			if (isEjected(now))
+				sb.append(", ejected for ")
+						.append((ejectedUntil - now + 999) / 1000)
+						.append(" s");
+			return sb.toString();
+		}
+	}
+
+	// guarded by "this".
+	private List<Health> servers = new ArrayList<Health>();
+	private final Timer probeTimer = new Timer("server-probe", true);
+	// guarded by "this".
+	private boolean closed;
+
+	/**
+	 * Create a pool of servers and start probing them.
+	 * 
+	 * @param servers
+	 *            The servers in the pool.
+	 */
+	public ServerPool(List<ServerProfile> servers) {
+		setServers(servers);
+		probeTimer.schedule(new TimerTask() {
+			public void run() {
+				probeAll();
+			}
+		}, 0, PROBE_INTERVAL);
+	}
+
+	/**
+	 * Replace the servers in the pool. What is known about servers which stay
+	 * in the pool is kept.
+	 * 
+	 * @param profiles
+	 *            The servers in the pool.
+	 */
+	public synchronized void setServers(List<ServerProfile> profiles) {
+		List<Health> updated = new ArrayList<Health>();
+		for (ServerProfile profile : profiles) {
+			Health health = null;
+			for (Health old : servers) {
+				if (old.server == profile)
+					health = old;
+			}
+			updated.add(health == null ? new Health(profile) : health);
+		}
+		for (Health old : servers) {
+			if (!updated.contains(old) && old.warm != null) {
+				old.warm.close();
+				old.warm = null;
+			}
+		}
+		servers = updated;
+	}
+
+	/**
+	 * Get the servers in the order in which they would be tried: healthy
+	 * servers from fastest to slowest, then ejected servers from the one
+	 * which will come back first.
+	 * 
+	 * @return The health of every server in the pool.
+	 */
+	public synchronized List<Health> getServers() {
+		final long now = System.currentTimeMillis();
+		List<Health> sorted = new ArrayList<Health>(servers);
+		Collections.sort(sorted, new Comparator<Health>() {
+			public int compare(Health a, Health b) {
+				boolean aEjected = a.isEjected(now);
+				boolean bEjected = b.isEjected(now);
+				if (aEjected != bEjected)
+					return aEjected ? 1 : -1;
+				if (aEjected)
+					return Long.compare(a.ejectedUntil, b.ejectedUntil);
+				return Double.compare(a.score(), b.score());
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * Send a message to the best server in the pool. If the server cannot be
+	 * reached or does not answer in time, the message is sent to the next
+	 * best server, and so on.
+	 * 
+	 * @param message
+	 *            A String message.
+	 * @return The answer of the server which took the message.
+	 * @throws IOException
+	 *             The error from the last server tried, if no server could be
+	 *             reached.
+	 */
+	public Ack send(String message) throws IOException {
+		List<Health> candidates = getServers();
+		if (candidates.isEmpty())
+			throw new IOException("There are no servers in the pool.");
+		IOException lastError = null;
+		for (Health health : candidates) {
+			try {
+				String reply = sendTo(health, message);
+				succeeded(health);
+				return new Ack(message, reply, health.server);
+			} catch (IOException e) {
+				failed(health);
+				lastError = e;
+			}
+		}
+		throw lastError;
+	}
+
+	/**
+	 * Send a message to one server, over its warm connection if it has one,
+	 * timing the connection, if one has to be opened, and the answer.
+	 * 
+	 * @return The reply of the server.
+	 */
+	private String sendTo(Health health, String message) throws IOException {
+		ServerProfile server = health.server;
+		String hostname = server.getHostname();
+		int port = server.getPort();
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		Connection connection = takeWarm(health);
+		if (connection != null) {
+			try {
+				long sendStart = System.nanoTime();
+				String reply = connection.send(bytes, 0, bytes.length);
+				acked(health, millisSince(sendStart));
+				keepWarm(health, connection);
+				return reply;
+			} catch (ConnectionClosedException e) {
+				// closed by the server since it was last used; open another.
+				connection.close();
+			} catch (IOException e) {
+				connection.close();
+				throw e;
+			}
+		}
+		long start = System.nanoTime();
+		if (!Connection.isLegacyServer(hostname, port)) {
+			connection = null;
+			try {
+				connection = new Connection(hostname, port);
+			} catch (ProtocolException e) {
+				// send it on its own below.
+				start = System.nanoTime();
+			}
+			if (connection != null) {
+				try {
+					connected(health, millisSince(start));
+					long sendStart = System.nanoTime();
+					String reply = connection.send(bytes, 0, bytes.length);
+					acked(health, millisSince(sendStart));
+					keepWarm(health, connection);
+					return reply;
+				} catch (IOException e) {
+					connection.close();
+					throw e;
+				}
+			}
+		}
+		String reply = MessageSender.send(hostname, port, message);
+		connected(health, millisSince(start));
+		return reply;
+	}
+
+	/**
+	 * Take the warm connection of a server, so that no other thread uses it
+	 * at the same time.
+	 * 
+	 * @return The connection, or null if there is none.
+	 */
+	private synchronized Connection takeWarm(Health health) {
+		Connection connection = health.warm;
+		health.warm = null;
+		return connection;
+	}
+
+	/**
+	 * Keep a working connection as the warm connection of a server, or close
+	 * it if the server already has one or has left the pool.
+	 */
+	private void keepWarm(Health health, Connection connection) {
+		synchronized (this) {
+			if (health.warm == null && !closed && servers.contains(health)) {
+				health.warm = connection;
+				return;
+			}
+		}
+		connection.close();
+	}
+
+	/**
+	 * Send a message to the best server in the pool, on MessageSender's I/O
+	 * executor.
+	 * 
+	 * @param message
+	 *            A String message.
+	 * @return A future which completes with the answer of the server which
+	 *         took the message, or exceptionally if no server could be
+	 *         reached.
+	 * @see #send(String)
+	 */
+	public CompletableFuture<Ack> sendAsync(final String message) {
+		final CompletableFuture<Ack> future = new CompletableFuture<Ack>();
+		MessageSender.getIoExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					future.complete(send(message));
+				} catch (IOException e) {
+					future.completeExceptionally(e);
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Describe the health of every server, one per line, in the order in
+	 * which they would be tried.
+	 * 
+	 * @return A description of the pool.
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		List<Health> sorted = getServers();
+		synchronized (this) {
+			for (Health health : sorted) {
+				sb.append(health.format()).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Stop probing servers, and close their warm connections.
+	 */
+	public void close() {
+		probeTimer.cancel();
+		synchronized (this) {
+			closed = true;
+			for (Health health : servers) {
+				if (health.warm != null) {
+					health.warm.close();
+					health.warm = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Probe every server in parallel.
+	 */
+	private void probeAll() {
+		List<Health> toProbe;
+		synchronized (this) {
+			toProbe = new ArrayList<Health>(servers);
+		}
+		for (final Health health : toProbe) {
+			MessageSender.getIoExecutor().execute(new Runnable() {
+				public void run() {
+					probe(health);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Measure the ping time of a server over its warm connection, opening
+	 * one, and measuring the connect time, if there is none or the server
+	 * has closed it. Nothing is stored on the server. A server which does not
+	 * support keep-alive connections rejects the handshake, and is from then
+	 * on only connected to, the connection being reset rather than closed so
+	 * that it reads no message at all.
+	 */
+	private void probe(Health health) {
+		ServerProfile server = health.server;
+		try {
+			Connection connection = takeWarm(health);
+			if (connection != null && !ping(health, connection)) {
+				connection.close();
+				connection = null;
+			}
+			if (connection == null) {
+				long start = System.nanoTime();
+				if (Connection.isLegacyServer(server.getHostname(),
+						server.getPort())) {
+					Socket socket = MessageSender.getResolver().connect(
+							server.getHostname(), server.getPort(),
+							MessageSender.SO_TIMEOUT);
+					connected(health, millisSince(start));
+					socket.setSoLinger(true, 0);
+					socket.close();
+					succeeded(health);
+					return;
+				}
+				try {
+					connection = new Connection(server.getHostname(),
+							server.getPort());
+				} catch (ProtocolException e) {
+					connected(health, millisSince(start));
+					succeeded(health);
+					return;
+				}
+				connected(health, millisSince(start));
+				if (!ping(health, connection)) {
+					connection.close();
+					throw new IOException("No answer to ping");
+				}
+			}
+			keepWarm(health, connection);
+			succeeded(health);
+		} catch (IOException e) {
+			failed(health);
+		}
+	}
+
+	/**
+	 * Ping a server, timing the answer.
+	 * 
+	 * @return false if the server did not answer.
+	 */
+	private boolean ping(Health health, Connection connection) {
+		long start = System.nanoTime();
+		if (!connection.ping())
+			return false;
+		acked(health, millisSince(start));
+		return true;
+	}
+
+	private synchronized void connected(Health health, double millis) {
+		health.connectMillis = Health.average(health.connectMillis, millis);
+	}
+
+	private synchronized void acked(Health health, double millis) {
+		health.ackMillis = Health.average(health.ackMillis, millis);
+	}
+
+	private synchronized void succeeded(Health health) {
+		health.succeeded();
+	}
+
+	private synchronized void failed(Health health) {
+		health.failed(System.currentTimeMillis());
+	}
+
+	private static double millisSince(long start) {
+		return (System.nanoTime() - start) / 1e6;
+	}
+}
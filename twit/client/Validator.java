@@ -1,60 +1,150 @@
-package twit.client;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-public class Validator {
-
-	private static final int DOMAIN_NAME_MAX_LENGTH = 253;
-	private static final int MIN_PORT_NUMBER = 32768;
-	private static final int MAX_PORT_NUMBER = 61000;
-	private static final String HOSTNAME_REGEX = "\\A[A-Za-z0-9]{1}[A-Za-z0-9-.]*[A-Za-z0-9]{1}\\z|\\A[A-Za-z0-9]{1}\\z";
-
-	/**
-	 * Tells whether or not a given integer is in the range of valid port
-	 * numbers.
-	 * 
-	 * @param port
-	 *            A port number.
-	 * @return Returns true if the given integer falls in the range 32768-61000
-	 *         inclusive.
-	 */
-	public static boolean isValidPortNumber(int port) {
-		return port >= MIN_PORT_NUMBER && port <= MAX_PORT_NUMBER;
-	}
-
-	/**
-	 * Returns true if the given host-name is valid, false otherwise. A valid
-	 * host-name consists of up to 127 levels, each containing up to 63
-	 * characters. The allowed characters are a-z, 0-9, period (.) and dash (-).
-	 * However, dash and period cannot be at the beginning or end of any of the
-	 * parts of the domain name. The full domain name may not exceed 253
-	 * characters.
-	 * 
-	 * Source: http://en.wikipedia.org/wiki/Domain_name#Parts_of_a_domain_name
-	 * 
-	 * @param hostname
-	 *            A hostname String.
-	 * @return Whether or not the hostname is valid.
-	 */
-	public static boolean isValidHostname(String hostname) {
-		if (hostname.length() == 0
-				|| hostname.length() > DOMAIN_NAME_MAX_LENGTH)
-			return false;
-		Pattern pattern = Pattern.compile(HOSTNAME_REGEX);
-		Matcher matcher = pattern.matcher(hostname);
-		return matcher.matches();
-	}
-
-	/**
-	 * Returns true if the given profile name is valid, false otherwise. It is
-	 * in valid if the string is empty or contains a semi-colon.
-	 * 
-	 * @param profileName
-	 *            A profile name String.
-	 * @return Whether or not the profile name is valid.
-	 */
-	public static boolean isValidProfileName(String profileName) {
-		return profileName.length() > 0 && !profileName.contains(";");
-	}
-}
+package twit.client;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import twit.io.Protocol;
+
+public class Validator {
+	public static final int MAX_MESSAGE_LENGTH = Protocol.MAX_MESSAGE_LENGTH;
+
+	private static final int DOMAIN_NAME_MAX_LENGTH = 253;
+	private static final int LABEL_MAX_LENGTH = 63;
+	private static final int MIN_PORT_NUMBER = 32768;
+	private static final int MAX_PORT_NUMBER = 61000;
+	// below this many profiles, validating in parallel is not worth it.
+	private static final int PARALLEL_THRESHOLD = 4096;
+
+	/**
+	 * The outcome of validating a server profile.
+	 */
+	public enum Result {
+		VALID, INVALID_PROFILE_NAME, INVALID_HOSTNAME, INVALID_PORT
+	}
+
+	/**
+	 * Tells whether or not a given integer is in the range of valid port
+	 * numbers.
+	 * 
+	 * @param port
+	 *            A port number.
+	 * @return Returns true if the given integer falls in the range 32768-61000
+	 *         inclusive.
+	 */
+	public static boolean isValidPortNumber(int port) {
+		return port >= MIN_PORT_NUMBER && port <= MAX_PORT_NUMBER;
+	}
+
+	/**
+	 * Returns true if the given host-name is valid, false otherwise. A valid
+	 * host-name consists of up to 127 levels, each containing up to 63
+	 * characters. The allowed characters are a-z, 0-9, period (.) and dash (-).
+	 * However, dash and period cannot be at the beginning or end of any of the
+	 * parts of the domain name. The full domain name may not exceed 253
+	 * characters.
+	 * 
+	 * The hostname is checked in a single pass over its characters, without
+	 * allocating anything.
+	 * 
+	 * Source: http://en.wikipedia.org/wiki/Domain_name#Parts_of_a_domain_name
+	 * 
+	 * @param hostname
+	 *            A hostname String.
+	 * @return Whether or not the hostname is valid.
+	 */
+	public static boolean isValidHostname(String hostname) {
+		int length = hostname.length();
+		if (length == 0 || length > DOMAIN_NAME_MAX_LENGTH)
+			return false;
+		// length of the part read so far.
+		int labelLength = 0;
+		char previous = '.';
+		for (int i = 0; i < length; i++) {
+			char c = hostname.charAt(i);
+			if (c == '.') {
+				if (labelLength == 0 || previous == '-')
+					return false;
+				labelLength = 0;
+			} else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || (c == '-' && labelLength > 0)) {
+				if (++labelLength > LABEL_MAX_LENGTH)
+					return false;
+			} else {
+				return false;
+			}
+			previous = c;
+		}
+		// the last part must not be empty (a trailing period) or end in a dash.
+		return labelLength > 0 && previous != '-';
+	}
+
+	/**
+	 * Returns true if the given message may be sent, false otherwise. A
+	 * message may be sent if, once surrounding white space has been removed,
+	 * it is not empty and not longer than MAX_MESSAGE_LENGTH code points, as
+	 * counted by the server once the message has been sent as UTF-8.
+	 * 
+	 * @param message
+	 *            A message String.
+	 * @return Whether or not the message may be sent.
+	 */
+	public static boolean isValidMessage(String message) {
+		String trimmed = message.trim();
+		int length = trimmed.codePointCount(0, trimmed.length());
+		return length > 0 && length <= MAX_MESSAGE_LENGTH;
+	}
+
+	/**
+	 * Returns true if the given profile name is valid, false otherwise. It is
+	 * in valid if the string is empty or contains a semi-colon.
+	 * 
+	 * @param profileName
+	 *            A profile name String.
+	 * @return Whether or not the profile name is valid.
+	 */
+	public static boolean isValidProfileName(String profileName) {
+		return profileName.length() > 0 && !profileName.contains(";");
+	}
+
+	/**
+	 * Validate the profile name, hostname and port of a server profile.
+	 * 
+	 * @param profile
+	 *            A server profile.
+	 * @return VALID, or the first part of the profile which is not valid.
+	 */
+	public static Result validate(ServerProfile profile) {
+		if (!isValidProfileName(profile.getProfileName()))
+			return Result.INVALID_PROFILE_NAME;
+		if (!isValidHostname(profile.getHostname()))
+			return Result.INVALID_HOSTNAME;
+		if (!isValidPortNumber(profile.getPort()))
+			return Result.INVALID_PORT;
+		return Result.VALID;
+	}
+
+	/**
+	 * Validate many server profiles. Large lists are validated in parallel on
+	 * the common fork-join pool.
+	 * 
+	 * @param profiles
+	 *            The server profiles. The list must not change while it is
+	 *            validated.
+	 * @return The result for each profile, at the same index as the profile.
+	 */
+	public static Result[] validateAll(final List<ServerProfile> profiles) {
+		Result[] results = new Result[profiles.size()];
+		IntFunction<Result> validator = new IntFunction<Result>() {
+			public Result apply(int index) {
+				return validate(profiles.get(index));
+			}
+		};
+		if (results.length < PARALLEL_THRESHOLD) {
+			Arrays.setAll(results, validator);
+		} else {
+			Arrays.parallelSetAll(results, validator);
+		}
+		return results;
+	}
+}
@@ -0,0 +1,207 @@
+package twit.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants and helpers for the keep-alive protocol, in which one connection
+ * carries any number of messages.
+ * 
+ * A client which sends a single message simply writes its bytes and reads the
+ * reply, as it always has. A keep-alive connection instead starts with a
+ * handshake of HANDSHAKE_LENGTH bytes: MAGIC (a zero byte, which never starts
+ * a text message), VERSION, a byte of FLAGS and zero bytes up to the length.
+ * A server which only knows single messages reads at most
+ * LEGACY_MESSAGE_BYTES bytes and rejects more as too long, so it answers the
+ * handshake with LEGACY_TOO_LONG_REPLY and stores nothing. A server which
+ * knows keep-alive connections replies with three bytes: MAGIC, the lower of
+ * its version and the client's, and the flags it agrees to with the ACCEPTED
+ * flag set. Version 1 clients sent only the first three bytes of the
+ * handshake, and are still understood. After that the client sends requests,
+ * each a type byte, a two byte big-endian length and that many bytes of
+ * payload; the server answers every request, in order, with a status byte, a
+ * two byte length and a payload.
+ * 
+ * The payload of an OK reply is the message itself, unless the COMPACT_ACKS
+ * flag was agreed in the handshake. It is then COMPACT_ACK_LENGTH bytes: the
+ * id the server gave the message and the time at which it was stored, in
+ * milliseconds since the epoch, each a big-endian long. Other replies always
+ * carry a text payload.
+ * 
+ * Messages, however they are sent, are UTF-8 text of at most
+ * MAX_MESSAGE_LENGTH code points, and so at most MAX_MESSAGE_BYTES bytes.
+ */
+public class Protocol {
+	public static final int MAGIC = 0;
+	public static final int VERSION = 2;
+	// set by the server in its handshake reply.
+	public static final int ACCEPTED = 0x80;
+	// OK replies carry the message id and time instead of the message.
+	public static final int COMPACT_ACKS = 0x01;
+
+	// request types
+	public static final int MESSAGE = 1;
+	public static final int PING = 2;
+
+	// reply statuses
+	public static final int OK = 0;
+	public static final int TOO_LONG = 1;
+	public static final int EMPTY = 2;
+	public static final int ERROR = 3;
+	public static final int PONG = 4;
+	public static final int MALFORMED = 5;
+
+	// the most code points in a message, and the most bytes they can take.
+	public static final int MAX_MESSAGE_LENGTH = 140;
+	public static final int MAX_MESSAGE_BYTES = 4 * MAX_MESSAGE_LENGTH;
+
+	// the most bytes a server which only knows single messages stores, and
+	// what it answers when it is sent more.
+	public static final int LEGACY_MESSAGE_BYTES = 140;
+	public static final String LEGACY_TOO_LONG_REPLY = "Message recevied was too long. Please try again.";
+	// one byte too long to be stored by such a server.
+	public static final int HANDSHAKE_LENGTH = LEGACY_MESSAGE_BYTES + 1;
+	// the reply to the handshake, and the handshake of version 1 clients.
+	public static final int HANDSHAKE_REPLY_LENGTH = 3;
+
+	// length of the type/status byte and the length field.
+	public static final int HEADER_LENGTH = 3;
+	public static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+	public static final int COMPACT_ACK_LENGTH = 16;
+
+	/**
+	 * Write the handshake which starts a keep-alive connection, in a single
+	 * write, so that a server which only knows single messages reads all of
+	 * it at once.
+	 * 
+	 * @param out
+	 *            An OutputStream.
+	 * @param flags
+	 *            The flags to be requested.
+	 * @throws IOException
+	 *             If there is a problem writing to the OutputStream.
+	 */
+	public static void writeHandshake(OutputStream out, int flags)
+			throws IOException {
+		byte[] handshake = new byte[HANDSHAKE_LENGTH];
+		handshake[0] = MAGIC;
+		handshake[1] = VERSION;
+		handshake[2] = (byte) flags;
+		out.write(handshake);
+		out.flush();
+	}
+
+	/**
+	 * Write the server's reply to a handshake.
+	 * 
+	 * @param out
+	 *            An OutputStream.
+	 * @param version
+	 *            The version both sides speak.
+	 * @param flags
+	 *            The flags agreed to, with ACCEPTED set.
+	 * @throws IOException
+	 *             If there is a problem writing to the OutputStream.
+	 */
+	public static void writeHandshakeReply(OutputStream out, int version,
+			int flags) throws IOException {
+		out.write(new byte[] { MAGIC, (byte) version, (byte) flags });
+		out.flush();
+	}
+
+	/**
+	 * Write a request or reply in a single write, so that it is sent in one
+	 * packet.
+	 * 
+	 * @param out
+	 *            An OutputStream.
+	 * @param type
+	 *            The request type or reply status.
+	 * @param payload
+	 *            An array containing the payload.
+	 * @param offset
+	 *            The index of the beginning of the payload.
+	 * @param length
+	 *            The number of bytes of the payload.
+	 * @throws IOException
+	 *             If there is a problem writing to the OutputStream.
+	 */
+	public static void writeFrame(OutputStream out, int type, byte[] payload,
+			int offset, int length) throws IOException {
+		byte[] frame = new byte[HEADER_LENGTH + length];
+		frame[0] = (byte) type;
+		frame[1] = (byte) (length >>> 8);
+		frame[2] = (byte) length;
+		System.arraycopy(payload, offset, frame, HEADER_LENGTH, length);
+		out.write(frame);
+		out.flush();
+	}
+
+	/**
+	 * Write a request or reply whose payload is a String.
+	 * 
+	 * @param out
+	 *            An OutputStream.
+	 * @param type
+	 *            The request type or reply status.
+	 * @param payload
+	 *            The payload.
+	 * @throws IOException
+	 *             If there is a problem writing to the OutputStream.
+	 */
+	public static void writeFrame(OutputStream out, int type, String payload)
+			throws IOException {
+		byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+		writeFrame(out, type, bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Write an OK reply in the compact form, in a single write.
+	 * 
+	 * @param out
+	 *            An OutputStream.
+	 * @param id
+	 *            The id the server gave the message.
+	 * @param timeMillis
+	 *            The time at which the message was stored.
+	 * @throws IOException
+	 *             If there is a problem writing to the OutputStream.
+	 */
+	public static void writeCompactAck(OutputStream out, long id,
+			long timeMillis) throws IOException {
+		byte[] frame = new byte[HEADER_LENGTH + COMPACT_ACK_LENGTH];
+		frame[0] = OK;
+		frame[2] = COMPACT_ACK_LENGTH;
+		for (int i = 0; i < 8; i++) {
+			frame[HEADER_LENGTH + i] = (byte) (id >>> (56 - 8 * i));
+			frame[HEADER_LENGTH + 8 + i] = (byte) (timeMillis >>> (56 - 8 * i));
+		}
+		out.write(frame);
+		out.flush();
+	}
+
+	/**
+	 * Check that a message may be stored: that it is well-formed UTF-8 and
+	 * neither empty nor longer than MAX_MESSAGE_LENGTH code points. The bytes
+	 * are not looked at if there are more than MAX_MESSAGE_BYTES of them.
+	 * 
+	 * @param bytes
+	 *            An array containing the message.
+	 * @param offset
+	 *            The index of the beginning of the message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @return OK, EMPTY, TOO_LONG or MALFORMED.
+	 */
+	public static int checkMessage(byte[] bytes, int offset, int length) {
+		if (length == 0)
+			return EMPTY;
+		if (length > MAX_MESSAGE_BYTES)
+			return TOO_LONG;
+		int codePoints = Utf8.countCodePoints(bytes, offset, length);
+		if (codePoints == Utf8.MALFORMED)
+			return MALFORMED;
+		return codePoints > MAX_MESSAGE_LENGTH ? TOO_LONG : OK;
+	}
+}
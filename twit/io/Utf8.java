@@ -0,0 +1,85 @@
+package twit.io;
+
+/**
+ * Checks and counts UTF-8 text where it lies in an array of bytes, without
+ * decoding it to a String, so that the server can tell how long a message is
+ * from the bytes it received.
+ * 
+ * Only well-formed UTF-8 is accepted, as defined by RFC 3629: a code point
+ * must be encoded in the fewest bytes possible, and the surrogates
+ * U+D800-U+DFFF and anything above U+10FFFF are not allowed. Runs of ASCII,
+ * which most messages are made of, take a single comparison per byte.
+ */
+public class Utf8 {
+	// returned when the bytes are not well-formed UTF-8.
+	public static final int MALFORMED = -1;
+
+	/**
+	 * Count the code points encoded in some bytes, checking that they are
+	 * well-formed UTF-8. A code point cut short by the end of the bytes makes
+	 * them malformed.
+	 * 
+	 * @param bytes
+	 *            An array of bytes.
+	 * @param offset
+	 *            The index of the first byte.
+	 * @param length
+	 *            The number of bytes.
+	 * @return The number of code points, or MALFORMED.
+	 */
+	public static int countCodePoints(byte[] bytes, int offset, int length) {
+		int end = offset + length;
+		int count = 0;
+		int i = offset;
+		while (i < end) {
+			int lead = bytes[i];
+			if (lead >= 0) {
+				// ASCII; look for the end of the run.
+				int start = i++;
+				while (i < end && bytes[i] >= 0) {
+					i++;
+				}
+				count += i - start;
+				continue;
+			}
+			lead &= 0xFF;
+			// the range allowed for the second byte rules out overlong forms,
+			// surrogates and code points above U+10FFFF.
+			int size;
+			int min = 0x80;
+			int max = 0xBF;
+			if (lead < 0xC2) {
+				// a continuation byte, or an overlong two byte form.
+				return MALFORMED;
+			} else if (lead < 0xE0) {
+				size = 2;
+			} else if (lead < 0xF0) {
+				size = 3;
+				if (lead == 0xE0)
+					min = 0xA0;
+				else if (lead == 0xED)
+					max = 0x9F;
+			} else if (lead < 0xF5) {
+				size = 4;
+				if (lead == 0xF0)
+					min = 0x90;
+				else if (lead == 0xF4)
+					max = 0x8F;
+			} else {
+				return MALFORMED;
+			}
+			if (end - i < size)
+				return MALFORMED;
+			int second = bytes[i + 1] & 0xFF;
+			if (second < min || second > max)
+				return MALFORMED;
+			for (int j = 2; j < size; j++) {
+				if ((bytes[i + j] & 0xC0) != 0x80)
+					return MALFORMED;
+			}
+			i += size;
+			count++;
+		}
+		return count;
+	}
+}
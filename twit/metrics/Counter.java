@@ -0,0 +1,38 @@
+package twit.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing counter. Updates are striped across cells so
+ * that many threads can increment the same counter without contending on a
+ * single memory location.
+ */
+public class Counter {
+	private final LongAdder adder = new LongAdder();
+
+	/**
+	 * Increment the counter by one.
+	 */
+	public void increment() {
+		adder.increment();
+	}
+
+	/**
+	 * Add a number to the counter.
+	 * 
+	 * @param n
+	 *            The amount to be added.
+	 */
+	public void add(long n) {
+		adder.add(n);
+	}
+
+	/**
+	 * Get the current value of the counter.
+	 * 
+	 * @return The sum of all increments so far.
+	 */
+	public long get() {
+		return adder.sum();
+	}
+}
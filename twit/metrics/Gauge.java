@@ -0,0 +1,44 @@
+package twit.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value which can go up and down, such as the number of active
+ * connections.
+ */
+public class Gauge {
+	private final AtomicLong value = new AtomicLong();
+
+	/**
+	 * Increment the gauge by one.
+	 */
+	public void increment() {
+		value.incrementAndGet();
+	}
+
+	/**
+	 * Decrement the gauge by one.
+	 */
+	public void decrement() {
+		value.decrementAndGet();
+	}
+
+	/**
+	 * Set the gauge to a given value.
+	 * 
+	 * @param newValue
+	 *            The new value.
+	 */
+	public void set(long newValue) {
+		value.set(newValue);
+	}
+
+	/**
+	 * Get the current value of the gauge.
+	 * 
+	 * @return The current value.
+	 */
+	public long get() {
+		return value.get();
+	}
+}
@@ -0,0 +1,90 @@
+package twit.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative long values, such as latencies in nanoseconds
+ * or message sizes in bytes. Values are counted in logarithmic buckets: every
+ * power of two is split into 16 linear sub-buckets, so any recorded value can
+ * be reported with a relative error of at most 1/16. Recording a value costs
+ * a few bit operations and one atomic increment, and never allocates.
+ */
+public class Histogram {
+	static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a value. Negative values are recorded as zero.
+	 * 
+	 * @param value
+	 *            The value to be recorded.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		buckets.incrementAndGet(bucketIndex(value));
+		count.increment();
+		sum.add(value);
+		long currentMax = max.get();
+		while (value > currentMax) {
+			if (max.compareAndSet(currentMax, value))
+				break;
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * Take a point-in-time copy of this histogram. The copy is not atomic with
+	 * respect to concurrent updates, but every value recorded before this
+	 * method is called is included.
+	 * 
+	 * @return A snapshot of the histogram.
+	 */
+	public HistogramSnapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return new HistogramSnapshot(counts, count.sum(), sum.sum(), max.get());
+	}
+
+	/**
+	 * Find the bucket in which a given value is counted.
+	 * 
+	 * @param value
+	 *            A non-negative value.
+	 * @return The index of the bucket.
+	 */
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Find the highest value which is counted in a given bucket.
+	 * 
+	 * @param index
+	 *            The index of a bucket.
+	 * @return The highest value of the bucket.
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		long lower = (SUB_BUCKETS | subBucket) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,97 @@
+package twit.metrics;
+
+/**
+ * An immutable copy of the contents of a Histogram at a point in time.
+ */
+public class HistogramSnapshot {
+	private final long[] counts;
+	private final long count;
+	private final long sum;
+	private final long max;
+
+	/**
+	 * Create a new snapshot.
+	 * 
+	 * @param counts
+	 *            The number of values in each bucket.
+	 * @param count
+	 *            The total number of values.
+	 * @param sum
+	 *            The sum of all values.
+	 * @param max
+	 *            The largest value recorded.
+	 */
+	HistogramSnapshot(long[] counts, long count, long sum, long max) {
+		this.counts = counts;
+		this.count = count;
+		this.sum = sum;
+		this.max = max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Get the mean of the recorded values.
+	 * 
+	 * @return The mean, or 0 if no values have been recorded.
+	 */
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Get the value below which a given fraction of the recorded values fall.
+	 * 
+	 * @param quantile
+	 *            A number between 0 and 1, e.g. 0.99 for the 99th percentile.
+	 * @return The upper bound of the bucket containing the quantile, never
+	 *         more than the largest recorded value. 0 if the snapshot is
+	 *         empty.
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(quantile * total);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(Histogram.bucketUpperBound(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * Get the values recorded between an earlier snapshot of the same
+	 * histogram and this one. The maximum of the interval cannot be recovered
+	 * exactly, so the maximum of this snapshot is kept.
+	 * 
+	 * @param earlier
+	 *            An earlier snapshot of the same histogram.
+	 * @return A snapshot of the values recorded in between.
+	 */
+	public HistogramSnapshot minus(HistogramSnapshot earlier) {
+		long[] difference = new long[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			difference[i] = counts[i] - earlier.counts[i];
+		}
+		return new HistogramSnapshot(difference, count - earlier.count, sum
+				- earlier.sum, max);
+	}
+}
@@ -0,0 +1,87 @@
+package twit.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A named collection of counters, gauges and histograms. Metrics are created
+ * on first use and are looked up once, by the code that owns them, rather
+ * than on every update.
+ */
+public class MetricsRegistry {
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	/**
+	 * Get the counter with a given name, creating it if necessary.
+	 * 
+	 * @param name
+	 *            The name of the counter.
+	 * @return The counter.
+	 */
+	public Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new Counter());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	/**
+	 * Get the gauge with a given name, creating it if necessary.
+	 * 
+	 * @param name
+	 *            The name of the gauge.
+	 * @return The gauge.
+	 */
+	public Gauge gauge(String name) {
+		Gauge gauge = gauges.get(name);
+		if (gauge == null) {
+			gauges.putIfAbsent(name, new Gauge());
+			gauge = gauges.get(name);
+		}
+		return gauge;
+	}
+
+	/**
+	 * Get the histogram with a given name, creating it if necessary.
+	 * 
+	 * @param name
+	 *            The name of the histogram.
+	 * @return The histogram.
+	 */
+	public Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, new Histogram());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Take a snapshot of every metric in the registry.
+	 * 
+	 * @return A snapshot of the registry.
+	 */
+	public MetricsSnapshot snapshot() {
+		Map<String, Long> counterValues = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			counterValues.put(entry.getKey(), entry.getValue().get());
+		}
+		Map<String, Long> gaugeValues = new TreeMap<String, Long>();
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			gaugeValues.put(entry.getKey(), entry.getValue().get());
+		}
+		Map<String, HistogramSnapshot> histogramValues = new TreeMap<String, HistogramSnapshot>();
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			histogramValues.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		return new MetricsSnapshot(System.nanoTime(), counterValues,
+				gaugeValues, histogramValues);
+	}
+}
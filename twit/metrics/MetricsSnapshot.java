@@ -0,0 +1,111 @@
+package twit.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The values of every metric in a MetricsRegistry at a point in time.
+ */
+public class MetricsSnapshot {
+	private final long nanoTime;
+	private final Map<String, Long> counters;
+	private final Map<String, Long> gauges;
+	private final Map<String, HistogramSnapshot> histograms;
+
+	MetricsSnapshot(long nanoTime, Map<String, Long> counters,
+			Map<String, Long> gauges, Map<String, HistogramSnapshot> histograms) {
+		this.nanoTime = nanoTime;
+		this.counters = Collections.unmodifiableMap(counters);
+		this.gauges = Collections.unmodifiableMap(gauges);
+		this.histograms = Collections.unmodifiableMap(histograms);
+	}
+
+	/**
+	 * @return The value of System.nanoTime() when the snapshot was taken.
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	public Map<String, Long> getCounters() {
+		return counters;
+	}
+
+	public Map<String, Long> getGauges() {
+		return gauges;
+	}
+
+	public Map<String, HistogramSnapshot> getHistograms() {
+		return histograms;
+	}
+
+	/**
+	 * Get the value of a counter.
+	 * 
+	 * @param name
+	 *            The name of the counter.
+	 * @return The value, or 0 if there is no such counter.
+	 */
+	public long getCounter(String name) {
+		Long value = counters.get(name);
+		return value == null ? 0 : value;
+	}
+
+	/**
+	 * Get the snapshot of a histogram.
+	 * 
+	 * @param name
+	 *            The name of the histogram.
+	 * @return The histogram snapshot, or null if there is no such histogram.
+	 */
+	public HistogramSnapshot getHistogram(String name) {
+		return histograms.get(name);
+	}
+
+	/**
+	 * Represent the snapshot as human readable text, one metric per line.
+	 * Histograms of latencies (names ending in ".ns") are shown in
+	 * microseconds.
+	 * 
+	 * @return A multi-line string.
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> entry : counters.entrySet()) {
+			sb.append(entry.getKey()).append(" = ").append(entry.getValue());
+			sb.append('\n');
+		}
+		for (Map.Entry<String, Long> entry : gauges.entrySet()) {
+			sb.append(entry.getKey()).append(" = ").append(entry.getValue());
+			sb.append('\n');
+		}
+		for (Map.Entry<String, HistogramSnapshot> entry : histograms
+				.entrySet()) {
+			sb.append(formatHistogram(entry.getKey(), entry.getValue()));
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Represent a histogram as one line of text.
+	 * 
+	 * @param name
+	 *            The name of the histogram.
+	 * @param h
+	 *            A snapshot of the histogram.
+	 * @return A one line summary with count, mean and percentiles.
+	 */
+	public static String formatHistogram(String name, HistogramSnapshot h) {
+		boolean nanos = name.endsWith(".ns");
+		String unit = nanos ? "us" : "";
+		double divisor = nanos ? 1000.0 : 1.0;
+		return String.format(
+				"%s: count=%d mean=%.1f%s p50=%.1f%s p99=%.1f%s p999=%.1f%s max=%.1f%s",
+				name, h.getCount(), h.getMean() / divisor, unit,
+				h.getValueAtQuantile(0.5) / divisor, unit,
+				h.getValueAtQuantile(0.99) / divisor, unit,
+				h.getValueAtQuantile(0.999) / divisor, unit, h.getMax()
+						/ divisor, unit);
+	}
+}
@@ -0,0 +1,409 @@
+package twit.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import twit.metrics.Counter;
+
+/**
+ * Copies the messages of a MessageStore, kept one file each in a directory
+ * for every day, into a MessageLog, in the order of their ids. Each message
+ * keeps the id it was stored under, so the log can be read alongside the
+ * day directories and the feeds.
+ * 
+ * Most of the time goes into opening millions of tiny files, so the files are
+ * read by a ForkJoinPool with more threads than there are processors: a day
+ * is listed and sorted by one task while the day before is being read, and
+ * its files are read in batches of BATCH_FILES, split between the threads,
+ * while the batch before is written to the log. Only the writing is done by
+ * a single thread, as the log is one sequential file at a time, and the log
+ * writes its indexes as it goes, so the archive is read just once.
+ * 
+ * The time of a message is taken from its day directory and from the time of
+ * day in its file name, yyyy-MM-DD_HH_mm_ss.SSSS with an optional -sequence,
+ * since the DD of the name is the day of the year. Other files are ignored.
+ * Messages already in the log are skipped, so an import which was stopped can
+ * be run again to carry on where it left off, and a newer archive can be
+ * added to a log later on.
+ */
+public class ArchiveImporter {
+	// files read, and held in memory, at once.
+	public static final int BATCH_FILES = 4096;
+	// files read by one task without splitting them further.
+	private static final int FILES_PER_TASK = 64;
+	private static final long PROGRESS_MILLIS = 5000;
+	private static final Pattern DAY = Pattern
+			.compile("(\\d{4})-(\\d{2})-(\\d{2})");
+	private static final Pattern MESSAGE = Pattern
+			.compile("\\d{4}-\\d{2}-\\d{2,3}_(\\d{2})_(\\d{2})_(\\d{2})"
+					+ "\\.(\\d{4})(?:-(\\d{1,3}))?");
+
+	/**
+	 * A message file and, once it has been read, its bytes.
+	 */
+	private static final class Entry {
+		private final long id;
+		private final File file;
+		private byte[] bytes;
+
+		Entry(long id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+	}
+
+	private static final Comparator<Entry> BY_ID = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			return Long.compare(a.id, b.id);
+		}
+	};
+
+	/**
+	 * Lists the message files of a day, sorted by id.
+	 */
+	private final class ListDay extends RecursiveTask<Entry[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final String dayName;
+
+		ListDay(String dayName) {
+			this.dayName = dayName;
+		}
+
+		protected Entry[] compute() {
+			Matcher day = DAY.matcher(dayName);
+			day.matches();
+			Calendar calendar = Calendar.getInstance();
+			calendar.clear();
+			calendar.set(Integer.parseInt(day.group(1)),
+					Integer.parseInt(day.group(2)) - 1,
+					Integer.parseInt(day.group(3)));
+			File dir = new File(source, dayName);
+			String[] names = dir.list();
+			if (names == null) {
+				System.out.println("Could not list " + dir);
+				return new Entry[0];
+			}
+			Entry[] entries = new Entry[names.length];
+			int count = 0;
+			for (String name : names) {
+				long id = parseId(name, calendar);
+				if (id == -1) {
+					ignored.increment();
+				} else {
+					entries[count++] = new Entry(id, new File(dir, name));
+				}
+			}
+			entries = Arrays.copyOf(entries, count);
+			Arrays.sort(entries, BY_ID);
+			return entries;
+		}
+	}
+
+	/**
+	 * Reads the files of a range of entries, splitting the range between
+	 * threads.
+	 */
+	private final class ReadFiles extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Entry[] entries;
+		private final int from;
+		private final int to;
+
+		ReadFiles(Entry[] entries, int from, int to) {
+			this.entries = entries;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > FILES_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ReadFiles(entries, from, middle), new ReadFiles(
+						entries, middle, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				try {
+					entries[i].bytes = Files.readAllBytes(entries[i].file
+							.toPath());
+				} catch (IOException e) {
+					unreadable.increment();
+					System.out.println("Could not read " + entries[i].file
+							+ ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * A batch of entries of one day, and the task reading their files.
+	 */
+	private static final class Batch {
+		private final String dayName;
+		private final Entry[] entries;
+		private final int from;
+		private final int to;
+		private ForkJoinTask<Void> reading;
+
+		Batch(String dayName, Entry[] entries, int from) {
+			this.dayName = dayName;
+			this.entries = entries;
+			this.from = from;
+			this.to = Math.min(from + BATCH_FILES, entries.length);
+		}
+	}
+
+	private final File source;
+	private final MessageLog log;
+	private final ForkJoinPool pool;
+	// updated by the threads of the pool.
+	private final Counter ignored = new Counter();
+	private final Counter unreadable = new Counter();
+	// the following are only used by the thread running the import.
+	private String[] days;
+	private int nextDay;
+	private ForkJoinTask<Entry[]> listing;
+	private long imported;
+	private long skipped;
+	private long importedBytes;
+	private long startMillis;
+	private long lastProgressMillis;
+
+	/**
+	 * Create a new ArchiveImporter.
+	 * 
+	 * @param source
+	 *            The directory of the message store, holding a directory for
+	 *            each day.
+	 * @param log
+	 *            The log the messages are added to.
+	 * @param threads
+	 *            The number of threads reading files at once.
+	 */
+	public ArchiveImporter(File source, MessageLog log, int threads) {
+		this.source = source;
+		this.log = log;
+		this.pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * Add every message of the store which is newer than the last message in
+	 * the log, and flush the log. Progress is reported on the console.
+	 * 
+	 * @return The number of messages added.
+	 * @throws IOException
+	 *             If the store cannot be listed or the log cannot be written.
+	 */
+	public long importAll() throws IOException {
+		days = listDays();
+		nextDay = 0;
+		startMillis = System.currentTimeMillis();
+		lastProgressMillis = startMillis;
+		System.out.println("Importing " + days.length + " days from "
+				+ source + ".");
+		try {
+			if (days.length > 0)
+				listing = pool.submit(new ListDay(days[0]));
+			Batch batch = nextBatch(null);
+			while (batch != null) {
+				// read the next batch while this one is written.
+				Batch next = nextBatch(batch);
+				batch.reading.join();
+				write(batch);
+				batch = next;
+			}
+		} finally {
+			log.flush();
+			pool.shutdown();
+		}
+		long millis = Math.max(1, System.currentTimeMillis() - startMillis);
+		System.out.println("Imported " + imported + " messages, "
+				+ megabytes(importedBytes) + " MB, in " + millis / 1000.0
+				+ " s (" + imported * 1000 / millis + " messages/s); "
+				+ skipped + " already in the log, " + unreadable.get()
+				+ " unreadable, " + ignored.get() + " other files ignored.");
+		return imported;
+	}
+
+	/**
+	 * List the day directories of the store, in order, leaving out those
+	 * before the day of the last message in the log.
+	 */
+	private String[] listDays() throws IOException {
+		String[] names = source.list();
+		if (names == null)
+			throw new IOException("Could not list " + source);
+		String first = "";
+		if (log.getLastId() != -1) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(MessageStore.getTimeMillis(log
+					.getLastId()));
+			first = String.format("%tF", calendar);
+		}
+		String[] days = new String[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (DAY.matcher(name).matches() && name.compareTo(first) >= 0
+					&& new File(source, name).isDirectory())
+				days[count++] = name;
+		}
+		days = Arrays.copyOf(days, count);
+		// yyyy-MM-dd sorts by date.
+		Arrays.sort(days);
+		return days;
+	}
+
+	/**
+	 * Start reading the batch after a given one, taking the first batch of
+	 * the next day which has any messages once a day is done.
+	 * 
+	 * @return The batch, or null if there are no more.
+	 */
+	private Batch nextBatch(Batch batch) {
+		Batch next = null;
+		if (batch != null && batch.to < batch.entries.length) {
+			next = new Batch(batch.dayName, batch.entries, batch.to);
+		} else {
+			while (next == null && nextDay < days.length) {
+				String dayName = days[nextDay++];
+				Entry[] entries = listing.join();
+				// list the next day while this one is read.
+				if (nextDay < days.length)
+					listing = pool.submit(new ListDay(days[nextDay]));
+				if (entries.length > 0)
+					next = new Batch(dayName, entries, 0);
+			}
+			if (next == null)
+				return null;
+		}
+		next.reading = pool.submit(new ReadFiles(next.entries, next.from,
+				next.to));
+		return next;
+	}
+
+	/**
+	 * Append the messages of a batch which are not in the log yet.
+	 */
+	private void write(Batch batch) throws IOException {
+		for (int i = batch.from; i < batch.to; i++) {
+			Entry entry = batch.entries[i];
+			if (entry.bytes == null)
+				continue;
+			if (entry.id <= log.getLastId()) {
+				skipped++;
+			} else {
+				log.append(entry.id, entry.bytes, 0, entry.bytes.length);
+				imported++;
+				importedBytes += entry.bytes.length;
+			}
+			entry.bytes = null;
+		}
+		long now = System.currentTimeMillis();
+		if (now - lastProgressMillis >= PROGRESS_MILLIS) {
+			lastProgressMillis = now;
+			long millis = now - startMillis;
+			System.out.println(batch.dayName + " (day " + nextDay + " of "
+					+ days.length + "): " + imported + " messages, "
+					+ megabytes(importedBytes) + " MB, "
+					+ imported * 1000 / millis + " messages/s, "
+					+ megabytes(importedBytes * 1000 / millis) + " MB/s");
+		}
+	}
+
+	/**
+	 * Get the id of a message from the name of its file.
+	 * 
+	 * @param name
+	 *            The name of the file.
+	 * @param day
+	 *            A calendar set to midnight of the day of the file's
+	 *            directory, which is changed.
+	 * @return The id, or -1 if the name is not that of a message file.
+	 */
+	static long parseId(String name, Calendar day) {
+		Matcher matcher = MESSAGE.matcher(name);
+		if (!matcher.matches())
+			return -1;
+		int millis = Integer.parseInt(matcher.group(4));
+		if (millis >= 1000)
+			return -1;
+		day.set(Calendar.HOUR_OF_DAY, Integer.parseInt(matcher.group(1)));
+		day.set(Calendar.MINUTE, Integer.parseInt(matcher.group(2)));
+		day.set(Calendar.SECOND, Integer.parseInt(matcher.group(3)));
+		day.set(Calendar.MILLISECOND, millis);
+		long id = day.getTimeInMillis() * MessageStore.IDS_PER_MILLISECOND;
+		if (matcher.group(5) != null)
+			id += Integer.parseInt(matcher.group(5));
+		return id;
+	}
+
+	private static String megabytes(long bytes) {
+		return String.format("%.1f", bytes / (1024.0 * 1024.0));
+	}
+
+	/**
+	 * Import a message store into a log.
+	 * 
+	 * Usage: ArchiveImporter [-threads n] [-segment megabytes] logDirectory
+	 * [twitDirectory]
+	 * 
+	 * @param args
+	 *            -threads sets the number of threads reading files (default
+	 *            four per processor); -segment the size of the log's segments
+	 *            (default 64). The store is MessageStore.DEFAULT_DIRECTORY
+	 *            unless another directory is given.
+	 */
+	public static void main(String[] args) {
+		int threads = 4 * Runtime.getRuntime().availableProcessors();
+		long segmentBytes = MessageLog.DEFAULT_SEGMENT_BYTES;
+		File logDirectory = null;
+		File source = new File(MessageStore.DEFAULT_DIRECTORY);
+		try {
+			int i = 0;
+			for (; i < args.length && args[i].startsWith("-"); i++) {
+				if (args[i].equals("-threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-segment")) {
+					segmentBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+			if (i == args.length || args.length - i > 2 || threads < 1
+					|| segmentBytes < 1)
+				throw new IllegalArgumentException();
+			logDirectory = new File(args[i]);
+			if (i + 1 < args.length)
+				source = new File(args[i + 1]);
+		} catch (RuntimeException e) {
+			System.out.println("Usage: ArchiveImporter [-threads n]"
+					+ " [-segment megabytes] logDirectory [twitDirectory]");
+			System.exit(2);
+		}
+		try {
+			MessageLog log = new MessageLog(logDirectory, segmentBytes);
+			try {
+				new ArchiveImporter(source, log, threads).importAll();
+			} finally {
+				log.close();
+			}
+			System.out.println("The log has " + log.getSegmentCount()
+					+ " segments in " + logDirectory + ".");
+		} catch (IOException e) {
+			System.out.println("Import failed:\n" + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
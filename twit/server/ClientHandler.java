@@ -1,217 +1,505 @@
-package twit.server;
-
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
-import twit.io.ByteWriter;
-
-public class ClientHandler implements Runnable {
-
-	private static final String TWIT_DIRECTORY = "/cs/home/os75/public_html/twit/";
-	// wait for incoming message for 15 seconds before terminating connection
-	private static final int TIME_OUT = 15000;
-
-	private final static SimpleDateFormat DATE_FORMAT;
-	private final static SimpleDateFormat TIME_FORMATTER;
-	static {
-		String dateFormat = new String("yyyy-MM-dd");
-		DATE_FORMAT = new SimpleDateFormat(dateFormat);
-		// 2009-03-02_07_32_27.0209
-		String TIME_FORMAT = new String("yyyy-MM-DD_HH_mm_ss.SSSS");
-		TIME_FORMATTER = new SimpleDateFormat(TIME_FORMAT);
-	}
-
-	private Socket client;
-
-	/**
-	 * Create a new ClientHandler which deals with a given client socket.
-	 * 
-	 * @param client
-	 *            A socket connection with a client.
-	 */
-	public ClientHandler(Socket client) {
-		this.client = client;
-	}
-
-	/**
-	 * Deal with client: Attempt to receive message. If successful, send
-	 * confirmation. Send error message back if the message is too long (more
-	 * than 140 characters) or too short (0 characters). Otherwise, if the
-	 * client times out, print error message to console.
-	 */
-	public void run() {
-		InputStream inputStream = null;
-		OutputStream outputStream = null;
-		try {
-			client.setSoTimeout(TIME_OUT);
-			inputStream = client.getInputStream();
-			outputStream = client.getOutputStream();
-			byte[] bytes = new byte[141];
-			// Read up to 141 bytes from inputStream into the array "bytes".
-			int length = inputStream.read(bytes);
-			// length now stores the number of bytes read into the array.
-			if (length > 140) {
-				messageToLong(outputStream);
-			} else {
-				messageRightSize(outputStream, bytes, length);
-			}
-			// connection being closed in finally
-			System.out.println("Connection closed.");
-		} catch (SocketTimeoutException e) {
-			// if socket timeout, terminate connection
-			System.out
-					.println("Client connection timed out. Terminating connection.");
-		} catch (IOException e) {
-			/*
-			 * All other IOExceptions, including SocketException should be dealt
-			 * with in the same way.
-			 */
-			System.out.println(e);
-		} finally {
-			try {
-				inputStream.close();
-				outputStream.close();
-				client.close();
-			} catch (IOException e) {
-				// If connection has already closed, do nothing.
-			}
-		}
-	}
-
-	/**
-	 * Writes the message to a file, and sends the message back to the client.
-	 * Called if the received message is of the right size.
-	 * 
-	 * @param outputStream
-	 *            An outputStream with a client.
-	 * @param bytes
-	 *            The message, as an array of bytes.
-	 * @param length
-	 *            The length of the message in the array.
-	 * @throws IOException
-	 *             If there is an error writing to the client's OutputStream.
-	 */
-	private void messageRightSize(OutputStream outputStream, byte[] bytes,
-			int length) throws IOException {
-		try {
-			writeMessageToFile(bytes, length);
-		} catch (IOException e) {
-			System.out.println("Problem writing message to file:\n"
-					+ e.getMessage());
-		}
-		// send message back to client
-		ByteWriter.write(outputStream, bytes, length);
-	}
-
-	/**
-	 * Called if the received message is too long. Prints an error message to
-	 * the console and writes an error message back to the client.
-	 * 
-	 * @param outputStream
-	 *            An outputStream with a client.
-	 * @param bytes
-	 *            The message, as an array of bytes.
-	 * @param length
-	 *            The length of the message in the array.
-	 * @throws IOException
-	 *             If there is an error writing to the client's OutputStream.
-	 */
-	private void messageToLong(OutputStream outputStream) throws IOException {
-		System.out.println("Message recevied is too long.");
-		// send error message to client
-		ByteWriter.write(outputStream,
-				"Message recevied was too long. Please try again.");
-	}
-
-	/**
-	 * Find the appropriate directory and filename and write the message to a
-	 * file.
-	 * 
-	 * @param bytes
-	 *            An array of bytes, containing the message.
-	 * @param length
-	 *            The number of bytes of the message.
-	 * @throws IOException
-	 *             If it is not possible to write to the file.
-	 */
-	private void writeMessageToFile(byte[] bytes, int length)
-			throws IOException {
-		String dirName = TWIT_DIRECTORY + getDateStamp();
-		File dir = new File(dirName);
-		if (!dir.exists()) {
-			createDir(dir);
-		}
-		String fileName = dirName + File.separator + getTimeStamp();
-		File file = new File(fileName);
-		if (file.exists()) {
-			System.out.println("File already exists: " + fileName);
-			System.out.println("Aborting.");
-			return;
-		}
-		writeFile(file, bytes, length);
-		String message = new String(bytes, 0, length);
-		System.out.println("Message written to file:\n" + message);
-	}
-
-	/**
-	 * Write a number of bytes to a file.
-	 * 
-	 * @param file
-	 *            The file to be written to.
-	 * @param bytes
-	 *            An array of bytes.
-	 * @param length
-	 *            The number of bytes from the array to be written to the file.
-	 * @throws IOException
-	 *             If it is not possible to write to the file.
-	 */
-	public static void writeFile(File file, byte[] bytes, int length)
-			throws IOException {
-		FileOutputStream out = new FileOutputStream(file);
-		out.write(bytes, 0, length);
-		out.flush();
-		out.close();
-	}
-
-	/**
-	 * Create a directory from a given File object.
-	 * 
-	 * @param dir
-	 *            The directory File object to be created.
-	 */
-	private void createDir(File dir) {
-		if (!dir.mkdirs()) {
-			System.out.println("Could not create directory:\n\t"
-					+ dir.getAbsolutePath());
-			System.exit(0);
-		}
-	}
-
-	/**
-	 * Get the date stamp for today in the format: yyyy-MM-dd
-	 * 
-	 * @return A string date stamp.
-	 */
-	private String getDateStamp() {
-		Date d = new Date();
-		return DATE_FORMAT.format(d);
-	}
-
-	/**
-	 * Get the time stamp for right now in the format: yyyy-MM-DD_HH_mm_ss.SSSS
-	 * 
-	 * @return A string time stamp.
-	 */
-	private String getTimeStamp() {
-		Date d = new Date();
-		return TIME_FORMATTER.format(d);
-
-	}
-}
+package twit.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+import twit.io.ByteWriter;
+import twit.io.Protocol;
+
+public class ClientHandler implements Runnable {
+
+	// wait for incoming message for 15 seconds before terminating connection
+	private static final int TIME_OUT = 15000;
+	private static final String TOO_LONG_REPLY = "Message recevied was too long. Please try again.";
+	private static final String MALFORMED_REPLY = "Message received was not valid UTF-8. Please try again.";
+	private static final String NOT_STORED_REPLY = "Message could not be stored. Please try again.";
+	private static final String RATE_LIMITED_REPLY = "Too many messages. Please try again later.";
+
+	private Socket client;
+	// the client's address, by which its messages are counted.
+	private final InetAddress address;
+	private final MessageStore store;
+	private final ServerMetrics metrics;
+	// System.nanoTime() at the moment the connection was accepted.
+	private final long acceptTime;
+	// keeps the read time outs, or null to use a socket time out instead.
+	private final TimingWheel timeouts;
+	// limits how often the client may send messages, or null for no limit.
+	private final RateLimiter rateLimiter;
+	// closes the socket once a read has taken too long, which ends the read.
+	private final Runnable closeOnTimeout = new Runnable() {
+		public void run() {
+			timedOut = true;
+			try {
+				client.close();
+			} catch (IOException e) {
+				// already closed.
+			}
+		}
+	};
+	private volatile boolean timedOut;
+	// set once the server stops accepting connections.
+	private volatile boolean draining;
+	// true while a keep-alive connection waits for the next request.
+	private volatile boolean idle;
+
+	/**
+	 * Create a new ClientHandler which deals with a given client socket,
+	 * writes messages to a given store and records what it does in the
+	 * metrics of its server.
+	 * 
+	 * @param client
+	 *            A socket connection with a client.
+	 * @param store
+	 *            The store in which messages are kept.
+	 * @param metrics
+	 *            The metrics of the server which accepted the connection.
+	 * @param acceptTime
+	 *            The value of System.nanoTime() when the connection was
+	 *            accepted.
+	 */
+	public ClientHandler(Socket client, MessageStore store,
+			ServerMetrics metrics, long acceptTime) {
+		this(client, store, metrics, acceptTime, null);
+	}
+
+	/**
+	 * Create a new ClientHandler which deals with a given client socket,
+	 * writes messages to a given store, records what it does in the metrics
+	 * of its server and keeps its read time outs in a timing wheel rather
+	 * than in the socket.
+	 * 
+	 * @param client
+	 *            A socket connection with a client.
+	 * @param store
+	 *            The store in which messages are kept.
+	 * @param metrics
+	 *            The metrics of the server which accepted the connection.
+	 * @param acceptTime
+	 *            The value of System.nanoTime() when the connection was
+	 *            accepted.
+	 * @param timeouts
+	 *            The timing wheel of the server, or null to use a socket time
+	 *            out.
+	 */
+	public ClientHandler(Socket client, MessageStore store,
+			ServerMetrics metrics, long acceptTime, TimingWheel timeouts) {
+		this(client, store, metrics, acceptTime, timeouts, null);
+	}
+
+	/**
+	 * Create a new ClientHandler which deals with a given client socket,
+	 * writes messages to a given store, records what it does in the metrics
+	 * of its server, keeps its read time outs in a timing wheel and limits
+	 * how often the client may send messages over a keep-alive connection.
+	 * 
+	 * @param client
+	 *            A socket connection with a client.
+	 * @param store
+	 *            The store in which messages are kept.
+	 * @param metrics
+	 *            The metrics of the server which accepted the connection.
+	 * @param acceptTime
+	 *            The value of System.nanoTime() when the connection was
+	 *            accepted.
+	 * @param timeouts
+	 *            The timing wheel of the server, or null to use a socket time
+	 *            out.
+	 * @param rateLimiter
+	 *            The limiter which the connection itself was let through by,
+	 *            or null for no limit. Every message after the first on a
+	 *            keep-alive connection takes a token of its own.
+	 */
+	public ClientHandler(Socket client, MessageStore store,
+			ServerMetrics metrics, long acceptTime, TimingWheel timeouts,
+			RateLimiter rateLimiter) {
+		this.client = client;
+		this.address = client.getInetAddress();
+		this.store = store;
+		this.metrics = metrics;
+		this.acceptTime = acceptTime;
+		this.timeouts = timeouts;
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Deal with client: Attempt to receive message. If successful, send
+	 * confirmation. Send error message back if the message is too long (more
+	 * than 140 code points), is not valid UTF-8 or is too short (0
+	 * characters). Otherwise, if the client times out, print error message to
+	 * console.
+	 */
+	public void run() {
+		InputStream inputStream = null;
+		OutputStream outputStream = null;
+		metrics.activeConnections.increment();
+		try {
+			if (timeouts == null)
+				client.setSoTimeout(TIME_OUT);
+			inputStream = client.getInputStream();
+			outputStream = client.getOutputStream();
+			byte[] bytes = new byte[Protocol.MAX_MESSAGE_BYTES + 1];
+			long readStart = System.nanoTime();
+			TimingWheel.Timeout timeout = startTimeout();
+			// Read up to 561 bytes from inputStream into the array "bytes".
+			int length = inputStream.read(bytes);
+			cancel(timeout);
+			long readEnd = System.nanoTime();
+			metrics.readTime.record(readEnd - readStart);
+			metrics.acceptToFirstByte.record(readEnd - acceptTime);
+			// length now stores the number of bytes read into the array.
+			if (length > 0 && bytes[0] == Protocol.MAGIC) {
+				// the rest of what was read belongs to the keep-alive session.
+				InputStream rest = new SequenceInputStream(
+						new ByteArrayInputStream(bytes, 1, length - 1),
+						inputStream);
+				handleKeepAlive(new DataInputStream(rest), outputStream);
+			} else if (length <= 0) {
+				metrics.rejected(address, metrics.rejectedEmpty);
+				System.out.println("Message received is empty.");
+			} else {
+				int status = Protocol.checkMessage(bytes, 0, length);
+				if (status == Protocol.TOO_LONG) {
+					metrics.rejected(address, metrics.rejectedTooLong);
+					messageToLong(outputStream);
+				} else if (status == Protocol.MALFORMED) {
+					metrics.rejected(address, metrics.rejectedMalformed);
+					System.out.println("Message received is not valid UTF-8.");
+					ByteWriter.write(outputStream, MALFORMED_REPLY);
+				} else {
+					metrics.messageSize.record(length);
+					messageRightSize(outputStream, bytes, length);
+				}
+			}
+			// connection being closed in finally
+			System.out.println("Connection closed.");
+		} catch (SocketTimeoutException e) {
+			// if socket timeout, terminate connection
+			metrics.rejected(address, metrics.rejectedTimeout);
+			System.out
+					.println("Client connection timed out. Terminating connection.");
+		} catch (IOException e) {
+			if (timedOut) {
+				// the socket was closed by the timing wheel.
+				metrics.rejected(address, metrics.rejectedTimeout);
+				System.out
+						.println("Client connection timed out. Terminating connection.");
+				return;
+			}
+			/*
+			 * All other IOExceptions, including SocketException should be dealt
+			 * with in the same way.
+			 */
+			System.out.println(e);
+		} finally {
+			metrics.activeConnections.decrement();
+			try {
+				inputStream.close();
+				outputStream.close();
+				client.close();
+			} catch (IOException e) {
+				// If connection has already closed, do nothing.
+			}
+		}
+	}
+
+	/**
+	 * Close the connection once the request in progress, if any, has been
+	 * answered. A keep-alive connection waiting for its next request is
+	 * closed at once. Called when the server stops accepting connections.
+	 */
+	public void drain() {
+		draining = true;
+		if (idle)
+			close();
+	}
+
+	/**
+	 * Close the connection at once, even if a request is in progress.
+	 */
+	public void close() {
+		try {
+			client.close();
+		} catch (IOException e) {
+			// already closed.
+		}
+	}
+
+	/**
+	 * Writes the message to a file, and sends the message back to the client.
+	 * Called if the received message is of the right size. If the message
+	 * cannot be written, an error message is sent instead, so a message is
+	 * only ever confirmed once it has been stored.
+	 * 
+	 * @param outputStream
+	 *            An outputStream with a client.
+	 * @param bytes
+	 *            The message, as an array of bytes.
+	 * @param length
+	 *            The length of the message in the array.
+	 * @throws IOException
+	 *             If there is an error writing to the client's OutputStream.
+	 */
+	private void messageRightSize(OutputStream outputStream, byte[] bytes,
+			int length) throws IOException {
+		if (persist(bytes, length) == null) {
+			ByteWriter.write(outputStream, NOT_STORED_REPLY);
+			return;
+		}
+		long ackStart = System.nanoTime();
+		// send message back to client
+		ByteWriter.write(outputStream, bytes, length);
+		metrics.ackTime.record(System.nanoTime() - ackStart);
+	}
+
+	/**
+	 * Deal with a keep-alive connection: answer the handshake, then receive
+	 * and answer requests until the client closes the connection, it has been
+	 * idle for longer than the time out or the server is draining.
+	 * 
+	 * @param in
+	 *            The client's input, positioned after the MAGIC byte.
+	 * @param outputStream
+	 *            An outputStream with a client.
+	 * @throws IOException
+	 *             If there is an error communicating with the client.
+	 * @see Protocol
+	 */
+	private void handleKeepAlive(DataInputStream in, OutputStream outputStream)
+			throws IOException {
+		TimingWheel.Timeout handshake = startTimeout();
+		int version = Math.min(in.readUnsignedByte(), Protocol.VERSION);
+		int flags = in.readUnsignedByte() & Protocol.COMPACT_ACKS;
+		// version 1 clients do not pad the handshake.
+		if (version >= 2)
+			discard(in, Protocol.HANDSHAKE_LENGTH
+					- Protocol.HANDSHAKE_REPLY_LENGTH);
+		cancel(handshake);
+		Protocol.writeHandshakeReply(outputStream, version, Protocol.ACCEPTED
+				| flags);
+		boolean compactAcks = flags != 0;
+		System.out.println("Keep-alive connection established.");
+		byte[] payload = new byte[Protocol.MAX_MESSAGE_BYTES];
+		// the token taken when the connection was accepted pays for the first
+		// message.
+		boolean paid = true;
+		while (true) {
+			int type;
+			// the time out covers the wait for a frame and reading all of it.
+			TimingWheel.Timeout timeout = startTimeout();
+			// drain() closes the socket if it finds the connection idle, or
+			// this finds draining set; whichever comes second.
+			idle = true;
+			try {
+				if (draining) {
+					cancel(timeout);
+					System.out.println("Server draining. Closing keep-alive"
+							+ " connection.");
+					return;
+				}
+				type = in.read();
+			} catch (IOException e) {
+				if (draining && !timedOut) {
+					cancel(timeout);
+					System.out.println("Server draining. Closing keep-alive"
+							+ " connection.");
+					return;
+				}
+				if (!(e instanceof SocketTimeoutException) && !timedOut)
+					throw e;
+				metrics.idleClosed.increment();
+				System.out.println("Keep-alive connection idle. Closing.");
+				return;
+			} finally {
+				idle = false;
+			}
+			if (type == -1)
+				return;
+			long readStart = System.nanoTime();
+			int length = in.readUnsignedShort();
+			if (type != Protocol.MESSAGE || length == 0
+					|| length > Protocol.MAX_MESSAGE_BYTES) {
+				discard(in, length);
+			} else {
+				in.readFully(payload, 0, length);
+			}
+			cancel(timeout);
+			int status = type == Protocol.MESSAGE ? Protocol.checkMessage(
+					payload, 0, length) : Protocol.ERROR;
+			boolean limited = false;
+			if (type == Protocol.MESSAGE && rateLimiter != null) {
+				limited = !paid && !rateLimiter.tryAcquire(address);
+				paid = false;
+			}
+			if (limited) {
+				metrics.rejected(address, metrics.rejectedRateLimited);
+				Protocol.writeFrame(outputStream, Protocol.ERROR,
+						RATE_LIMITED_REPLY);
+			} else if (type == Protocol.PING) {
+				Protocol.writeFrame(outputStream, Protocol.PONG, payload, 0, 0);
+			} else if (type != Protocol.MESSAGE) {
+				metrics.rejected(address, metrics.rejectedUnknownRequest);
+				Protocol.writeFrame(outputStream, Protocol.ERROR,
+						"Unknown request type: " + type);
+			} else if (status == Protocol.TOO_LONG) {
+				metrics.rejected(address, metrics.rejectedTooLong);
+				Protocol.writeFrame(outputStream, Protocol.TOO_LONG,
+						TOO_LONG_REPLY);
+			} else if (status == Protocol.EMPTY) {
+				metrics.rejected(address, metrics.rejectedEmpty);
+				Protocol.writeFrame(outputStream, Protocol.EMPTY,
+						"Message received was empty.");
+			} else if (status == Protocol.MALFORMED) {
+				metrics.rejected(address, metrics.rejectedMalformed);
+				Protocol.writeFrame(outputStream, Protocol.MALFORMED,
+						MALFORMED_REPLY);
+			} else {
+				metrics.readTime.record(System.nanoTime() - readStart);
+				metrics.messageSize.record(length);
+				StoredMessage stored = persist(payload, length);
+				if (stored != null) {
+					long ackStart = System.nanoTime();
+					if (compactAcks) {
+						Protocol.writeCompactAck(outputStream, stored.getId(),
+								stored.getTimeMillis());
+					} else {
+						Protocol.writeFrame(outputStream, Protocol.OK,
+								payload, 0, length);
+					}
+					metrics.ackTime.record(System.nanoTime() - ackStart);
+				} else {
+					Protocol.writeFrame(outputStream, Protocol.ERROR,
+							NOT_STORED_REPLY);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start the time out of the next read from the client, if the time outs
+	 * are kept in a timing wheel. Once it passes, the socket is closed, which
+	 * ends the read with an exception and sets timedOut.
+	 * 
+	 * @return The time out, or null if the socket keeps the time out itself.
+	 */
+	private TimingWheel.Timeout startTimeout() {
+		return timeouts == null ? null : timeouts.schedule(closeOnTimeout,
+				TIME_OUT);
+	}
+
+	private static void cancel(TimingWheel.Timeout timeout) {
+		if (timeout != null)
+			timeout.cancel();
+	}
+
+	/**
+	 * Read and throw away a number of bytes.
+	 * 
+	 * @param in
+	 *            The client's input.
+	 * @param length
+	 *            The number of bytes to discard.
+	 * @throws IOException
+	 *             If the bytes cannot be read.
+	 */
+	private static void discard(DataInputStream in, int length)
+			throws IOException {
+		while (length > 0) {
+			int skipped = in.skipBytes(length);
+			if (skipped <= 0) {
+				in.readByte();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	/**
+	 * Write a message to the store, recording how long it took.
+	 * 
+	 * @param bytes
+	 *            The message, as an array of bytes.
+	 * @param length
+	 *            The length of the message in the array.
+	 * @return The stored message, or null if it could not be stored.
+	 */
+	private StoredMessage persist(byte[] bytes, int length) {
+		long persistStart = System.nanoTime();
+		StoredMessage stored;
+		try {
+			stored = writeMessageToFile(bytes, length);
+		} catch (IOException e) {
+			System.out.println("Problem writing message to file:\n"
+					+ e.getMessage());
+			metrics.rejected(address, metrics.rejectedNotStored);
+			return null;
+		}
+		metrics.stored(address, bytes, length, stored, System.nanoTime()
+				- persistStart);
+		return stored;
+	}
+
+	/**
+	 * Called if the received message is too long. Prints an error message to
+	 * the console and writes an error message back to the client.
+	 * 
+	 * @param outputStream
+	 *            An outputStream with a client.
+	 * @param bytes
+	 *            The message, as an array of bytes.
+	 * @param length
+	 *            The length of the message in the array.
+	 * @throws IOException
+	 *             If there is an error writing to the client's OutputStream.
+	 */
+	private void messageToLong(OutputStream outputStream) throws IOException {
+		System.out.println("Message recevied is too long.");
+		// send error message to client
+		ByteWriter.write(outputStream, TOO_LONG_REPLY);
+	}
+
+	/**
+	 * Write the message to a new file in the message store.
+	 * 
+	 * @param bytes
+	 *            An array of bytes, containing the message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @return A description of the stored message.
+	 * @throws IOException
+	 *             If it is not possible to write to the file.
+	 */
+	private StoredMessage writeMessageToFile(byte[] bytes, int length)
+			throws IOException {
+		StoredMessage stored = store.store(bytes, length);
+		String message = new String(bytes, 0, length, StandardCharsets.UTF_8);
+		System.out.println("Message written to file:\n" + message);
+		return stored;
+	}
+
+	/**
+	 * Write a number of bytes to a file.
+	 * 
+	 * @param file
+	 *            The file to be written to.
+	 * @param bytes
+	 *            An array of bytes.
+	 * @param length
+	 *            The number of bytes from the array to be written to the file.
+	 * @throws IOException
+	 *             If it is not possible to write to the file.
+	 */
+	public static void writeFile(File file, byte[] bytes, int length)
+			throws IOException {
+		MessageStore.writeFile(file, bytes, length);
+	}
+}
@@ -0,0 +1,238 @@
+package twit.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import twit.io.Protocol;
+import twit.metrics.Counter;
+
+/**
+ * Receives messages sent as UDP datagrams, one message per datagram, for
+ * senders which would rather lose the odd message than set up a connection
+ * for each one. Messages are checked and stored just as ClientHandler does,
+ * in the same MessageStore.
+ * 
+ * A single thread, running run(), waits for datagrams, then takes every
+ * datagram already waiting, up to BATCH_SIZE, before storing them, so that a
+ * burst costs one wake-up rather than one per message. Server runs it as one
+ * of its client handlers, so that shutting down waits for the batch being
+ * stored before the store is closed.
+ * 
+ * If acks are turned on, every datagram is answered with a datagram holding
+ * a Protocol status byte, followed by the eight byte id of the message if it
+ * was stored (OK). An ack which does not fit in the socket's send buffer is
+ * dropped, as the sender has to cope with lost datagrams anyway. Datagrams and
+ * acks which are dropped are counted in the server metrics.
+ */
+public class DatagramReceiver implements Runnable {
+	private static final int BATCH_SIZE = 64;
+	// room for bursts while the thread is storing the previous batch.
+	private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final MessageStore store;
+	private final ServerMetrics metrics;
+	private final boolean acks;
+	// one more byte than a message may have, to tell when one is too long.
+	private final ByteBuffer[] buffers = new ByteBuffer[BATCH_SIZE];
+	private final SocketAddress[] senders = new SocketAddress[BATCH_SIZE];
+	private final byte[] bytes = new byte[Protocol.MAX_MESSAGE_BYTES + 1];
+	private final ByteBuffer ack = ByteBuffer.allocate(9);
+
+	private final Counter received;
+	private final Counter droppedTooLong;
+	private final Counter droppedEmpty;
+	private final Counter droppedMalformed;
+	private final Counter droppedNotStored;
+	private final Counter acksDropped;
+
+	/**
+	 * Bind a port for receiving datagrams. Nothing is received until run() is
+	 * called.
+	 * 
+	 * @param port
+	 *            The UDP port at which to receive, or 0 to use any free port.
+	 * @param store
+	 *            The store in which messages are kept.
+	 * @param metrics
+	 *            The metrics of the server, to which the receiver adds its
+	 *            own.
+	 * @param acks
+	 *            Whether to answer every datagram.
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 */
+	public DatagramReceiver(int port, MessageStore store,
+			ServerMetrics metrics, boolean acks) throws IOException {
+		this.store = store;
+		this.metrics = metrics;
+		this.acks = acks;
+		received = metrics.getRegistry().counter("udp.received");
+		droppedTooLong = metrics.getRegistry().counter("udp.dropped.tooLong");
+		droppedEmpty = metrics.getRegistry().counter("udp.dropped.empty");
+		droppedMalformed = metrics.getRegistry().counter(
+				"udp.dropped.malformed");
+		droppedNotStored = metrics.getRegistry().counter(
+				"udp.dropped.notStored");
+		acksDropped = metrics.getRegistry().counter("udp.acksDropped");
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			buffers[i] = ByteBuffer
+					.allocateDirect(Protocol.MAX_MESSAGE_BYTES + 1);
+		}
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_RCVBUF,
+				RECEIVE_BUFFER_SIZE);
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Get the port at which datagrams are received.
+	 * 
+	 * @return The local port.
+	 */
+	public int getPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	/**
+	 * Stop receiving datagrams. Datagrams already taken are still stored, and
+	 * run() returns once they have been.
+	 */
+	public void stop() {
+		try {
+			channel.close();
+			selector.wakeup();
+		} catch (IOException e) {
+			// already closed.
+		}
+	}
+
+	/**
+	 * Receive and store batches of datagrams until stopped.
+	 */
+	public void run() {
+		try {
+			while (channel.isOpen()) {
+				selector.select();
+				selector.selectedKeys().clear();
+				int count = receiveBatch();
+				for (int i = 0; i < count; i++) {
+					handle(buffers[i], senders[i]);
+				}
+			}
+		} catch (ClosedChannelException e) {
+			// stopped.
+		} catch (IOException e) {
+			if (channel.isOpen())
+				System.out.println("E: " + e);
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// nothing more to do.
+			}
+		}
+	}
+
+	/**
+	 * Take the datagrams which are waiting, without blocking. If stop()
+	 * closes the channel in the middle of a batch, the datagrams already
+	 * taken are kept, so run() stores them before it returns.
+	 * 
+	 * @return The number of datagrams taken.
+	 */
+	private int receiveBatch() throws IOException {
+		int count = 0;
+		while (count < BATCH_SIZE) {
+			ByteBuffer buffer = buffers[count];
+			buffer.clear();
+			SocketAddress sender;
+			try {
+				sender = channel.receive(buffer);
+			} catch (ClosedChannelException e) {
+				break;
+			}
+			if (sender == null)
+				break;
+			buffer.flip();
+			senders[count++] = sender;
+		}
+		received.add(count);
+		return count;
+	}
+
+	/**
+	 * Check and store one datagram, and answer it if acks are on. A datagram
+	 * longer than the buffer is cut short by the channel, so one which fills
+	 * the buffer is too long.
+	 */
+	private void handle(ByteBuffer buffer, SocketAddress sender) {
+		int length = buffer.remaining();
+		InetAddress address = ((InetSocketAddress) sender).getAddress();
+		buffer.get(bytes, 0, length);
+		int status = Protocol.checkMessage(bytes, 0, length);
+		if (status == Protocol.TOO_LONG) {
+			droppedTooLong.increment();
+			metrics.rejected(address, metrics.rejectedTooLong);
+			sendAck(sender, status, 0);
+			return;
+		}
+		if (status == Protocol.EMPTY) {
+			droppedEmpty.increment();
+			metrics.rejected(address, metrics.rejectedEmpty);
+			sendAck(sender, status, 0);
+			return;
+		}
+		if (status == Protocol.MALFORMED) {
+			droppedMalformed.increment();
+			metrics.rejected(address, metrics.rejectedMalformed);
+			sendAck(sender, status, 0);
+			return;
+		}
+		metrics.messageSize.record(length);
+		long persistStart = System.nanoTime();
+		StoredMessage message;
+		try {
+			message = store.store(bytes, length);
+		} catch (IOException e) {
+			System.out.println("Problem writing message to file:\n"
+					+ e.getMessage());
+			droppedNotStored.increment();
+			metrics.rejected(address, metrics.rejectedNotStored);
+			sendAck(sender, Protocol.ERROR, 0);
+			return;
+		}
+		metrics.stored(address, bytes, length, message, System.nanoTime()
+				- persistStart);
+		sendAck(sender, Protocol.OK, message.getId());
+	}
+
+	private void sendAck(SocketAddress sender, int status, long id) {
+		if (!acks)
+			return;
+		ack.clear();
+		ack.put((byte) status);
+		if (status == Protocol.OK)
+			ack.putLong(id);
+		ack.flip();
+		try {
+			if (channel.send(ack, sender) == 0)
+				acksDropped.increment();
+		} catch (IOException e) {
+			// the sender cannot be reached; it has to cope without the ack.
+			acksDropped.increment();
+		}
+	}
+}
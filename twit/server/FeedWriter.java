@@ -0,0 +1,240 @@
+package twit.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Keeps two feed files for every day next to the day directories of a
+ * MessageStore, so that web clients can fetch one document per day instead
+ * of one file per message:
+ * 
+ * directory/yyyy-MM-dd.jsonl has one JSON object per line, such as
+ * {"id":1235978547209000,"time":"2009-03-02T07:22:27.209Z","message":"Hi"}
+ * 
+ * directory/yyyy-MM-dd.html is a page listing the day's messages.
+ * 
+ * Each message costs one append to each file, never a rewrite. The HTML page
+ * always ends with the same closing line, which is overwritten by the next
+ * message and written again after it. A line cut short by the server being
+ * killed is cut off when the feed is next opened.
+ * 
+ * Messages appear in the order in which they were appended, which is the
+ * order of their ids except for messages stored at almost the same moment.
+ */
+public class FeedWriter {
+	// the time of a message in the feeds, always in UTC.
+	static final String ISO_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+	private static final String HTML_TRAILER = "</ol></body></html>\n";
+
+	private final File directory;
+	// the following are guarded by "this".
+	private final SimpleDateFormat isoFormat = new SimpleDateFormat(
+			ISO_FORMAT);
+	private final SimpleDateFormat clockFormat = new SimpleDateFormat(
+			"HH:mm:ss");
+	private final StringBuilder text = new StringBuilder();
+	// the day whose feeds are open, or null.
+	private String day;
+	private RandomAccessFile json;
+	private RandomAccessFile html;
+
+	/**
+	 * Create a new FeedWriter.
+	 * 
+	 * @param directory
+	 *            The directory of the message store.
+	 */
+	public FeedWriter(File directory) {
+		this.directory = directory;
+		isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/**
+	 * Append a message to the feeds of its day. The feeds of the previous day
+	 * are closed when the first message of a new day arrives.
+	 * 
+	 * @param dayName
+	 *            The name of the day directory of the message, yyyy-MM-dd.
+	 * @param message
+	 *            The stored message.
+	 * @param bytes
+	 *            An array of bytes, containing the message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @throws IOException
+	 *             If the feeds cannot be written.
+	 */
+	public synchronized void append(String dayName, StoredMessage message,
+			byte[] bytes, int length) throws IOException {
+		if (!dayName.equals(day))
+			open(dayName);
+		String body = new String(bytes, 0, length, StandardCharsets.UTF_8);
+		Date time = new Date(message.getTimeMillis());
+
+		text.setLength(0);
+		text.append("{\"id\":").append(message.getId()).append(",\"time\":\"")
+				.append(isoFormat.format(time)).append("\",\"message\":\"");
+		appendJson(text, body);
+		text.append("\"}\n");
+		json.seek(json.length());
+		json.write(text.toString().getBytes(StandardCharsets.UTF_8));
+
+		text.setLength(0);
+		text.append("<li id=\"m").append(message.getId())
+				.append("\"><time datetime=\"").append(isoFormat.format(time))
+				.append("\">").append(clockFormat.format(time))
+				.append("</time> ");
+		appendHtml(body);
+		text.append("</li>\n").append(HTML_TRAILER);
+		html.seek(html.length() - HTML_TRAILER.length());
+		html.write(text.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Get the JSON lines feed of a day.
+	 * 
+	 * @param directory
+	 *            The directory of the message store.
+	 * @param dayName
+	 *            The name of the day, yyyy-MM-dd.
+	 * @return The feed file, which does not exist if no message has been
+	 *         stored on that day.
+	 */
+	public static File getJsonFile(File directory, String dayName) {
+		return new File(directory, dayName + ".jsonl");
+	}
+
+	/**
+	 * Close the feeds which are open.
+	 */
+	public synchronized void close() {
+		closeFeeds();
+		day = null;
+	}
+
+	/**
+	 * Open the feeds of a day, creating them if necessary, and cut off
+	 * anything left half written.
+	 */
+	private void open(String dayName) throws IOException {
+		closeFeeds();
+		day = null;
+		json = new RandomAccessFile(getJsonFile(directory, dayName), "rw");
+		json.setLength(endOfLastLine(json));
+		html = new RandomAccessFile(new File(directory, dayName + ".html"),
+				"rw");
+		long end = endOfLastLine(html);
+		html.setLength(end);
+		if (end == 0) {
+			html.write(("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\">"
+					+ "<title>TWIt " + dayName + "</title></head>\n<body><h1>"
+					+ dayName + "</h1><ol>\n" + HTML_TRAILER)
+					.getBytes(StandardCharsets.UTF_8));
+		} else if (!endsWith(html, HTML_TRAILER)) {
+			// the closing line itself was cut short.
+			html.seek(end);
+			html.write(HTML_TRAILER.getBytes(StandardCharsets.UTF_8));
+		}
+		day = dayName;
+	}
+
+	private void closeFeeds() {
+		try {
+			if (json != null)
+				json.close();
+			if (html != null)
+				html.close();
+		} catch (IOException e) {
+			// nothing is buffered, so nothing is lost.
+		}
+		json = null;
+		html = null;
+	}
+
+	/**
+	 * Find the end of the last complete line of a file.
+	 * 
+	 * @return The position just after the last newline, or 0.
+	 */
+	private static long endOfLastLine(RandomAccessFile file)
+			throws IOException {
+		byte[] buffer = new byte[4096];
+		long end = file.length();
+		while (end > 0) {
+			int count = (int) Math.min(buffer.length, end);
+			file.seek(end - count);
+			file.readFully(buffer, 0, count);
+			for (int i = count - 1; i >= 0; i--) {
+				if (buffer[i] == '\n')
+					return end - count + i + 1;
+			}
+			end -= count;
+		}
+		return 0;
+	}
+
+	private static boolean endsWith(RandomAccessFile file, String suffix)
+			throws IOException {
+		byte[] expected = suffix.getBytes(StandardCharsets.UTF_8);
+		if (file.length() < expected.length)
+			return false;
+		byte[] actual = new byte[expected.length];
+		file.seek(file.length() - expected.length);
+		file.readFully(actual);
+		return Arrays.equals(actual, expected);
+	}
+
+	/**
+	 * Append a string to a StringBuilder, escaped for use inside a JSON
+	 * string.
+	 * 
+	 * @param text
+	 *            The StringBuilder.
+	 * @param s
+	 *            The string to be escaped.
+	 */
+	static void appendJson(StringBuilder text, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				text.append('\\').append(c);
+			} else if (c == '\n') {
+				text.append("\\n");
+			} else if (c == '\r') {
+				text.append("\\r");
+			} else if (c == '\t') {
+				text.append("\\t");
+			} else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+				text.append(String.format("\\u%04x", (int) c));
+			} else {
+				text.append(c);
+			}
+		}
+	}
+
+	private void appendHtml(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '<') {
+				text.append("&lt;");
+			} else if (c == '>') {
+				text.append("&gt;");
+			} else if (c == '&') {
+				text.append("&amp;");
+			} else if (c == '"') {
+				text.append("&quot;");
+			} else if (c == '\n' || c == '\r') {
+				// keep one message per line of the page source.
+				text.append(' ');
+			} else {
+				text.append(c);
+			}
+		}
+	}
+}
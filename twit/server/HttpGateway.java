@@ -0,0 +1,551 @@
+package twit.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import twit.metrics.Counter;
+import twit.metrics.Histogram;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the messages in a MessageStore as JSON over HTTP, using the HTTP
+ * server built into the JDK:
+ * 
+ * GET /messages?limit=n&before=id gives the newest messages, newest first,
+ * optionally only those with an id lower than before, for paging back.
+ * 
+ * GET /messages?from=ms&to=ms&limit=n gives the messages stored from one time
+ * up to (not including) another, oldest first.
+ * 
+ * GET /messages/id gives a single message.
+ * 
+ * Lists are read from the JSON lines feeds kept by FeedWriter, reading the
+ * newest feed backwards so that the newest messages are found without reading
+ * the whole day. Every response carries an ETag and a Last-Modified header,
+ * and a client which already has the current version gets 304 Not Modified.
+ * 
+ * Responses are kept in a small LRU cache. A list is only valid while no
+ * message has been stored since it was read, so storing a message invalidates
+ * every cached list at once without touching the cache. A single message is
+ * only served once the store has finished writing its file, and never changes
+ * after that, so it stays cached until it is evicted.
+ */
+public class HttpGateway {
+	private static final int THREADS = 4;
+	private static final int CACHE_SIZE = 256;
+	private static final int DEFAULT_LIMIT = 20;
+	private static final int MAX_LIMIT = 1000;
+	// bytes of a feed read at a time.
+	private static final int CHUNK_SIZE = 16384;
+	private static final byte[] ID_PREFIX = "{\"id\":"
+			.getBytes(StandardCharsets.US_ASCII);
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * A response which may be sent more than once.
+	 */
+	private static class Response {
+		final byte[] body;
+		final String etag;
+		final long lastModified;
+		// the stored count for which a list is valid, or -1 if the response
+		// never changes.
+		final long storedCount;
+
+		Response(byte[] body, String etag, long lastModified, long storedCount) {
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.storedCount = storedCount;
+		}
+
+		boolean isCurrent(long currentCount) {
+			return storedCount == -1 || storedCount == currentCount;
+		}
+	}
+
+	private final MessageStore store;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	// ETags of this run of the server must differ from those of earlier runs,
+	// as the stored count starts again from 0.
+	private final String etagPrefix = Long.toString(
+			System.currentTimeMillis(), 36);
+	private final long startMillis = System.currentTimeMillis();
+	// access-ordered, so the least recently used response is evicted first;
+	// guarded by itself.
+	private final Map<String, Response> cache = new LinkedHashMap<String, Response>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Response> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final Counter requests;
+	private final Counter cacheHits;
+	private final Counter notModified;
+	private final Histogram requestTime;
+
+	/**
+	 * Start serving messages over HTTP.
+	 * 
+	 * @param store
+	 *            The store whose messages are served.
+	 * @param port
+	 *            The port at which to accept HTTP connections, or 0 to use
+	 *            any free port.
+	 * @param metrics
+	 *            The metrics of the server, to which the gateway adds its own.
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 */
+	public HttpGateway(MessageStore store, int port, ServerMetrics metrics)
+			throws IOException {
+		this.store = store;
+		requests = metrics.getRegistry().counter("http.requests");
+		cacheHits = metrics.getRegistry().counter("http.cacheHits");
+		notModified = metrics.getRegistry().counter("http.notModified");
+		requestTime = metrics.getRegistry().histogram("latency.http.ns");
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/messages", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				HttpGateway.this.handle(exchange);
+			}
+		});
+		executor = Executors.newFixedThreadPool(THREADS);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Get the port at which the gateway accepts HTTP connections.
+	 * 
+	 * @return The local port.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop accepting HTTP connections, and stop the threads which answer
+	 * requests.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		requests.increment();
+		try {
+			String method = exchange.getRequestMethod();
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				sendError(exchange, 405, "Only GET and HEAD are supported.");
+				return;
+			}
+			String key = exchange.getRequestURI().toString();
+			// read before the store so that a message stored meanwhile makes
+			// the response out of date rather than the cache wrong.
+			long storedCount = store.getStoredCount();
+			Response response;
+			synchronized (cache) {
+				response = cache.get(key);
+			}
+			if (response != null && response.isCurrent(storedCount)) {
+				cacheHits.increment();
+			} else {
+				response = build(exchange.getRequestURI().getPath(),
+						exchange.getRequestURI().getRawQuery(), storedCount);
+				if (response == null) {
+					sendError(exchange, 404, "No such message.");
+					return;
+				}
+				synchronized (cache) {
+					cache.put(key, response);
+				}
+			}
+			send(exchange, response);
+		} catch (IllegalArgumentException e) {
+			sendError(exchange, 400, e.getMessage());
+		} catch (IOException e) {
+			System.out.println("Problem answering HTTP request:\n"
+					+ e.getMessage());
+			sendError(exchange, 500, "Messages could not be read.");
+		} finally {
+			exchange.close();
+			requestTime.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Build the response to a request.
+	 * 
+	 * @return The response, or null if there is no such message.
+	 * @throws IllegalArgumentException
+	 *             If the query is not valid.
+	 */
+	private Response build(String path, String query, long storedCount)
+			throws IOException {
+		if (path.equals("/messages") || path.equals("/messages/"))
+			return buildList(parseQuery(query), storedCount);
+		long id;
+		try {
+			id = Long.parseLong(path.substring("/messages/".length()));
+		} catch (RuntimeException e) {
+			return null;
+		}
+		return buildMessage(id);
+	}
+
+	private Response buildList(Map<String, String> query, long storedCount)
+			throws IOException {
+		// checked before the cast, which would wrap a huge limit into range.
+		long requested = getLong(query, "limit", DEFAULT_LIMIT);
+		if (requested < 1 || requested > MAX_LIMIT)
+			throw new IllegalArgumentException("limit must be from 1 to "
+					+ MAX_LIMIT + ".");
+		int limit = (int) requested;
+		List<byte[]> lines = new ArrayList<byte[]>();
+		if (query.containsKey("from") || query.containsKey("to")) {
+			long from = getLong(query, "from", 0);
+			long to = getLong(query, "to", Long.MAX_VALUE);
+			readRange(from, to, limit, lines);
+		} else {
+			readNewest(getLong(query, "before", Long.MAX_VALUE), limit, lines);
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write('[');
+		for (int i = 0; i < lines.size(); i++) {
+			if (i > 0)
+				body.write(',');
+			body.write(lines.get(i));
+		}
+		body.write(']');
+		long lastModified = store.getLastStoredMillis();
+		return new Response(body.toByteArray(), "\"" + etagPrefix + "-"
+				+ storedCount + "\"", lastModified > 0 ? lastModified
+				: startMillis, storedCount);
+	}
+
+	private Response buildMessage(long id) throws IOException {
+		// a file still being written may be empty or cut short.
+		if (!store.isComplete(id))
+			return null;
+		File file = store.getFile(id);
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(file.toPath());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		long timeMillis = MessageStore.getTimeMillis(id);
+		SimpleDateFormat isoFormat = new SimpleDateFormat(
+				FeedWriter.ISO_FORMAT);
+		isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		StringBuilder text = new StringBuilder();
+		text.append("{\"id\":").append(id).append(",\"time\":\"")
+				.append(isoFormat.format(new Date(timeMillis)))
+				.append("\",\"message\":\"");
+		FeedWriter.appendJson(text, new String(bytes, StandardCharsets.UTF_8));
+		text.append("\"}");
+		return new Response(text.toString().getBytes(StandardCharsets.UTF_8),
+				"\"" + id + "\"", timeMillis, -1);
+	}
+
+	/**
+	 * Read the newest messages with an id lower than before, newest first.
+	 */
+	private void readNewest(long before, int limit, List<byte[]> lines)
+			throws IOException {
+		String lastDay = before == Long.MAX_VALUE ? null : store
+				.getDayName(MessageStore.getTimeMillis(before));
+		List<String> days = getFeedDays();
+		for (int i = days.size() - 1; i >= 0 && lines.size() < limit; i--) {
+			if (lastDay == null || days.get(i).compareTo(lastDay) <= 0)
+				readBackwards(store.getJsonFeed(days.get(i)), before, limit,
+						lines);
+		}
+	}
+
+	/**
+	 * Read the messages stored from one time up to another, oldest first.
+	 */
+	private void readRange(long from, long to, int limit, List<byte[]> lines)
+			throws IOException {
+		if (from < 0 || to < from)
+			throw new IllegalArgumentException("from and to must be times in"
+					+ " milliseconds, from no later than to.");
+		// days are only compared by name within the years that have names.
+		long latest = System.currentTimeMillis() + DAY_MILLIS;
+		String firstDay = store.getDayName(Math.min(from, latest));
+		String lastDay = store.getDayName(Math.min(to, latest));
+		long fromId = from > Long.MAX_VALUE / MessageStore.IDS_PER_MILLISECOND
+				? Long.MAX_VALUE : from * MessageStore.IDS_PER_MILLISECOND;
+		long toId = to > Long.MAX_VALUE / MessageStore.IDS_PER_MILLISECOND
+				? Long.MAX_VALUE : to * MessageStore.IDS_PER_MILLISECOND;
+		for (String day : getFeedDays()) {
+			if (lines.size() >= limit)
+				break;
+			if (day.compareTo(firstDay) >= 0 && day.compareTo(lastDay) <= 0)
+				readForwards(store.getJsonFeed(day), fromId, toId, limit, lines);
+		}
+	}
+
+	/**
+	 * Get the names of the days which have a JSON lines feed, in order.
+	 */
+	private List<String> getFeedDays() {
+		String[] names = store.getDirectory().list();
+		List<String> days = new ArrayList<String>();
+		if (names == null)
+			return days;
+		Arrays.sort(names);
+		for (String name : names) {
+			// yyyy-MM-dd.jsonl
+			if (name.length() == 16 && name.endsWith(".jsonl"))
+				days.add(name.substring(0, 10));
+		}
+		return days;
+	}
+
+	/**
+	 * Read the lines of a feed from the end, taking those with an id lower
+	 * than before, until limit lines have been taken. A last line with no
+	 * newline is still being written, and is left out.
+	 */
+	private static void readBackwards(File feed, long before, int limit,
+			List<byte[]> lines) throws IOException {
+		RandomAccessFile in;
+		try {
+			in = new RandomAccessFile(feed, "r");
+		} catch (FileNotFoundException e) {
+			return;
+		}
+		try {
+			byte[] buffer = new byte[CHUNK_SIZE];
+			// position of the newline ending the line being looked for.
+			long lineEnd = -1;
+			long position = in.length();
+			while (position > 0 && lines.size() < limit) {
+				int count = (int) Math.min(buffer.length, position);
+				position -= count;
+				in.seek(position);
+				in.readFully(buffer, 0, count);
+				for (int i = count - 1; i >= 0 && lines.size() < limit; i--) {
+					if (buffer[i] != '\n')
+						continue;
+					if (lineEnd >= 0)
+						takeLine(in, position + i + 1, lineEnd, before, lines);
+					lineEnd = position + i;
+				}
+			}
+			// the first line of the feed has no newline before it.
+			if (position == 0 && lineEnd > 0 && lines.size() < limit)
+				takeLine(in, 0, lineEnd, before, lines);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void takeLine(RandomAccessFile in, long start, long end,
+			long before, List<byte[]> lines) throws IOException {
+		byte[] line = new byte[(int) (end - start)];
+		in.seek(start);
+		in.readFully(line);
+		long id = parseId(line);
+		if (id >= 0 && id < before)
+			lines.add(line);
+	}
+
+	/**
+	 * Read the lines of a feed from the start, taking those with an id from
+	 * fromId up to toId, until limit lines have been taken.
+	 */
+	private static void readForwards(File feed, long fromId, long toId,
+			int limit, List<byte[]> lines) throws IOException {
+		InputStream in;
+		try {
+			in = new FileInputStream(feed);
+		} catch (FileNotFoundException e) {
+			return;
+		}
+		try {
+			byte[] buffer = new byte[CHUNK_SIZE];
+			// the start of a line which runs on into the next chunk.
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int count;
+			while (lines.size() < limit && (count = in.read(buffer)) != -1) {
+				int start = 0;
+				for (int i = 0; i < count && lines.size() < limit; i++) {
+					if (buffer[i] != '\n')
+						continue;
+					line.write(buffer, start, i - start);
+					start = i + 1;
+					byte[] bytes = line.toByteArray();
+					line.reset();
+					long id = parseId(bytes);
+					if (id >= fromId && id < toId)
+						lines.add(bytes);
+				}
+				line.write(buffer, start, count - start);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Get the id from a line of a JSON lines feed.
+	 * 
+	 * @return The id, or -1 if the line does not start with one.
+	 */
+	private static long parseId(byte[] line) {
+		if (line.length <= ID_PREFIX.length)
+			return -1;
+		for (int i = 0; i < ID_PREFIX.length; i++) {
+			if (line[i] != ID_PREFIX[i])
+				return -1;
+		}
+		long id = 0;
+		int i = ID_PREFIX.length;
+		while (i < line.length && line[i] >= '0' && line[i] <= '9') {
+			id = id * 10 + (line[i] - '0');
+			i++;
+		}
+		return i > ID_PREFIX.length ? id : -1;
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (query == null)
+			return parameters;
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals < 0)
+				continue;
+			try {
+				parameters.put(URLDecoder.decode(pair.substring(0, equals),
+						"UTF-8"), URLDecoder.decode(
+						pair.substring(equals + 1), "UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+		}
+		return parameters;
+	}
+
+	private static long getLong(Map<String, String> query, String name,
+			long defaultValue) {
+		String value = query.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a number.");
+		}
+	}
+
+	/**
+	 * Send a response, or 304 Not Modified if the client already has it.
+	 */
+	private void send(HttpExchange exchange, Response response)
+			throws IOException {
+		exchange.getResponseHeaders().set("Content-Type",
+				"application/json; charset=utf-8");
+		exchange.getResponseHeaders().set("ETag", response.etag);
+		exchange.getResponseHeaders().set("Last-Modified",
+				formatHttpDate(response.lastModified));
+		// lists must be checked every time; a message never changes.
+		exchange.getResponseHeaders().set(
+				"Cache-Control",
+				response.storedCount == -1 ? "public, max-age=86400"
+						: "no-cache");
+		if (isNotModified(exchange, response)) {
+			notModified.increment();
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(200, response.body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(response.body);
+		out.close();
+	}
+
+	private static boolean isNotModified(HttpExchange exchange,
+			Response response) {
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst(
+				"If-None-Match");
+		if (ifNoneMatch != null)
+			return ifNoneMatch.contains(response.etag)
+					|| ifNoneMatch.trim().equals("*");
+		String ifModifiedSince = exchange.getRequestHeaders().getFirst(
+				"If-Modified-Since");
+		if (ifModifiedSince == null)
+			return false;
+		try {
+			long since = ZonedDateTime.parse(ifModifiedSince,
+					DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()
+					.toEpochMilli();
+			// HTTP dates have no milliseconds.
+			return response.lastModified / 1000 <= since / 1000;
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+
+	private static String formatHttpDate(long timeMillis) {
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime
+				.ofInstant(Instant.ofEpochMilli(timeMillis), ZoneOffset.UTC));
+	}
+
+	private static void sendError(HttpExchange exchange, int status,
+			String message) throws IOException {
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type",
+				"text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+}
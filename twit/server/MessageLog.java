@@ -0,0 +1,425 @@
+package twit.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps messages, in the order of their ids, in a log split into segment
+ * files of about the same size, so that millions of messages take a few
+ * hundred large files instead of one small file each:
+ * 
+ * directory/00001235978547209000.log
+ * 
+ * A segment is named after the id of its first message, padded to twenty
+ * digits so that the segments sort in the order of their ids. Each message
+ * is a record of its id, its length and the CRC-32 of its bytes, followed by
+ * the bytes themselves. Ids only ever increase, so a message is found by
+ * taking the last segment whose name is not above its id.
+ * 
+ * Each segment has a sparse index next to it, directory/&lt;name&gt;.index,
+ * with the id and position of the first record written after every
+ * INDEX_INTERVAL bytes of the segment. It is written as the records are, so
+ * no second pass is needed, and a message is found by a binary search of
+ * the index and a scan of at most INDEX_INTERVAL bytes. Since an id is the
+ * time a message was stored multiplied by MessageStore.IDS_PER_MILLISECOND,
+ * the index serves to find the messages of a time as well.
+ * 
+ * A record, or index entry, cut short by the process being killed is cut
+ * off when the log is next opened, so writing can carry on after the last
+ * whole message.
+ */
+public class MessageLog {
+	public static final String LOG_SUFFIX = ".log";
+	public static final String INDEX_SUFFIX = ".index";
+	public static final long DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+	// bytes of a segment between one index entry and the next.
+	public static final int INDEX_INTERVAL = 4096;
+	// id, length and CRC-32.
+	static final int HEADER_LENGTH = 16;
+	// id and position.
+	static final int INDEX_ENTRY_LENGTH = 16;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File directory;
+	private final long segmentBytes;
+	// the following are guarded by "this".
+	// the files of the segments, by the id of their first message.
+	private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+	private final CRC32 crc = new CRC32();
+	private final byte[] header = new byte[HEADER_LENGTH];
+	private long lastId = -1;
+	// the segment being written, or null until the next append.
+	private FileOutputStream logOut;
+	private FileOutputStream indexOut;
+	private DataOutputStream log;
+	private DataOutputStream index;
+	private long position;
+	private long lastIndexedPosition;
+
+	/**
+	 * Open a log, creating its directory if necessary, ready to append after
+	 * the last whole message already in it.
+	 * 
+	 * @param directory
+	 *            The directory of the segments.
+	 * @param segmentBytes
+	 *            The size beyond which a new segment is started.
+	 * @throws IOException
+	 *             If the directory cannot be created, or the last segment
+	 *             cannot be read or repaired.
+	 */
+	public MessageLog(File directory, long segmentBytes) throws IOException {
+		if (segmentBytes < 1)
+			throw new IllegalArgumentException(
+					"The segment size must be positive.");
+		if (!directory.isDirectory() && !directory.mkdirs()
+				&& !directory.isDirectory())
+			throw new IOException("Could not create directory: "
+					+ directory.getAbsolutePath());
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		String[] names = directory.list();
+		for (String name : names == null ? new String[0] : names) {
+			if (!name.endsWith(LOG_SUFFIX))
+				continue;
+			try {
+				long firstId = Long.parseLong(name.substring(0, name.length()
+						- LOG_SUFFIX.length()));
+				segments.put(firstId, new File(directory, name));
+			} catch (NumberFormatException e) {
+				// not a segment.
+			}
+		}
+		recover();
+	}
+
+	/**
+	 * Get the id of the last message in the log.
+	 * 
+	 * @return The id, or -1 if the log is empty.
+	 */
+	public synchronized long getLastId() {
+		return lastId;
+	}
+
+	/**
+	 * Get the number of segments in the log.
+	 * 
+	 * @return The number of segment files.
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Append a message to the log, starting a new segment if the current one
+	 * is full. The message is buffered, and is only certain to be in its file
+	 * once the log has been flushed or closed.
+	 * 
+	 * @param id
+	 *            The id of the message, which must be greater than that of
+	 *            every message in the log.
+	 * @param bytes
+	 *            An array of bytes, containing the message.
+	 * @param offset
+	 *            The index of the beginning of the message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @throws IOException
+	 *             If the message cannot be written.
+	 */
+	public synchronized void append(long id, byte[] bytes, int offset,
+			int length) throws IOException {
+		if (id <= lastId)
+			throw new IllegalArgumentException("Id " + id
+					+ " is not greater than the last id " + lastId + ".");
+		if (log == null || position >= segmentBytes)
+			startSegment(id);
+		if (position == 0 || position - lastIndexedPosition >= INDEX_INTERVAL) {
+			index.writeLong(id);
+			index.writeLong(position);
+			lastIndexedPosition = position;
+		}
+		crc.reset();
+		crc.update(bytes, offset, length);
+		putLong(header, 0, id);
+		putInt(header, 8, length);
+		putInt(header, 12, (int) crc.getValue());
+		log.write(header);
+		log.write(bytes, offset, length);
+		position += HEADER_LENGTH + length;
+		lastId = id;
+	}
+
+	/**
+	 * Find a message in the log.
+	 * 
+	 * @param id
+	 *            The id of the message.
+	 * @return The bytes of the message, or null if it is not in the log.
+	 * @throws IOException
+	 *             If the log cannot be read.
+	 */
+	public synchronized byte[] read(long id) throws IOException {
+		Map.Entry<Long, File> segment = segments.floorEntry(id);
+		if (segment == null || id > lastId)
+			return null;
+		flush();
+		long start = findPosition(indexFile(segment.getValue()), id);
+		RandomAccessFile in = new RandomAccessFile(segment.getValue(), "r");
+		try {
+			in.seek(start);
+			while (in.getFilePointer() + HEADER_LENGTH <= in.length()) {
+				long recordId = in.readLong();
+				int length = in.readInt();
+				in.readInt();
+				if (recordId > id)
+					return null;
+				if (recordId == id) {
+					byte[] message = new byte[length];
+					in.readFully(message);
+					return message;
+				}
+				in.seek(in.getFilePointer() + length);
+			}
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write out the messages buffered so far.
+	 * 
+	 * @throws IOException
+	 *             If they cannot be written.
+	 */
+	public synchronized void flush() throws IOException {
+		if (log != null) {
+			log.flush();
+			index.flush();
+		}
+	}
+
+	/**
+	 * Write out the messages buffered so far, make sure they have reached the
+	 * disk, and close the current segment. Appending afterwards starts a new
+	 * segment.
+	 * 
+	 * @throws IOException
+	 *             If the segment cannot be written or closed.
+	 */
+	public synchronized void close() throws IOException {
+		if (log == null)
+			return;
+		try {
+			flush();
+			logOut.getFD().sync();
+			indexOut.getFD().sync();
+		} finally {
+			log.close();
+			index.close();
+			log = null;
+			index = null;
+			logOut = null;
+			indexOut = null;
+		}
+	}
+
+	/**
+	 * Close the current segment and start a new one whose first message has
+	 * a given id.
+	 */
+	private void startSegment(long firstId) throws IOException {
+		close();
+		File file = new File(directory, String.format("%020d", firstId)
+				+ LOG_SUFFIX);
+		logOut = new FileOutputStream(file);
+		log = new DataOutputStream(new BufferedOutputStream(logOut,
+				BUFFER_SIZE));
+		indexOut = new FileOutputStream(indexFile(file));
+		index = new DataOutputStream(new BufferedOutputStream(indexOut,
+				BUFFER_SIZE));
+		segments.put(firstId, file);
+		position = 0;
+		lastIndexedPosition = 0;
+	}
+
+	/**
+	 * Find the last whole record of the log, cutting off anything after it,
+	 * and drop a last segment which has no whole record at all.
+	 */
+	private void recover() throws IOException {
+		while (!segments.isEmpty()) {
+			Map.Entry<Long, File> last = segments.lastEntry();
+			File file = last.getValue();
+			File indexFile = indexFile(file);
+			RandomAccessFile in = new RandomAccessFile(file, "rw");
+			long end;
+			try {
+				// the index may be missing, or ahead of the log.
+				if (!indexFile.exists())
+					new FileOutputStream(indexFile).close();
+				long start = repairIndex(indexFile, in.length());
+				end = scan(in, start);
+				// the indexed record itself was cut short.
+				while (end == start && start > 0) {
+					start = repairIndex(indexFile, start);
+					end = scan(in, start);
+				}
+				in.setLength(end);
+			} finally {
+				in.close();
+			}
+			if (end > 0) {
+				if (end < segmentBytes)
+					reopen(file, end);
+				return;
+			}
+			file.delete();
+			indexFile.delete();
+			segments.remove(last.getKey());
+		}
+	}
+
+	/**
+	 * Cut off index entries which are incomplete, or point at or past a
+	 * position of the log.
+	 * 
+	 * @return The position of the last entry left, from which the log is to
+	 *         be scanned.
+	 */
+	private long repairIndex(File indexFile, long limit)
+			throws IOException {
+		RandomAccessFile in = new RandomAccessFile(indexFile, "rw");
+		try {
+			long entries = in.length() / INDEX_ENTRY_LENGTH;
+			while (entries > 0) {
+				in.seek((entries - 1) * INDEX_ENTRY_LENGTH + 8);
+				long entryPosition = in.readLong();
+				if (entryPosition < limit) {
+					in.setLength(entries * INDEX_ENTRY_LENGTH);
+					return entryPosition;
+				}
+				entries--;
+			}
+			in.setLength(0);
+			return 0;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the records of a segment from a position on, checking each one,
+	 * and remember the id of the last whole record.
+	 * 
+	 * @return The end of the last whole record.
+	 */
+	private long scan(RandomAccessFile in, long start) throws IOException {
+		long length = in.length();
+		long end = start;
+		byte[] message = new byte[0];
+		in.seek(start);
+		while (end + HEADER_LENGTH <= length) {
+			long id = in.readLong();
+			int messageLength = in.readInt();
+			int checksum = in.readInt();
+			if (id <= lastId || messageLength < 0
+					|| end + HEADER_LENGTH + messageLength > length)
+				break;
+			if (message.length < messageLength)
+				message = new byte[messageLength];
+			in.readFully(message, 0, messageLength);
+			crc.reset();
+			crc.update(message, 0, messageLength);
+			if ((int) crc.getValue() != checksum)
+				break;
+			lastId = id;
+			end += HEADER_LENGTH + messageLength;
+		}
+		return end;
+	}
+
+	/**
+	 * Carry on writing the last segment at a given position.
+	 */
+	private void reopen(File file, long end) throws IOException {
+		logOut = new FileOutputStream(file, true);
+		log = new DataOutputStream(new BufferedOutputStream(logOut,
+				BUFFER_SIZE));
+		File indexFile = indexFile(file);
+		long indexLength = indexFile.length();
+		indexOut = new FileOutputStream(indexFile, true);
+		index = new DataOutputStream(new BufferedOutputStream(indexOut,
+				BUFFER_SIZE));
+		position = end;
+		lastIndexedPosition = 0;
+		if (indexLength > 0) {
+			RandomAccessFile in = new RandomAccessFile(indexFile, "r");
+			try {
+				in.seek(indexLength - 8);
+				lastIndexedPosition = in.readLong();
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Binary search the index of a segment for the last entry whose id is
+	 * not above a given id.
+	 * 
+	 * @return The position from which to scan the segment for the id.
+	 */
+	private static long findPosition(File indexFile, long id)
+			throws IOException {
+		RandomAccessFile in = new RandomAccessFile(indexFile, "r");
+		try {
+			long low = 0;
+			long high = in.length() / INDEX_ENTRY_LENGTH - 1;
+			long found = 0;
+			while (low <= high) {
+				long middle = (low + high) >>> 1;
+				in.seek(middle * INDEX_ENTRY_LENGTH);
+				if (in.readLong() <= id) {
+					found = in.readLong();
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return found;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static File indexFile(File logFile) {
+		String name = logFile.getName();
+		return new File(logFile.getParentFile(), name.substring(0,
+				name.length() - LOG_SUFFIX.length())
+				+ INDEX_SUFFIX);
+	}
+
+	private static void putLong(byte[] bytes, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		for (int i = 3; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package twit.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores messages as one file each, in a sub-directory for every day:
+ * directory/yyyy-MM-dd/yyyy-MM-DD_HH_mm_ss.SSSS
+ * 
+ * Every message is given an id, which is the time it was stored in
+ * milliseconds multiplied by 1000, plus a sequence number for messages stored
+ * in the same millisecond. Ids are unique and increasing for the lifetime of
+ * the store, and the file of a message can be found from its id alone. The
+ * first message of a millisecond is stored under the plain time stamp, later
+ * ones get "-sequence" appended, so no message ever overwrites another.
+ * 
+ * Every message is also appended to the feeds of its day, kept by a
+ * FeedWriter next to the day directories.
+ */
+public class MessageStore {
+	public static final String DEFAULT_DIRECTORY = "/cs/home/os75/public_html/twit/";
+	// number of ids available in each millisecond.
+	public static final int IDS_PER_MILLISECOND = 1000;
+
+	private final File directory;
+	private final FeedWriter feeds;
+	// messages stored since the store was created, and when the last one was.
+	private final AtomicLong storedCount = new AtomicLong();
+	private volatile long lastStoredMillis;
+	// SimpleDateFormat is not thread-safe; both are guarded by "this".
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat(
+			"yyyy-MM-dd");
+	// 2009-03-02_07_32_27.0209
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat(
+			"yyyy-MM-DD_HH_mm_ss.SSSS");
+	private long lastId;
+	// ids whose files are still being written; guarded by "this".
+	private final Set<Long> writing = new HashSet<Long>();
+
+	/**
+	 * Create a new MessageStore which keeps its messages in a given directory.
+	 * 
+	 * @param directory
+	 *            The directory in which a sub-directory is kept for each day's
+	 *            messages.
+	 */
+	public MessageStore(File directory) {
+		this.directory = directory;
+		this.feeds = new FeedWriter(directory);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Write a message to a new file, and append it to the feeds of its day.
+	 * The message counts as stored once its file has been written; if the
+	 * feeds cannot be written, the problem is printed on the console.
+	 * 
+	 * @param bytes
+	 *            An array of bytes, containing the message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @return A description of the stored message.
+	 * @throws IOException
+	 *             If it is not possible to write the file.
+	 */
+	public StoredMessage store(byte[] bytes, int length) throws IOException {
+		while (true) {
+			long id;
+			String dayName;
+			String fileName;
+			synchronized (this) {
+				id = nextId();
+				dayName = dateFormat.format(new Date(getTimeMillis(id)));
+				fileName = fileName(id);
+				writing.add(id);
+			}
+			File file;
+			try {
+				File dir = new File(directory, dayName);
+				if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+					throw new IOException("Could not create directory: "
+							+ dir.getAbsolutePath());
+				file = new File(dir, fileName);
+				// a file left from an earlier run of the server; try the
+				// next id.
+				if (!file.createNewFile())
+					continue;
+				writeFile(file, bytes, length);
+			} finally {
+				synchronized (this) {
+					writing.remove(id);
+				}
+			}
+			StoredMessage message = new StoredMessage(id, getTimeMillis(id),
+					file);
+			try {
+				feeds.append(dayName, message, bytes, length);
+			} catch (IOException e) {
+				System.out.println("Problem appending message to feed:\n"
+						+ e.getMessage());
+			}
+			lastStoredMillis = message.getTimeMillis();
+			storedCount.incrementAndGet();
+			return message;
+		}
+	}
+
+	/**
+	 * Get the number of messages stored since the store was created. It
+	 * changes once a message is in its file and its feeds, so anything read
+	 * from the store while it stays the same is still up to date.
+	 * 
+	 * @return The number of messages stored.
+	 */
+	public long getStoredCount() {
+		return storedCount.get();
+	}
+
+	/**
+	 * Get the time at which the last message was stored.
+	 * 
+	 * @return The time in milliseconds since the epoch, or 0 if no message
+	 *         has been stored since the store was created.
+	 */
+	public long getLastStoredMillis() {
+		return lastStoredMillis;
+	}
+
+	/**
+	 * Get the name of the day directory, and of the feeds, for a time.
+	 * 
+	 * @param timeMillis
+	 *            A time in milliseconds since the epoch.
+	 * @return The name of the day, yyyy-MM-dd.
+	 */
+	public synchronized String getDayName(long timeMillis) {
+		return dateFormat.format(new Date(timeMillis));
+	}
+
+	/**
+	 * Get the JSON lines feed of a day, which FeedWriter keeps.
+	 * 
+	 * @param dayName
+	 *            The name of the day, yyyy-MM-dd.
+	 * @return The feed file, which does not exist if nothing has been stored
+	 *         on that day.
+	 */
+	public File getJsonFeed(String dayName) {
+		return FeedWriter.getJsonFile(directory, dayName);
+	}
+
+	/**
+	 * Close the feeds. Messages may still be stored afterwards, which opens
+	 * them again.
+	 */
+	public void close() {
+		feeds.close();
+	}
+
+	/**
+	 * Find the file in which the message with a given id is stored.
+	 * 
+	 * @param id
+	 *            The id of a message.
+	 * @return The file, which exists if the message has been stored.
+	 */
+	public File getFile(long id) {
+		String dayName;
+		String fileName;
+		synchronized (this) {
+			dayName = dateFormat.format(new Date(getTimeMillis(id)));
+			fileName = fileName(id);
+		}
+		return new File(new File(directory, dayName), fileName);
+	}
+
+	/**
+	 * Tells whether the file of a message, if there is one, has been written
+	 * completely. The files of messages still being stored are not, and
+	 * neither are those of ids which have not been given out yet. Once this
+	 * has returned true for an id it is never given out, even if the clock
+	 * is set back.
+	 * 
+	 * @param id
+	 *            The id of a message.
+	 * @return true if the file of the message can be read.
+	 */
+	public synchronized boolean isComplete(long id) {
+		long next = Math.max(lastId + 1, System.currentTimeMillis()
+				* IDS_PER_MILLISECOND);
+		if (id >= next)
+			return false;
+		// so that nextId() only gives out ids above the ones checked.
+		lastId = next - 1;
+		return !writing.contains(id);
+	}
+
+	/**
+	 * Get the time at which a message was stored.
+	 * 
+	 * @param id
+	 *            The id of a message.
+	 * @return The time in milliseconds since the epoch.
+	 */
+	public static long getTimeMillis(long id) {
+		return id / IDS_PER_MILLISECOND;
+	}
+
+	/**
+	 * Allocate an id which is greater than every id allocated before, and
+	 * belongs to the current millisecond if possible.
+	 * 
+	 * @return A new id.
+	 */
+	private synchronized long nextId() {
+		long id = System.currentTimeMillis() * IDS_PER_MILLISECOND;
+		if (id <= lastId)
+			id = lastId + 1;
+		lastId = id;
+		return id;
+	}
+
+	/**
+	 * Get the name of the file for a message id. Must be called while holding
+	 * the lock on this store.
+	 * 
+	 * @param id
+	 *            A message id.
+	 * @return The name of the file, without the day directory.
+	 */
+	private String fileName(long id) {
+		String name = timeFormat.format(new Date(getTimeMillis(id)));
+		long sequence = id % IDS_PER_MILLISECOND;
+		return sequence == 0 ? name : name + "-" + sequence;
+	}
+
+	/**
+	 * Write a number of bytes to a file.
+	 * 
+	 * @param file
+	 *            The file to be written to.
+	 * @param bytes
+	 *            An array of bytes.
+	 * @param length
+	 *            The number of bytes from the array to be written to the file.
+	 * @throws IOException
+	 *             If it is not possible to write to the file.
+	 */
+	public static void writeFile(File file, byte[] bytes, int length)
+			throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes, 0, length);
+			out.flush();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package twit.server;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often each client address may connect or send a message, with a
+ * token bucket per address: a client may connect up to burst times at once,
+ * after which it gets one more connection every 1/permitsPerSecond seconds.
+ * The first message over a keep-alive connection is paid for by the
+ * connection; every later one takes a token of its own.
+ * 
+ * Each bucket is a single AtomicLong holding the time at which the bucket
+ * will be full again (the "theoretical arrival time" of the generic cell rate
+ * algorithm), so taking a token is one compare-and-set with no lock, and
+ * clients do not contend with each other.
+ * 
+ * At most maxClients buckets are kept. When there are more, one thread at a
+ * time removes the buckets which are full, as forgetting those loses nothing.
+ * If more than three quarters are left, arbitrary buckets are removed until
+ * only three quarters are, which lets those clients start again with a full
+ * bucket but means the map is scanned at most once per maxClients / 4 new
+ * clients.
+ */
+public class RateLimiter {
+	public static final int DEFAULT_MAX_CLIENTS = 65536;
+
+	// nanoseconds between tokens, and the most a bucket may be ahead of now.
+	private final long interval;
+	private final long tolerance;
+	private final int maxClients;
+	private final ConcurrentMap<InetAddress, AtomicLong> buckets = new ConcurrentHashMap<InetAddress, AtomicLong>();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	/**
+	 * Create a new RateLimiter keeping up to DEFAULT_MAX_CLIENTS buckets.
+	 * 
+	 * @param permitsPerSecond
+	 *            The number of connections a client may make per second, in
+	 *            the long run.
+	 * @param burst
+	 *            The number of connections a client may make at once.
+	 */
+	public RateLimiter(double permitsPerSecond, int burst) {
+		this(permitsPerSecond, burst, DEFAULT_MAX_CLIENTS);
+	}
+
+	/**
+	 * Create a new RateLimiter.
+	 * 
+	 * @param permitsPerSecond
+	 *            The number of connections a client may make per second, in
+	 *            the long run.
+	 * @param burst
+	 *            The number of connections a client may make at once.
+	 * @param maxClients
+	 *            The most client addresses to keep a bucket for.
+	 */
+	public RateLimiter(double permitsPerSecond, int burst, int maxClients) {
+		if (permitsPerSecond <= 0 || burst < 1 || maxClients < 1)
+			throw new IllegalArgumentException(
+					"The rate, burst and number of clients must be positive.");
+		this.interval = Math.max(1, (long) (1e9 / permitsPerSecond));
+		this.tolerance = interval * burst;
+		this.maxClients = maxClients;
+	}
+
+	/**
+	 * Take a token from the bucket of a client, if there is one.
+	 * 
+	 * @param address
+	 *            The address of the client.
+	 * @return true if the client may connect, false if it has used up its
+	 *         tokens.
+	 */
+	public boolean tryAcquire(InetAddress address) {
+		long now = System.nanoTime();
+		AtomicLong bucket = buckets.get(address);
+		if (bucket == null) {
+			AtomicLong created = new AtomicLong(now);
+			bucket = buckets.putIfAbsent(address, created);
+			if (bucket == null) {
+				bucket = created;
+				if (buckets.size() > maxClients)
+					evict(now);
+			}
+		}
+		while (true) {
+			long full = bucket.get();
+			long next = Math.max(full, now) + interval;
+			if (next - now > tolerance)
+				return false;
+			if (bucket.compareAndSet(full, next))
+				return true;
+		}
+	}
+
+	/**
+	 * Get the number of client addresses for which a bucket is kept.
+	 * 
+	 * @return The number of buckets.
+	 */
+	public int getClientCount() {
+		return buckets.size();
+	}
+
+	/**
+	 * Remove full buckets, then arbitrary ones if there are still too many,
+	 * unless another thread already is.
+	 */
+	private void evict(long now) {
+		if (!evicting.compareAndSet(false, true))
+			return;
+		try {
+			Iterator<Map.Entry<InetAddress, AtomicLong>> entries = buckets
+					.entrySet().iterator();
+			while (entries.hasNext()) {
+				if (entries.next().getValue().get() - now <= 0)
+					entries.remove();
+			}
+			entries = buckets.entrySet().iterator();
+			while (buckets.size() > maxClients / 4 * 3 && entries.hasNext()) {
+				entries.next();
+				entries.remove();
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package twit.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+import twit.metrics.Histogram;
+import twit.metrics.HistogramSnapshot;
+
+/**
+ * Keeps the volume of messages per minute and per hour in one small file per
+ * day, next to the day directories of a MessageStore, so that questions such
+ * as how many messages arrived each minute yesterday are answered by reading
+ * a few kilobytes instead of listing a day directory:
+ * 
+ * directory/yyyy-MM-dd.rollup
+ * 
+ * Each file holds HOURS_PER_DAY hour records followed by MINUTES_PER_DAY
+ * minute records, each RECORD_LENGTH bytes: the number of messages stored,
+ * their bytes, the number of requests rejected and the 99th percentile of
+ * the time taken to store a message, in nanoseconds, as big-endian longs. A
+ * record's place is fixed by the minutes since midnight of its start, so a
+ * record is written without reading the rest of the file, and a day has
+ * room for 25 hours for when the clocks go back.
+ * 
+ * The current minute and hour are counted in memory, and written once they
+ * are over, or when the rollups are closed. A record which already holds
+ * counts, from an earlier run of the server, is added to rather than
+ * overwritten; the larger of the two percentiles is kept.
+ */
+public class Rollups {
+	public static final String SUFFIX = ".rollup";
+	public static final int HOURS_PER_DAY = 25;
+	public static final int MINUTES_PER_DAY = HOURS_PER_DAY * 60;
+	static final int RECORD_LENGTH = 32;
+	private static final long MINUTE_MILLIS = 60 * 1000;
+	private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+
+	/**
+	 * The volume of one minute or hour.
+	 */
+	public static final class Rollup {
+		private final long startMillis;
+		private final long messages;
+		private final long bytes;
+		private final long rejected;
+		private final long p99PersistNanos;
+
+		Rollup(long startMillis, long messages, long bytes, long rejected,
+				long p99PersistNanos) {
+			this.startMillis = startMillis;
+			this.messages = messages;
+			this.bytes = bytes;
+			this.rejected = rejected;
+			this.p99PersistNanos = p99PersistNanos;
+		}
+
+		/**
+		 * @return The start of the minute or hour, in milliseconds since the
+		 *         epoch.
+		 */
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		/**
+		 * @return The number of messages stored.
+		 */
+		public long getMessages() {
+			return messages;
+		}
+
+		/**
+		 * @return The number of bytes of the messages stored.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return The number of requests rejected.
+		 */
+		public long getRejected() {
+			return rejected;
+		}
+
+		/**
+		 * @return The 99th percentile of the time taken to store a message,
+		 *         in nanoseconds, or 0 if none was stored.
+		 */
+		public long getP99PersistNanos() {
+			return p99PersistNanos;
+		}
+
+		/**
+		 * @return true if nothing was stored or rejected.
+		 */
+		public boolean isEmpty() {
+			return messages == 0 && rejected == 0;
+		}
+
+		private Rollup plus(Rollup other) {
+			return new Rollup(startMillis, messages + other.messages, bytes
+					+ other.bytes, rejected + other.rejected, Math.max(
+					p99PersistNanos, other.p99PersistNanos));
+		}
+	}
+
+	/**
+	 * The minute or hour being counted.
+	 */
+	private static final class Interval {
+		private final boolean hour;
+		// -1 until the first event.
+		private long startMillis = -1;
+		private long endMillis;
+		private String dayName;
+		private int index;
+		private long messages;
+		private long bytes;
+		private long rejected;
+		// the persist times recorded before the interval started.
+		private HistogramSnapshot persistTimesBefore;
+
+		Interval(boolean hour) {
+			this.hour = hour;
+		}
+
+		boolean contains(long timeMillis) {
+			return timeMillis >= startMillis && timeMillis < endMillis;
+		}
+
+		/**
+		 * @return The position of the interval's record in its file.
+		 */
+		long offset() {
+			return (hour ? index : HOURS_PER_DAY + index) * RECORD_LENGTH;
+		}
+
+		Rollup toRollup(Histogram persistTimes) {
+			long p99 = messages == 0 ? 0 : persistTimes.snapshot()
+					.minus(persistTimesBefore).getValueAtQuantile(0.99);
+			return new Rollup(startMillis, messages, bytes, rejected, p99);
+		}
+	}
+
+	private final File directory;
+	// the following are guarded by "this".
+	private final Histogram persistTimes = new Histogram();
+	private final SimpleDateFormat dayFormat = new SimpleDateFormat(
+			"yyyy-MM-dd");
+	private final Calendar calendar = Calendar.getInstance();
+	private final Interval minute = new Interval(false);
+	private final Interval hour = new Interval(true);
+
+	/**
+	 * Create a new Rollups.
+	 * 
+	 * @param directory
+	 *            The directory of the message store.
+	 */
+	public Rollups(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Count a message which was stored.
+	 * 
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @param persistNanos
+	 *            How long it took to store the message.
+	 * @param timeMillis
+	 *            The time at which the message was stored.
+	 */
+	public synchronized void stored(int length, long persistNanos,
+			long timeMillis) {
+		advance(timeMillis);
+		persistTimes.record(persistNanos);
+		minute.messages++;
+		minute.bytes += length;
+		hour.messages++;
+		hour.bytes += length;
+	}
+
+	/**
+	 * Count a request which was rejected.
+	 * 
+	 * @param timeMillis
+	 *            The time at which it was rejected.
+	 */
+	public synchronized void rejected(long timeMillis) {
+		advance(timeMillis);
+		minute.rejected++;
+		hour.rejected++;
+	}
+
+	/**
+	 * Get the volume of each hour of a day.
+	 * 
+	 * @param dayName
+	 *            The name of the day, yyyy-MM-dd.
+	 * @return HOURS_PER_DAY rollups, by hours since midnight; those after the
+	 *         end of the day are empty.
+	 * @throws IOException
+	 *             If the rollups of the day cannot be read.
+	 */
+	public synchronized Rollup[] getHours(String dayName) throws IOException {
+		return read(dayName, true);
+	}
+
+	/**
+	 * Get the volume of each minute of a day.
+	 * 
+	 * @param dayName
+	 *            The name of the day, yyyy-MM-dd.
+	 * @return MINUTES_PER_DAY rollups, by minutes since midnight; those after
+	 *         the end of the day are empty.
+	 * @throws IOException
+	 *             If the rollups of the day cannot be read.
+	 */
+	public synchronized Rollup[] getMinutes(String dayName)
+			throws IOException {
+		return read(dayName, false);
+	}
+
+	/**
+	 * Get the name of the day of a time, as used by getHours and getMinutes.
+	 * 
+	 * @param timeMillis
+	 *            A time in milliseconds since the epoch.
+	 * @return The name of the day, yyyy-MM-dd.
+	 */
+	public synchronized String getDayName(long timeMillis) {
+		return dayFormat.format(new Date(timeMillis));
+	}
+
+	/**
+	 * Write the current minute and hour. Anything counted afterwards is
+	 * added to what was written.
+	 */
+	public synchronized void close() {
+		flush(minute);
+		flush(hour);
+		minute.startMillis = -1;
+		minute.endMillis = -1;
+		hour.startMillis = -1;
+		hour.endMillis = -1;
+	}
+
+	/**
+	 * Write the minute, and hour, which are over by a given time, and start
+	 * counting the ones it is in.
+	 */
+	private void advance(long timeMillis) {
+		if (minute.contains(timeMillis))
+			return;
+		flush(minute);
+		calendar.setTimeInMillis(timeMillis);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		long midnight = calendar.getTimeInMillis();
+		String dayName = dayFormat.format(new Date(timeMillis));
+		int minutes = (int) ((timeMillis - midnight) / MINUTE_MILLIS);
+		start(minute, dayName, minutes, midnight + minutes * MINUTE_MILLIS,
+				MINUTE_MILLIS);
+		if (!hour.contains(timeMillis)) {
+			flush(hour);
+			int hours = minutes / 60;
+			start(hour, dayName, hours, midnight + hours * HOUR_MILLIS,
+					HOUR_MILLIS);
+		}
+	}
+
+	private void start(Interval interval, String dayName, int index,
+			long startMillis, long lengthMillis) {
+		interval.dayName = dayName;
+		interval.index = index;
+		interval.startMillis = startMillis;
+		interval.endMillis = startMillis + lengthMillis;
+		interval.messages = 0;
+		interval.bytes = 0;
+		interval.rejected = 0;
+		interval.persistTimesBefore = persistTimes.snapshot();
+	}
+
+	/**
+	 * Add the counts of an interval to its record, if it has any.
+	 */
+	private void flush(Interval interval) {
+		if (interval.startMillis == -1
+				|| (interval.messages == 0 && interval.rejected == 0))
+			return;
+		Rollup rollup = interval.toRollup(persistTimes);
+		try {
+			RandomAccessFile file = new RandomAccessFile(
+					getFile(interval.dayName), "rw");
+			try {
+				if (file.length() >= interval.offset() + RECORD_LENGTH) {
+					file.seek(interval.offset());
+					rollup = rollup.plus(readRecord(file, rollup.startMillis));
+				}
+				file.seek(interval.offset());
+				file.writeLong(rollup.messages);
+				file.writeLong(rollup.bytes);
+				file.writeLong(rollup.rejected);
+				file.writeLong(rollup.p99PersistNanos);
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Problem writing rollup:\n" + e.getMessage());
+		}
+		// counted once, even if it is flushed again.
+		interval.messages = 0;
+		interval.bytes = 0;
+		interval.rejected = 0;
+		interval.persistTimesBefore = persistTimes.snapshot();
+	}
+
+	/**
+	 * Read the hour or minute records of a day, adding what is counted in
+	 * memory.
+	 */
+	private Rollup[] read(String dayName, boolean hours) throws IOException {
+		long midnight;
+		try {
+			midnight = dayFormat.parse(dayName).getTime();
+		} catch (ParseException e) {
+			throw new IOException("Not a day: " + dayName);
+		}
+		int count = hours ? HOURS_PER_DAY : MINUTES_PER_DAY;
+		long length = hours ? HOUR_MILLIS : MINUTE_MILLIS;
+		long offset = hours ? 0 : HOURS_PER_DAY * RECORD_LENGTH;
+		Rollup[] rollups = new Rollup[count];
+		File file = getFile(dayName);
+		if (file.exists()) {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				byte[] bytes = new byte[count * RECORD_LENGTH];
+				// a file written before the day was over may be shorter.
+				in.seek(offset);
+				in.readFully(bytes, 0, (int) Math.max(0,
+						Math.min(bytes.length, in.length() - offset)));
+				for (int i = 0; i < count; i++) {
+					rollups[i] = new Rollup(midnight + i * length, getLong(
+							bytes, i * RECORD_LENGTH), getLong(bytes, i
+							* RECORD_LENGTH + 8), getLong(bytes, i
+							* RECORD_LENGTH + 16), getLong(bytes, i
+							* RECORD_LENGTH + 24));
+				}
+			} finally {
+				in.close();
+			}
+		} else {
+			for (int i = 0; i < count; i++) {
+				rollups[i] = new Rollup(midnight + i * length, 0, 0, 0, 0);
+			}
+		}
+		Interval current = hours ? hour : minute;
+		if (current.startMillis != -1 && dayName.equals(current.dayName))
+			rollups[current.index] = rollups[current.index].plus(current
+					.toRollup(persistTimes));
+		return rollups;
+	}
+
+	private static Rollup readRecord(RandomAccessFile file, long startMillis)
+			throws IOException {
+		return new Rollup(startMillis, file.readLong(), file.readLong(),
+				file.readLong(), file.readLong());
+	}
+
+	private static long getLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private File getFile(String dayName) {
+		return new File(directory, dayName + SUFFIX);
+	}
+}
@@ -1,48 +1,363 @@
-package twit.server;
-
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-
-public final class Server implements Runnable {
-
-	private static final int PORT_NUMBER = 60514;
-	private ServerSocket serverSocket;
-
-	/**
-	 * Set up server at PORT_NUMBER.
-	 * 
-	 * @throws IOException
-	 *             if there is a problem establishing a server socket at the
-	 *             specified port number.
-	 */
-	public Server() throws SocketException, IOException {
-		serverSocket = new ServerSocket(PORT_NUMBER);
-		String address = InetAddress.getLocalHost().getHostName();
-		System.out.print("Server socket established at ");
-		System.out.println(address + ":" + PORT_NUMBER + ".");
-		new Thread(this).start();
-	}
-
-	/**
-	 * Accept connections from serverSocket.
-	 */
-	@Override
-	public void run() {
-		try {
-			while (true) {
-				Socket client = serverSocket.accept();
-				String address = client.getInetAddress().getHostName();
-				int port = client.getPort();
-				System.out.print("Connection established with ");
-				System.out.println(address + ":" + port + ".");
-				Runnable clientHandler = new ClientHandler(client);
-				new Thread(clientHandler).start();
-			}
-		} catch (IOException e) {
-			System.out.println("E: " + e);
-		}
-	}
-}
+package twit.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class Server implements Runnable {
+
+	private static final int PORT_NUMBER = 60514;
+	// the read time outs of every connection are kept to within a tenth of a
+	// second, in a wheel which turns every 51.2 seconds.
+	private static final int TIMEOUT_TICK_MILLIS = 100;
+	private static final int TIMEOUT_TICKS = 512;
+	private static final byte[] RATE_LIMITED_REPLY = "Too many connections. Please try again later."
+			.getBytes(StandardCharsets.US_ASCII);
+	private ServerSocket serverSocket;
+	private final MessageStore store;
+	private final ServerMetrics metrics = new ServerMetrics();
+	private final TimingWheel timeouts;
+	private final Rollups rollups;
+	// threads running a ClientHandler which has not yet finished.
+	private final Set<Thread> handlerThreads = ConcurrentHashMap.newKeySet();
+	// handlers of the connections which are still being dealt with.
+	private final Set<ClientHandler> clientHandlers = ConcurrentHashMap
+			.newKeySet();
+	private volatile boolean accepting = true;
+	// limits how often each client may connect, or null for no limit.
+	private volatile RateLimiter rateLimiter;
+	// serves the messages over HTTP, if started.
+	private HttpGateway gateway;
+	// receives messages sent as datagrams, if started.
+	private DatagramReceiver datagramReceiver;
+
+	/**
+	 * Set up server at PORT_NUMBER.
+	 * 
+	 * @throws IOException
+	 *             if there is a problem establishing a server socket at the
+	 *             specified port number.
+	 */
+	public Server() throws SocketException, IOException {
+		this(PORT_NUMBER, new File(MessageStore.DEFAULT_DIRECTORY));
+	}
+
+	/**
+	 * Set up server at a given port, storing messages in a given directory.
+	 * 
+	 * @param port
+	 *            The port number, or 0 to use any free port.
+	 * @param twitDirectory
+	 *            The directory in which a sub-directory is kept for each day's
+	 *            messages.
+	 * @throws IOException
+	 *             if there is a problem establishing a server socket at the
+	 *             specified port number.
+	 */
+	public Server(int port, File twitDirectory) throws SocketException,
+			IOException {
+		store = new MessageStore(twitDirectory);
+		rollups = new Rollups(twitDirectory);
+		metrics.setRollups(rollups);
+		serverSocket = new ServerSocket(port);
+		timeouts = new TimingWheel(TIMEOUT_TICK_MILLIS, TIMEOUT_TICKS,
+				metrics.timeoutsFired, metrics.timeoutsPending);
+		String address = InetAddress.getLocalHost().getHostName();
+		System.out.print("Server socket established at ");
+		System.out.println(address + ":" + getPort() + ".");
+		new Thread(this).start();
+	}
+
+	/**
+	 * Accept connections from serverSocket.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (accepting) {
+				Socket client = serverSocket.accept();
+				long acceptTime = System.nanoTime();
+				metrics.connectionsAccepted.increment();
+				metrics.topSenders.connected(client.getInetAddress());
+				RateLimiter limiter = rateLimiter;
+				if (limiter != null
+						&& !limiter.tryAcquire(client.getInetAddress())) {
+					refuse(client);
+					continue;
+				}
+				String address = client.getInetAddress().getHostName();
+				int port = client.getPort();
+				System.out.print("Connection established with ");
+				System.out.println(address + ":" + port + ".");
+				startClientHandler(new ClientHandler(client, store, metrics,
+						acceptTime, timeouts, limiter));
+			}
+		} catch (IOException e) {
+			// closing the server socket in stopAccepting() ends up here.
+			if (accepting)
+				System.out.println("E: " + e);
+		}
+	}
+
+	/**
+	 * Turn away a client which has connected too often, on the accepting
+	 * thread, without reading its message. The reply fits in the socket's send
+	 * buffer, so writing it does not wait for the client.
+	 * 
+	 * @param client
+	 *            The client's socket.
+	 */
+	private void refuse(Socket client) {
+		metrics.rejected(client.getInetAddress(), metrics.rejectedRateLimited);
+		try {
+			client.getOutputStream().write(RATE_LIMITED_REPLY);
+		} catch (IOException e) {
+			// the client has gone already.
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// nothing more to do.
+			}
+		}
+	}
+
+	/**
+	 * Run a handler in a thread of its own, keeping track of the thread until
+	 * the handler has finished.
+	 * 
+	 * @param handler
+	 *            The handler to be run.
+	 */
+	private void startHandler(final Runnable handler) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					handler.run();
+				} finally {
+					handlerThreads.remove(Thread.currentThread());
+				}
+			}
+		});
+		handlerThreads.add(thread);
+		thread.start();
+	}
+
+	/**
+	 * Run the handler of a connection in a thread of its own, keeping track of
+	 * it so that it can be told when the server drains, or closed if it is
+	 * still running when shutdown() runs out of time.
+	 * 
+	 * @param clientHandler
+	 *            The handler to be run.
+	 */
+	private void startClientHandler(final ClientHandler clientHandler) {
+		clientHandlers.add(clientHandler);
+		startHandler(new Runnable() {
+			public void run() {
+				try {
+					clientHandler.run();
+				} finally {
+					clientHandlers.remove(clientHandler);
+				}
+			}
+		});
+		// stopAccepting() may have run while the handler was being added.
+		if (!accepting)
+			clientHandler.drain();
+	}
+
+	/**
+	 * Limit how often each client address may connect, and send messages
+	 * over its keep-alive connections. Connections over the limit are refused
+	 * before a ClientHandler is created for them; messages over the limit are
+	 * answered with an ERROR reply, which the client may retry.
+	 * 
+	 * @param rateLimiter
+	 *            The limiter, or null to stop limiting.
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Start serving the stored messages as JSON over HTTP.
+	 * 
+	 * @param port
+	 *            The port at which to accept HTTP connections, or 0 to use any
+	 *            free port.
+	 * @return The gateway.
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 * @see HttpGateway
+	 */
+	public synchronized HttpGateway startGateway(int port) throws IOException {
+		if (gateway == null)
+			gateway = new HttpGateway(store, port, metrics);
+		return gateway;
+	}
+
+	/**
+	 * Start receiving messages sent as UDP datagrams, as well as over TCP.
+	 * 
+	 * @param port
+	 *            The UDP port at which to receive, or 0 to use any free port.
+	 * @param acks
+	 *            Whether to answer every datagram with an ack datagram.
+	 * @return The receiver.
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 * @see DatagramReceiver
+	 */
+	public synchronized DatagramReceiver startDatagramReceiver(int port,
+			boolean acks) throws IOException {
+		if (datagramReceiver == null) {
+			datagramReceiver = new DatagramReceiver(port, store, metrics, acks);
+			// counted as a handler, so that shutdown() waits for its last
+			// batch before closing the store.
+			startHandler(datagramReceiver);
+		}
+		return datagramReceiver;
+	}
+
+	/**
+	 * Stop accepting new connections. Connections which have already been
+	 * accepted are still dealt with, but a keep-alive connection is closed
+	 * once the request in progress has been answered.
+	 */
+	public void stopAccepting() {
+		if (!accepting)
+			return;
+		accepting = false;
+		synchronized (this) {
+			if (datagramReceiver != null)
+				datagramReceiver.stop();
+		}
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Already closed, nothing more to do.
+		}
+		// keep-alive connections would otherwise stay open while idle.
+		for (ClientHandler clientHandler : clientHandlers) {
+			clientHandler.drain();
+		}
+	}
+
+	/**
+	 * Tells whether or not the server is accepting new connections.
+	 * 
+	 * @return false once stopAccepting() has been called.
+	 */
+	public boolean isAccepting() {
+		return accepting;
+	}
+
+	/**
+	 * Get the number of accepted connections which are still being dealt
+	 * with. The datagram receiver, if started, counts as one until it has
+	 * stopped.
+	 * 
+	 * @return The number of running client handlers.
+	 */
+	public int getInFlightCount() {
+		return handlerThreads.size();
+	}
+
+	/**
+	 * Wait for every running client handler to finish, or until a deadline
+	 * passes.
+	 * 
+	 * @param timeoutMillis
+	 *            The maximum number of milliseconds to wait.
+	 * @return true if all handlers have finished, false if the deadline passed
+	 *         first.
+	 * @throws InterruptedException
+	 *             If the waiting thread is interrupted.
+	 */
+	public boolean awaitHandlers(long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		List<Thread> running = new ArrayList<Thread>(handlerThreads);
+		for (Thread thread : running) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				break;
+			thread.join(remaining);
+		}
+		return handlerThreads.isEmpty();
+	}
+
+	/**
+	 * Shut the server down gracefully: stop accepting new connections and
+	 * datagrams and wait for those in progress to be dealt with, then stop the
+	 * HTTP gateway, write the rollups of the current minute and hour and close
+	 * the message store. Connections still open when the deadline passes are
+	 * closed, and their handlers waited for, before anything else is, so no
+	 * message is stored or acknowledged after the store has been closed.
+	 * 
+	 * @param timeoutMillis
+	 *            The maximum number of milliseconds to wait for connections in
+	 *            progress.
+	 * @return true if every connection was dealt with before the deadline,
+	 *         false if some had to be closed.
+	 * @throws InterruptedException
+	 *             If the waiting thread is interrupted.
+	 */
+	public boolean shutdown(long timeoutMillis) throws InterruptedException {
+		stopAccepting();
+		boolean drained = awaitHandlers(timeoutMillis);
+		if (!drained) {
+			// a closed socket ends its handler's read or write at once.
+			for (ClientHandler clientHandler : clientHandlers) {
+				clientHandler.close();
+			}
+			for (Thread thread : new ArrayList<Thread>(handlerThreads)) {
+				thread.join();
+			}
+		}
+		synchronized (this) {
+			if (gateway != null)
+				gateway.stop();
+		}
+		timeouts.stop();
+		rollups.close();
+		store.close();
+		return drained;
+	}
+
+	/**
+	 * Get the port at which the server accepts connections.
+	 * 
+	 * @return The local port of the server socket.
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Get the store in which the server keeps its messages.
+	 * 
+	 * @return The message store.
+	 */
+	public MessageStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Get the metrics recorded by this server and its client handlers.
+	 * 
+	 * @return The server's metrics.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+}
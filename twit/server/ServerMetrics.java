@@ -0,0 +1,155 @@
+package twit.server;
+
+import java.net.InetAddress;
+
+import twit.metrics.Counter;
+import twit.metrics.Gauge;
+import twit.metrics.Histogram;
+import twit.metrics.MetricsRegistry;
+import twit.metrics.MetricsSnapshot;
+
+/**
+ * The metrics recorded by a Server and its ClientHandlers. Every metric is
+ * looked up once, here, so that the handlers only touch a field and an atomic
+ * per update. The topics of stored messages, the clients which send them and
+ * the volume per minute and hour are counted here too, through stored() and
+ * rejected().
+ */
+public class ServerMetrics {
+	private final MetricsRegistry registry = new MetricsRegistry();
+
+	final Counter connectionsAccepted = registry
+			.counter("connections.accepted");
+	final Gauge activeConnections = registry.gauge("connections.active");
+	final Counter messagesPersisted = registry.counter("messages.persisted");
+	final Counter rejectedTooLong = registry.counter("rejected.tooLong");
+	final Counter rejectedEmpty = registry.counter("rejected.empty");
+	// messages which were not well-formed UTF-8.
+	final Counter rejectedMalformed = registry.counter("rejected.malformed");
+	final Counter rejectedTimeout = registry.counter("rejected.timeout");
+	// keep-alive requests of a type the server does not know.
+	final Counter rejectedUnknownRequest = registry
+			.counter("rejected.unknownRequest");
+	// messages which could not be written to the store.
+	final Counter rejectedNotStored = registry.counter("rejected.notStored");
+	// connections and keep-alive messages refused because the client sent
+	// too often.
+	final Counter rejectedRateLimited = registry
+			.counter("rejected.rateLimited");
+	// read time outs which passed, whatever the connection was doing.
+	final Counter timeoutsFired = registry.counter("timeouts.fired");
+	final Gauge timeoutsPending = registry.gauge("timeouts.pending");
+	// keep-alive connections closed by the server after being idle.
+	final Counter idleClosed = registry.counter("connections.idleClosed");
+	// time from accept() returning to the first byte of the message arriving.
+	final Histogram acceptToFirstByte = registry
+			.histogram("latency.acceptToFirstByte.ns");
+	final Histogram readTime = registry.histogram("latency.read.ns");
+	final Histogram persistTime = registry.histogram("latency.persist.ns");
+	final Histogram ackTime = registry.histogram("latency.ack.ns");
+	final Histogram messageSize = registry.histogram("message.bytes");
+	// the hashtags and mentions of stored messages.
+	final TrendingTopics trendingTopics = new TrendingTopics();
+	// the client addresses which send the most.
+	final TopSenders topSenders = new TopSenders();
+	// the volume per minute and hour, kept next to the store, or null.
+	private volatile Rollups rollups;
+
+	/**
+	 * Count a message which was stored.
+	 * 
+	 * @param client
+	 *            The address of the client which sent the message.
+	 * @param bytes
+	 *            An array containing the message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @param message
+	 *            The stored message.
+	 * @param persistNanos
+	 *            How long it took to store the message.
+	 */
+	void stored(InetAddress client, byte[] bytes, int length,
+			StoredMessage message, long persistNanos) {
+		messagesPersisted.increment();
+		persistTime.record(persistNanos);
+		topSenders.stored(client, length);
+		trendingTopics.addMessage(bytes, 0, length, message.getTimeMillis());
+		Rollups current = rollups;
+		if (current != null)
+			current.stored(length, persistNanos, message.getTimeMillis());
+	}
+
+	/**
+	 * Count a request which was rejected, or a connection which was refused
+	 * or timed out.
+	 * 
+	 * @param client
+	 *            The address of the client.
+	 * @param reason
+	 *            The counter of the reason for the rejection.
+	 */
+	void rejected(InetAddress client, Counter reason) {
+		reason.increment();
+		topSenders.rejected(client);
+		Rollups current = rollups;
+		if (current != null)
+			current.rejected(System.currentTimeMillis());
+	}
+
+	/**
+	 * Start keeping the volume per minute and hour.
+	 * 
+	 * @param rollups
+	 *            The rollups, or null to stop keeping them.
+	 */
+	void setRollups(Rollups rollups) {
+		this.rollups = rollups;
+	}
+
+	/**
+	 * Get the registry in which the metrics are kept, so that other parts of
+	 * the server can add their own metrics.
+	 * 
+	 * @return The registry.
+	 */
+	public MetricsRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Get the hashtags and mentions used most in recently stored messages.
+	 * 
+	 * @return The trending topics.
+	 */
+	public TrendingTopics getTrendingTopics() {
+		return trendingTopics;
+	}
+
+	/**
+	 * Get the client addresses which sent the most recently.
+	 * 
+	 * @return The top senders.
+	 */
+	public TopSenders getTopSenders() {
+		return topSenders;
+	}
+
+	/**
+	 * Get the volume of messages per minute and hour.
+	 * 
+	 * @return The rollups, or null if the server does not keep them.
+	 */
+	public Rollups getRollups() {
+		return rollups;
+	}
+
+	/**
+	 * Take a snapshot of all server metrics.
+	 * 
+	 * @return A snapshot.
+	 */
+	public MetricsSnapshot snapshot() {
+		return registry.snapshot();
+	}
+}
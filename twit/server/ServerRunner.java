@@ -1,29 +1,363 @@
-package twit.server;
-
-import java.io.IOException;
-import java.net.SocketException;
-import java.util.Scanner;
-
-public class ServerRunner {
-	public static void main(String[] args) {
-		System.out.println("Starting server... Enter QUIT to quit.");
-		try {
-			new Server();
-		} catch (SocketException e) {
-			System.out
-					.println("Socket exception: Port already taken by another service.");
-			System.exit(0);
-		} catch (IOException e) {
-			System.out.println(e);
-		}
-		Scanner consoleIn = new Scanner(System.in);
-		String input;
-		do {
-			System.out.print(">> ");
-			input = consoleIn.nextLine();
-		} while (!input.equalsIgnoreCase("quit"));
-		System.out.println("Shutting down server...");
-		// Shut down server. Killing any active ClientHandler threads.
-		System.exit(0);
-	}
-}
+package twit.server;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+import twit.metrics.HistogramSnapshot;
+import twit.metrics.MetricsSnapshot;
+
+public class ServerRunner {
+	// how long to wait for connections in progress when shutting down.
+	private static final long DEFAULT_DRAIN_SECONDS = 30;
+	// connections a client may make at once when its rate is limited.
+	private static final int DEFAULT_BURST = 20;
+	// topics listed by the TRENDING command.
+	private static final int DEFAULT_TRENDING = 10;
+	// clients listed by the SENDERS command.
+	private static final int DEFAULT_SENDERS = 10;
+	private static final String HELP = "Commands:\n"
+			+ "  STATS            throughput and latency since the last STATS\n"
+			+ "  METRICS          all metrics since the server started\n"
+			+ "  TRENDING [n]     the n (default " + DEFAULT_TRENDING
+			+ ") most used #tags and @mentions\n"
+			+ "                   of the last hour\n"
+			+ "  SENDERS [n] [messages|bytes|errors]\n"
+			+ "                   the n (default " + DEFAULT_SENDERS
+			+ ") clients which sent the most\n"
+			+ "                   in the last ten minutes\n"
+			+ "  VOLUME [yyyy-MM-dd] [minutes]\n"
+			+ "                   messages per hour, or minute, of a day\n"
+			+ "                   (default today)\n"
+			+ "  DRAIN            stop accepting new connections\n"
+			+ "  SHUTDOWN [secs]  drain, wait for connections in progress\n"
+			+ "                   (default " + DEFAULT_DRAIN_SECONDS
+			+ " seconds) and exit\n"
+			+ "  QUIT             same as SHUTDOWN\n"
+			+ "  HELP             show this message";
+
+	private final Server server;
+	// snapshot taken by the previous STATS command.
+	private MetricsSnapshot lastSnapshot;
+
+	/**
+	 * Create a new ServerRunner which controls a given server.
+	 * 
+	 * @param server
+	 *            The server to be controlled from the console.
+	 */
+	public ServerRunner(Server server) {
+		this.server = server;
+		this.lastSnapshot = server.getMetrics().snapshot();
+	}
+
+	/**
+	 * Start the server and read commands from the console.
+	 * 
+	 * Usage: ServerRunner [-http port] [-udp port [-udpacks]]
+	 * [-rate connections/s] [-burst n]
+	 * 
+	 * @param args
+	 *            -http port also serves the messages over HTTP at that port.
+	 *            -udp port also receives messages as datagrams at that port,
+	 *            answering each one if -udpacks is given.
+	 *            -rate limits how often each client address may connect or
+	 *            send a message over a keep-alive connection, on average;
+	 *            -burst how many it may do at once (default DEFAULT_BURST).
+	 */
+	public static void main(String[] args) {
+		int httpPort = -1;
+		int udpPort = -1;
+		boolean udpAcks = false;
+		double rate = 0;
+		int burst = DEFAULT_BURST;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-http")) {
+					httpPort = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-udp")) {
+					udpPort = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-udpacks")) {
+					udpAcks = true;
+				} else if (args[i].equals("-rate")) {
+					rate = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("-burst")) {
+					burst = Integer.parseInt(args[++i]);
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+			if (rate < 0 || burst < 1)
+				throw new IllegalArgumentException();
+		} catch (RuntimeException e) {
+			System.out.println("Usage: ServerRunner [-http port]"
+					+ " [-udp port [-udpacks]] [-rate connections/s] [-burst n]");
+			System.exit(2);
+		}
+		System.out.println("Starting server... Enter HELP for commands.");
+		Server server = null;
+		try {
+			server = new Server();
+		} catch (SocketException e) {
+			System.out
+					.println("Socket exception: Port already taken by another service.");
+			System.exit(0);
+		} catch (IOException e) {
+			System.out.println(e);
+			System.exit(0);
+		}
+		if (rate > 0) {
+			server.setRateLimiter(new RateLimiter(rate, burst));
+			System.out.println("Each client may connect " + rate
+					+ " times a second, " + burst + " at once.");
+		}
+		if (udpPort >= 0) {
+			try {
+				DatagramReceiver receiver = server.startDatagramReceiver(
+						udpPort, udpAcks);
+				System.out.println("Receiving datagrams at port "
+						+ receiver.getPort() + (udpAcks ? ", with acks." : "."));
+			} catch (IOException e) {
+				System.out.println("Could not receive datagrams: " + e);
+			}
+		}
+		if (httpPort >= 0) {
+			try {
+				HttpGateway gateway = server.startGateway(httpPort);
+				System.out.println("Serving messages over HTTP at port "
+						+ gateway.getPort() + ".");
+			} catch (IOException e) {
+				System.out.println("Could not start HTTP gateway: " + e);
+			}
+		}
+		new ServerRunner(server).readCommands(new Scanner(System.in));
+	}
+
+	/**
+	 * Read and execute commands from the console until the server is shut
+	 * down.
+	 * 
+	 * @param consoleIn
+	 *            The console input.
+	 */
+	public void readCommands(Scanner consoleIn) {
+		while (true) {
+			System.out.print(">> ");
+			if (!consoleIn.hasNextLine()) {
+				// console closed, nobody left to give commands.
+				shutdown(DEFAULT_DRAIN_SECONDS);
+			}
+			String[] input = consoleIn.nextLine().trim().split("\\s+");
+			String command = input[0];
+			if (command.equalsIgnoreCase("stats")) {
+				printStats();
+			} else if (command.equalsIgnoreCase("metrics")) {
+				System.out.print(server.getMetrics().snapshot().format());
+			} else if (command.equalsIgnoreCase("trending")) {
+				int n = DEFAULT_TRENDING;
+				if (input.length > 1) {
+					try {
+						n = Integer.parseInt(input[1]);
+					} catch (NumberFormatException e) {
+						System.out.println("Not a number of topics: "
+								+ input[1]);
+						continue;
+					}
+				}
+				printTrending(n);
+			} else if (command.equalsIgnoreCase("senders")) {
+				int n = DEFAULT_SENDERS;
+				TopSenders.Order order = TopSenders.Order.MESSAGES;
+				try {
+					for (int i = 1; i < input.length; i++) {
+						if (input[i].equalsIgnoreCase("messages")) {
+							order = TopSenders.Order.MESSAGES;
+						} else if (input[i].equalsIgnoreCase("bytes")) {
+							order = TopSenders.Order.BYTES;
+						} else if (input[i].equalsIgnoreCase("errors")) {
+							order = TopSenders.Order.ERROR_RATE;
+						} else {
+							n = Integer.parseInt(input[i]);
+						}
+					}
+				} catch (NumberFormatException e) {
+					System.out.println("Usage: SENDERS [n] [messages|bytes|errors]");
+					continue;
+				}
+				printSenders(n, order);
+			} else if (command.equalsIgnoreCase("volume")) {
+				Rollups rollups = server.getMetrics().getRollups();
+				String day = rollups.getDayName(System.currentTimeMillis());
+				boolean minutes = false;
+				for (int i = 1; i < input.length; i++) {
+					if (input[i].equalsIgnoreCase("minutes")) {
+						minutes = true;
+					} else {
+						day = input[i];
+					}
+				}
+				printVolume(rollups, day, minutes);
+			} else if (command.equalsIgnoreCase("drain")) {
+				server.stopAccepting();
+				System.out.println("No longer accepting connections. "
+						+ server.getInFlightCount()
+						+ " connection(s) in progress.");
+			} else if (command.equalsIgnoreCase("shutdown")
+					|| command.equalsIgnoreCase("quit")) {
+				long seconds = DEFAULT_DRAIN_SECONDS;
+				if (input.length > 1) {
+					try {
+						seconds = Long.parseLong(input[1]);
+					} catch (NumberFormatException e) {
+						System.out.println("Not a number of seconds: "
+								+ input[1]);
+						continue;
+					}
+				}
+				shutdown(seconds);
+			} else if (command.equalsIgnoreCase("help")) {
+				System.out.println(HELP);
+			} else if (command.length() > 0) {
+				System.out.println("Unknown command: " + command
+						+ ". Enter HELP for commands.");
+			}
+		}
+	}
+
+	/**
+	 * Print throughput and latency since the previous call.
+	 */
+	private void printStats() {
+		MetricsSnapshot now = server.getMetrics().snapshot();
+		double seconds = (now.getNanoTime() - lastSnapshot.getNanoTime()) / 1e9;
+		long messages = now.getCounter("messages.persisted")
+				- lastSnapshot.getCounter("messages.persisted");
+		long connections = now.getCounter("connections.accepted")
+				- lastSnapshot.getCounter("connections.accepted");
+		System.out.printf("Last %.1f s: %.1f messages/s, %.1f connections/s,"
+				+ " %d in progress%s%n", seconds, messages / seconds,
+				connections / seconds, server.getInFlightCount(),
+				server.isAccepting() ? "" : " (draining)");
+		for (Map.Entry<String, HistogramSnapshot> entry : now.getHistograms()
+				.entrySet()) {
+			HistogramSnapshot earlier = lastSnapshot.getHistogram(entry
+					.getKey());
+			HistogramSnapshot interval = earlier == null ? entry.getValue()
+					: entry.getValue().minus(earlier);
+			System.out.println(MetricsSnapshot.formatHistogram(entry.getKey(),
+					interval));
+		}
+		lastSnapshot = now;
+	}
+
+	/**
+	 * Print the most used topics of the last hour.
+	 * 
+	 * @param n
+	 *            The number of topics to print.
+	 */
+	private void printTrending(int n) {
+		List<TrendingTopics.Topic> topics = server.getMetrics()
+				.getTrendingTopics().trending(n);
+		if (topics.isEmpty())
+			System.out.println("No topics in the last hour.");
+		for (int i = 0; i < topics.size(); i++) {
+			System.out.printf("%3d. %-30s %d%n", i + 1, topics.get(i)
+					.getName(), topics.get(i).getCount());
+		}
+	}
+
+	/**
+	 * Print the clients which sent the most in the last ten minutes.
+	 * 
+	 * @param n
+	 *            The number of clients to print.
+	 * @param order
+	 *            What to rank the clients by.
+	 */
+	private void printSenders(int n, TopSenders.Order order) {
+		List<TopSenders.Sender> senders = server.getMetrics().getTopSenders()
+				.top(n, order);
+		if (senders.isEmpty()) {
+			System.out.println("No clients in the last ten minutes.");
+			return;
+		}
+		System.out.printf("     %-39s %8s %10s %8s %6s%n", "client", "messages",
+				"bytes", "rejected", "errors");
+		for (int i = 0; i < senders.size(); i++) {
+			TopSenders.Sender sender = senders.get(i);
+			System.out.printf("%3d. %-39s %8d %10d %8d %5.1f%%%n", i + 1,
+					sender.getAddress().getHostAddress(), sender.getMessages(),
+					sender.getBytes(), sender.getRejected(),
+					100 * sender.getErrorRate());
+		}
+	}
+
+	/**
+	 * Print the volume of each hour, or minute, of a day in which anything
+	 * was stored or rejected.
+	 * 
+	 * @param rollups
+	 *            The rollups of the server.
+	 * @param day
+	 *            The name of the day, yyyy-MM-dd.
+	 * @param minutes
+	 *            Whether to print minutes rather than hours.
+	 */
+	private void printVolume(Rollups rollups, String day, boolean minutes) {
+		Rollups.Rollup[] volume;
+		try {
+			volume = minutes ? rollups.getMinutes(day) : rollups.getHours(day);
+		} catch (IOException e) {
+			System.out.println("Could not read the rollups of " + day + ": "
+					+ e.getMessage());
+			return;
+		}
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm");
+		long messages = 0;
+		long rejected = 0;
+		System.out.printf("%-6s %10s %12s %10s %14s%n", "start", "messages",
+				"bytes", "rejected", "p99 persist ms");
+		for (Rollups.Rollup rollup : volume) {
+			if (rollup.isEmpty())
+				continue;
+			System.out.printf("%-6s %10d %12d %10d %14.2f%n", format
+					.format(new Date(rollup.getStartMillis())), rollup
+					.getMessages(), rollup.getBytes(), rollup.getRejected(),
+					rollup.getP99PersistNanos() / 1e6);
+			messages += rollup.getMessages();
+			rejected += rollup.getRejected();
+		}
+		System.out.println(day + ": " + messages + " messages stored, "
+				+ rejected + " rejected.");
+	}
+
+	/**
+	 * Stop accepting connections, wait for connections in progress to finish
+	 * and exit.
+	 * 
+	 * @param seconds
+	 *            The maximum number of seconds to wait.
+	 */
+	private void shutdown(long seconds) {
+		System.out.println("Shutting down server... waiting up to " + seconds
+				+ " seconds for " + server.getInFlightCount()
+				+ " connection(s) in progress.");
+		boolean drained;
+		try {
+			drained = server.shutdown(seconds * 1000);
+		} catch (InterruptedException e) {
+			drained = false;
+		}
+		if (!drained) {
+			System.out.println("Deadline passed; the connections still in"
+					+ " progress were closed.");
+		}
+		System.out.println("Server shut down.");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,41 @@
+package twit.server;
+
+import java.io.File;
+
+/**
+ * Describes a message which has been written to a MessageStore.
+ */
+public class StoredMessage {
+	private final long id;
+	private final long timeMillis;
+	private final File file;
+
+	/**
+	 * Create a new StoredMessage.
+	 * 
+	 * @param id
+	 *            The id assigned to the message by the store.
+	 * @param timeMillis
+	 *            The time at which the message was stored, in milliseconds
+	 *            since the epoch.
+	 * @param file
+	 *            The file containing the message.
+	 */
+	public StoredMessage(long id, long timeMillis, File file) {
+		this.id = id;
+		this.timeMillis = timeMillis;
+		this.file = file;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	public File getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,250 @@
+package twit.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import twit.metrics.Counter;
+import twit.metrics.Gauge;
+
+/**
+ * Runs tasks once a delay has passed, for very many delays which are usually
+ * cancelled before they pass, such as the time outs of connections. A single
+ * thread keeps every timeout in a hashed timing wheel: a ring of buckets, one
+ * per tick, in which a timeout is kept in the bucket of the tick at which it
+ * passes. Each tick the thread runs the tasks in one bucket whose time has
+ * come, so scheduling and cancelling are O(1) however many timeouts there
+ * are, and no thread or timer is needed per connection.
+ * 
+ * Timeouts scheduled or cancelled by other threads are queued, and moved into
+ * or out of the wheel by its thread at the next tick. A timeout cancelled
+ * before it reaches the wheel, as most are, is simply dropped. Tasks run on the
+ * wheel's thread, so they must be quick. A task may run up to one tick late.
+ */
+public class TimingWheel {
+	/**
+	 * A task scheduled to run once a delay has passed.
+	 */
+	public static final class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final TimingWheel wheel;
+		private final Runnable task;
+		// the tick at which the timeout passes.
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		// set once the timeout is in a bucket, so that it must be removed
+		// when cancelled.
+		private volatile boolean inWheel;
+		// the following are only used by the wheel's thread.
+		private Bucket bucket;
+		private Timeout previous;
+		private Timeout next;
+
+		private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stop the task from running, if it has not run yet.
+		 * 
+		 * @return true if the task will not run, false if it has already run
+		 *         or been cancelled.
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+			wheel.pending.decrement();
+			// one not yet in the wheel is dropped when it would be added. One
+			// added meanwhile is dropped when its bucket comes round.
+			if (inWheel)
+				wheel.cancelled.add(this);
+			return true;
+		}
+
+		/**
+		 * Tells whether the delay has passed and the task has been run.
+		 * 
+		 * @return true if the task has been run.
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+
+	/**
+	 * A doubly linked list of timeouts, used only by the wheel's thread.
+	 */
+	private static final class Bucket {
+		private Timeout head;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.next = head;
+			if (head != null)
+				head.previous = timeout;
+			head = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.previous != null) {
+				timeout.previous.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null)
+				timeout.next.previous = timeout.previous;
+			timeout.bucket = null;
+			timeout.previous = null;
+			timeout.next = null;
+		}
+	}
+
+	private final long tickNanos;
+	private final Bucket[] buckets;
+	private final int mask;
+	private final long startTime = System.nanoTime();
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private final Counter fired;
+	private final Gauge pending;
+	private final Thread thread;
+	// the next tick to be run, only used by the wheel's thread.
+	private long tick;
+
+	/**
+	 * Create a new TimingWheel and start its thread.
+	 * 
+	 * @param tickMillis
+	 *            The length of a tick in milliseconds, which is how precisely
+	 *            timeouts are kept.
+	 * @param ticksPerWheel
+	 *            The number of buckets, rounded up to a power of two. Delays
+	 *            longer than a turn of the wheel are allowed, but cost a look
+	 *            at the timeout every turn.
+	 * @param fired
+	 *            The counter of tasks run.
+	 * @param pending
+	 *            The gauge of timeouts which have been neither run nor
+	 *            cancelled.
+	 */
+	public TimingWheel(long tickMillis, int ticksPerWheel, Counter fired,
+			Gauge pending) {
+		if (tickMillis < 1 || ticksPerWheel < 1)
+			throw new IllegalArgumentException(
+					"The tick and number of ticks must be positive.");
+		this.tickNanos = tickMillis * 1000000;
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if (size < ticksPerWheel)
+			size <<= 1;
+		buckets = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			buckets[i] = new Bucket();
+		}
+		mask = size - 1;
+		this.fired = fired;
+		this.pending = pending;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				turn();
+			}
+		}, "timing-wheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Run a task once a delay has passed, unless it is cancelled first.
+	 * 
+	 * @param task
+	 *            The task, which is run on the wheel's thread.
+	 * @param delayMillis
+	 *            The delay in milliseconds.
+	 * @return The timeout, by which the task can be cancelled.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		long delay = System.nanoTime() + delayMillis * 1000000 - startTime;
+		// round up, so the task never runs early.
+		Timeout timeout = new Timeout(this, task, (delay + tickNanos - 1)
+				/ tickNanos);
+		pending.increment();
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stop the wheel's thread. Pending tasks are never run.
+	 */
+	public void stop() {
+		thread.interrupt();
+	}
+
+	/**
+	 * Run ticks until the thread is interrupted.
+	 */
+	private void turn() {
+		try {
+			while (true) {
+				long sleep = startTime + tick * tickNanos - System.nanoTime();
+				if (sleep > 0)
+					Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+				removeCancelled();
+				addScheduled();
+				expire(buckets[(int) (tick & mask)]);
+				tick++;
+			}
+		} catch (InterruptedException e) {
+			// stopped.
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			// a timeout cancelled before it reached the wheel has no bucket.
+			if (timeout.bucket != null)
+				timeout.bucket.remove(timeout);
+		}
+	}
+
+	private void addScheduled() {
+		Timeout timeout;
+		while ((timeout = scheduled.poll()) != null) {
+			if (timeout.state.get() != Timeout.PENDING)
+				continue;
+			// a timeout which should already have passed runs now.
+			long due = Math.max(timeout.deadline, tick);
+			buckets[(int) (due & mask)].add(timeout);
+			timeout.inWheel = true;
+		}
+	}
+
+	/**
+	 * Run the tasks in a bucket whose time has come. Timeouts a turn or more
+	 * away stay in the bucket.
+	 */
+	private void expire(Bucket bucket) {
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.deadline <= tick) {
+				bucket.remove(timeout);
+				if (timeout.state.compareAndSet(Timeout.PENDING,
+						Timeout.EXPIRED)) {
+					pending.decrement();
+					fired.increment();
+					try {
+						timeout.task.run();
+					} catch (RuntimeException e) {
+						System.out.println("Timeout task failed: " + e);
+					}
+				}
+			}
+			timeout = next;
+		}
+	}
+}
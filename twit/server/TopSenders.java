@@ -0,0 +1,367 @@
+package twit.server;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the client addresses which send the most, over a rolling
+ * window of time, in a fixed amount of memory however many clients there
+ * are.
+ * 
+ * The window is split into slots, and each slot keeps a Space-Saving summary:
+ * at most capacity monitored clients, each with a count of its events (its
+ * connections and requests). An event from a client which is not monitored,
+ * once the summary is full, takes the place of the client with the lowest
+ * count, and starts from that count, which is recorded as the most by which
+ * its count may be too high. Every client with more than 1/capacity of a
+ * slot's events is certain to be monitored. The monitored clients are kept in
+ * a min-heap by count, so an event costs a map lookup and, rarely, a few
+ * swaps.
+ * 
+ * Besides its count, each monitored client has the messages, bytes and
+ * rejected requests seen since it was last taken into the summary, which are
+ * exact for the heavy senders and never too high for the others. When the
+ * top senders are asked for, the summaries of the slots in the window are
+ * added together.
+ */
+public class TopSenders {
+	public static final long DEFAULT_WINDOW_MILLIS = 10 * 60 * 1000;
+	public static final int DEFAULT_SLOTS = 10;
+	public static final int DEFAULT_CAPACITY = 128;
+	// a client needs at least this many requests to be ranked by error rate.
+	public static final int MIN_REQUESTS_FOR_RATE = 10;
+
+	/**
+	 * The orders in which the top senders can be listed.
+	 */
+	public enum Order {
+		MESSAGES, BYTES, ERROR_RATE
+	}
+
+	/**
+	 * What a client sent in the window.
+	 */
+	public static final class Sender {
+		private final InetAddress address;
+		private long count;
+		private long overestimate;
+		private long connections;
+		private long messages;
+		private long bytes;
+		private long rejected;
+		// the following are only used within a summary.
+		private int position;
+
+		Sender(InetAddress address) {
+			this.address = address;
+		}
+
+		/**
+		 * @return The address of the client.
+		 */
+		public InetAddress getAddress() {
+			return address;
+		}
+
+		/**
+		 * @return The number of connections and requests of the client,
+		 *         possibly too high by up to getOverestimate().
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The most by which getCount() may be too high.
+		 */
+		public long getOverestimate() {
+			return overestimate;
+		}
+
+		/**
+		 * @return The number of connections the client made.
+		 */
+		public long getConnections() {
+			return connections;
+		}
+
+		/**
+		 * @return The number of messages stored for the client.
+		 */
+		public long getMessages() {
+			return messages;
+		}
+
+		/**
+		 * @return The number of bytes of the messages stored.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return The number of requests of the client which were rejected.
+		 */
+		public long getRejected() {
+			return rejected;
+		}
+
+		/**
+		 * @return The share of the client's requests which were rejected, or
+		 *         0 if it made none.
+		 */
+		public double getErrorRate() {
+			long requests = messages + rejected;
+			return requests == 0 ? 0 : (double) rejected / requests;
+		}
+
+		private void add(Sender other) {
+			count += other.count;
+			overestimate += other.overestimate;
+			connections += other.connections;
+			messages += other.messages;
+			bytes += other.bytes;
+			rejected += other.rejected;
+		}
+	}
+
+	/**
+	 * The Space-Saving summary of one slot.
+	 */
+	private static final class Summary {
+		private final Map<InetAddress, Sender> senders = new HashMap<InetAddress, Sender>();
+		private final Sender[] heap;
+		private int size;
+
+		Summary(int capacity) {
+			heap = new Sender[capacity];
+		}
+
+		/**
+		 * Count an event of a client, making room for it if necessary.
+		 * 
+		 * @return The client's entry, to which the details of the event are
+		 *         to be added.
+		 */
+		Sender count(InetAddress address) {
+			Sender sender = senders.get(address);
+			if (sender == null) {
+				if (size < heap.length) {
+					sender = new Sender(address);
+					sender.position = size;
+					heap[size++] = sender;
+				} else {
+					// take over the entry of the least counted client.
+					sender = heap[0];
+					senders.remove(sender.address);
+					Sender replacement = new Sender(address);
+					replacement.count = sender.count;
+					replacement.overestimate = sender.count;
+					replacement.position = 0;
+					heap[0] = replacement;
+					sender = replacement;
+				}
+				senders.put(address, sender);
+			}
+			sender.count++;
+			siftDown(sender.position);
+			return sender;
+		}
+
+		private void siftDown(int i) {
+			while (true) {
+				int smallest = i;
+				int left = 2 * i + 1;
+				int right = left + 1;
+				if (left < size && heap[left].count < heap[smallest].count)
+					smallest = left;
+				if (right < size && heap[right].count < heap[smallest].count)
+					smallest = right;
+				if (smallest == i)
+					return;
+				Sender sender = heap[i];
+				heap[i] = heap[smallest];
+				heap[i].position = i;
+				heap[smallest] = sender;
+				sender.position = smallest;
+				i = smallest;
+			}
+		}
+
+		/**
+		 * The count below which a client which is not monitored must be.
+		 */
+		long minCount() {
+			return size < heap.length ? 0 : heap[0].count;
+		}
+
+		void clear() {
+			senders.clear();
+			Arrays.fill(heap, null);
+			size = 0;
+		}
+	}
+
+	private final long slotMillis;
+	// the following are guarded by "this".
+	private final Summary[] slots;
+	// the number of the slot now being counted, since the epoch.
+	private long currentSlot;
+
+	/**
+	 * Create a new TopSenders over the last ten minutes, in one minute slots,
+	 * monitoring DEFAULT_CAPACITY clients in each.
+	 */
+	public TopSenders() {
+		this(DEFAULT_WINDOW_MILLIS, DEFAULT_SLOTS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a new TopSenders.
+	 * 
+	 * @param windowMillis
+	 *            The length of the window in milliseconds.
+	 * @param slots
+	 *            The number of slots the window is split into.
+	 * @param capacity
+	 *            The number of clients monitored in each slot.
+	 */
+	public TopSenders(long windowMillis, int slots, int capacity) {
+		if (slots < 1 || windowMillis < slots || capacity < 1)
+			throw new IllegalArgumentException(
+					"The window, slots and capacity must be positive.");
+		this.slotMillis = windowMillis / slots;
+		this.slots = new Summary[slots];
+		for (int i = 0; i < slots; i++) {
+			this.slots[i] = new Summary(capacity);
+		}
+		currentSlot = System.currentTimeMillis() / slotMillis;
+	}
+
+	/**
+	 * Count a connection accepted from a client.
+	 * 
+	 * @param address
+	 *            The address of the client.
+	 */
+	public synchronized void connected(InetAddress address) {
+		current().count(address).connections++;
+	}
+
+	/**
+	 * Count a message of a client which was stored.
+	 * 
+	 * @param address
+	 *            The address of the client.
+	 * @param length
+	 *            The number of bytes of the message.
+	 */
+	public synchronized void stored(InetAddress address, int length) {
+		Sender sender = current().count(address);
+		sender.messages++;
+		sender.bytes += length;
+	}
+
+	/**
+	 * Count a request of a client which was rejected, or a connection which
+	 * was refused or timed out.
+	 * 
+	 * @param address
+	 *            The address of the client.
+	 */
+	public synchronized void rejected(InetAddress address) {
+		current().count(address).rejected++;
+	}
+
+	/**
+	 * Get the clients which sent the most in the window.
+	 * 
+	 * @param n
+	 *            The number of clients wanted.
+	 * @param order
+	 *            What to rank the clients by. Only clients with at least
+	 *            MIN_REQUESTS_FOR_RATE requests are ranked by ERROR_RATE.
+	 * @return Up to n clients, the first sending the most.
+	 */
+	public synchronized List<Sender> top(int n, Order order) {
+		advance(System.currentTimeMillis());
+		Map<InetAddress, Sender> merged = new HashMap<InetAddress, Sender>();
+		long missing = 0;
+		for (Summary slot : slots) {
+			for (Sender sender : slot.senders.values()) {
+				Sender total = merged.get(sender.address);
+				if (total == null) {
+					total = new Sender(sender.address);
+					// the slots before this one may have counted it too.
+					total.count = missing;
+					total.overestimate = missing;
+					merged.put(sender.address, total);
+				}
+				total.add(sender);
+			}
+			// clients this slot does not monitor could each have had up to
+			// its lowest count.
+			long min = slot.minCount();
+			for (Sender total : merged.values()) {
+				if (!slot.senders.containsKey(total.address)) {
+					total.count += min;
+					total.overestimate += min;
+				}
+			}
+			missing += min;
+		}
+		List<Sender> senders = new ArrayList<Sender>();
+		for (Sender sender : merged.values()) {
+			if (order != Order.ERROR_RATE
+					|| sender.messages + sender.rejected >= MIN_REQUESTS_FOR_RATE)
+				senders.add(sender);
+		}
+		Collections.sort(senders, comparator(order));
+		return senders.subList(0, Math.max(0, Math.min(n, senders.size())));
+	}
+
+	private static Comparator<Sender> comparator(final Order order) {
+		return new Comparator<Sender>() {
+			public int compare(Sender a, Sender b) {
+				if (order == Order.ERROR_RATE) {
+					int byRate = Double.compare(b.getErrorRate(),
+							a.getErrorRate());
+					if (byRate != 0)
+						return byRate;
+				} else if (order == Order.BYTES) {
+					return Long.compare(b.bytes, a.bytes);
+				}
+				return Long.compare(b.messages, a.messages);
+			}
+		};
+	}
+
+	/**
+	 * Get the summary of the current slot, moving the window on first.
+	 */
+	private Summary current() {
+		advance(System.currentTimeMillis());
+		return slots[(int) (currentSlot % slots.length)];
+	}
+
+	/**
+	 * Move the window on to a given time, clearing the slots which fall out
+	 * of it. A clock which goes back leaves the window where it is.
+	 */
+	private void advance(long timeMillis) {
+		long slot = timeMillis / slotMillis;
+		if (slot <= currentSlot)
+			return;
+		long expired = Math.min(slot - currentSlot, slots.length);
+		for (long s = slot - expired + 1; s <= slot; s++) {
+			slots[(int) (s % slots.length)].clear();
+		}
+		currentSlot = slot;
+	}
+}
@@ -0,0 +1,94 @@
+package twit.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds the #hashtags and @mentions in a message, in a single pass over its
+ * UTF-8 bytes, without decoding the rest of the message.
+ * 
+ * A topic is a '#' or '@' at the start of the message or after a character
+ * which cannot be part of a word, followed by word characters: ASCII
+ * letters, digits and underscores, and any non-ASCII character, so that a
+ * hashtag in Greek or Chinese is one topic. A hashtag made only of digits,
+ * such as #1, is not a topic. Topics are reported with their '#' or '@',
+ * in lower case, so that #TWIt and #twit count as one. An e-mail address is
+ * not a mention, as its '@' follows a word character.
+ */
+public class TopicTokenizer {
+	/**
+	 * Receives the topics found in a message.
+	 */
+	public interface Handler {
+		/**
+		 * Called for each topic, in the order in which they appear.
+		 * 
+		 * @param topic
+		 *            The topic, starting with '#' or '@'.
+		 */
+		void topic(String topic);
+	}
+
+	/**
+	 * Find the topics in a message.
+	 * 
+	 * @param bytes
+	 *            An array containing the message, as well-formed UTF-8.
+	 * @param offset
+	 *            The index of the beginning of the message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @param handler
+	 *            Receives each topic found.
+	 * @return The number of topics found.
+	 */
+	public static int tokenize(byte[] bytes, int offset, int length,
+			Handler handler) {
+		int end = offset + length;
+		int found = 0;
+		boolean afterWord = false;
+		int i = offset;
+		while (i < end) {
+			byte b = bytes[i];
+			if ((b != '#' && b != '@') || afterWord) {
+				afterWord = isWordByte(b);
+				i++;
+				continue;
+			}
+			int start = i + 1;
+			int stop = start;
+			boolean digitsOnly = true;
+			while (stop < end && isWordByte(bytes[stop])) {
+				if (bytes[stop] < '0' || bytes[stop] > '9')
+					digitsOnly = false;
+				stop++;
+			}
+			// a topic always ends before an ASCII byte, so it holds whole
+			// code points.
+			if (stop > start && !(digitsOnly && b == '#')) {
+				handler.topic(toTopic(bytes, i, stop - i));
+				found++;
+			}
+			afterWord = stop > start;
+			i = Math.max(stop, start);
+		}
+		return found;
+	}
+
+	private static boolean isWordByte(byte b) {
+		return b < 0 || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+				|| (b >= '0' && b <= '9') || b == '_';
+	}
+
+	/**
+	 * Decode a topic, turning ASCII letters to lower case. Letters outside
+	 * ASCII are kept as they are.
+	 */
+	private static String toTopic(byte[] bytes, int offset, int length) {
+		byte[] topic = new byte[length];
+		for (int i = 0; i < length; i++) {
+			byte b = bytes[offset + i];
+			topic[i] = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+		}
+		return new String(topic, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,317 @@
+package twit.server;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the #hashtags and @mentions used most over a sliding window
+ * of time, such as the last hour, in a fixed amount of memory however many
+ * messages and topics there are.
+ * 
+ * How often each topic was used is estimated by a Count-Min Sketch: depth
+ * rows of width counters, each topic adding one to a counter in every row
+ * chosen by a hash of the topic. A topic's estimate is the smallest of its
+ * counters, which is never less than the true count and more only by the
+ * counts of topics which share every one of its counters. The window is
+ * split into slots, each with a sketch of its own, and the total of the
+ * slots is kept in one more sketch. When a slot falls out of the window its
+ * counts are taken off the total and it is cleared for reuse, so old
+ * messages are forgotten without being looked at again.
+ * 
+ * The capacity topics with the highest estimates are kept in a min-heap,
+ * with a map from topic to heap position, so each use of a topic costs
+ * O(depth + log capacity). Estimates of the topics in the heap are looked up
+ * again whenever a slot falls out of the window. Asking for the trending
+ * topics only copies and sorts the heap, so it takes the same time however
+ * many messages there have been.
+ */
+public class TrendingTopics {
+	public static final long DEFAULT_WINDOW_MILLIS = 60 * 60 * 1000;
+	public static final int DEFAULT_SLOTS = 12;
+	public static final int DEFAULT_CAPACITY = 20;
+	private static final int DEPTH = 4;
+	// a power of two, so a hash is reduced to a column with a mask.
+	private static final int WIDTH = 4096;
+
+	/**
+	 * A topic and the estimate of how often it was used in the window.
+	 */
+	public static final class Topic {
+		private final String name;
+		private final int count;
+
+		Topic(String name, int count) {
+			this.name = name;
+			this.count = count;
+		}
+
+		/**
+		 * @return The topic, starting with '#' or '@'.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return How often the topic was used, possibly overestimated.
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		@Override
+		public String toString() {
+			return name + " " + count;
+		}
+	}
+
+	private static final Comparator<Topic> BY_COUNT = new Comparator<Topic>() {
+		public int compare(Topic a, Topic b) {
+			return b.count - a.count;
+		}
+	};
+
+	private final long slotMillis;
+	private final int capacity;
+	// the following are guarded by "this".
+	private final int[][] slots;
+	private final int[] total = new int[DEPTH * WIDTH];
+	// the number of the slot now being counted, since the epoch.
+	private long currentSlot;
+	private final String[] heapTopics;
+	private final int[] heapCounts;
+	private int heapSize;
+	private final Map<String, Integer> heapIndex = new HashMap<String, Integer>();
+	private final TopicTokenizer.Handler counter = new TopicTokenizer.Handler() {
+		public void topic(String topic) {
+			count(topic);
+		}
+	};
+
+	/**
+	 * Create a new TrendingTopics over the last hour, in five minute slots,
+	 * keeping the DEFAULT_CAPACITY most used topics.
+	 */
+	public TrendingTopics() {
+		this(DEFAULT_WINDOW_MILLIS, DEFAULT_SLOTS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a new TrendingTopics.
+	 * 
+	 * @param windowMillis
+	 *            The length of the window in milliseconds.
+	 * @param slots
+	 *            The number of slots the window is split into. A topic is
+	 *            forgotten between windowMillis and windowMillis plus one
+	 *            slot after it was used.
+	 * @param capacity
+	 *            The number of most used topics to keep.
+	 */
+	public TrendingTopics(long windowMillis, int slots, int capacity) {
+		if (slots < 1 || windowMillis < slots || capacity < 1)
+			throw new IllegalArgumentException(
+					"The window, slots and capacity must be positive.");
+		this.slotMillis = windowMillis / slots;
+		this.capacity = capacity;
+		this.slots = new int[slots][DEPTH * WIDTH];
+		heapTopics = new String[capacity];
+		heapCounts = new int[capacity];
+		currentSlot = System.currentTimeMillis() / slotMillis;
+	}
+
+	/**
+	 * Count the topics in a stored message.
+	 * 
+	 * @param bytes
+	 *            An array containing the message, as well-formed UTF-8.
+	 * @param offset
+	 *            The index of the beginning of the message.
+	 * @param length
+	 *            The number of bytes of the message.
+	 * @param timeMillis
+	 *            The time at which the message was stored.
+	 */
+	public synchronized void addMessage(byte[] bytes, int offset, int length,
+			long timeMillis) {
+		advance(timeMillis);
+		TopicTokenizer.tokenize(bytes, offset, length, counter);
+	}
+
+	/**
+	 * Count one use of a topic in the current slot.
+	 */
+	private void count(String topic) {
+		long h = hash(topic);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		int[] slot = slots[(int) (currentSlot % slots.length)];
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			int column = row * WIDTH + ((h1 + row * h2) & (WIDTH - 1));
+			slot[column]++;
+			estimate = Math.min(estimate, ++total[column]);
+		}
+		offer(topic, estimate);
+	}
+
+	/**
+	 * Get the most used topics in the window.
+	 * 
+	 * @param n
+	 *            The number of topics wanted, at most the capacity.
+	 * @return Up to n topics, the most used first.
+	 */
+	public synchronized List<Topic> trending(int n) {
+		advance(System.currentTimeMillis());
+		Topic[] topics = new Topic[heapSize];
+		for (int i = 0; i < heapSize; i++) {
+			topics[i] = new Topic(heapTopics[i], heapCounts[i]);
+		}
+		Arrays.sort(topics, BY_COUNT);
+		return Arrays.asList(Arrays.copyOf(topics,
+				Math.max(0, Math.min(n, topics.length))));
+	}
+
+	/**
+	 * Estimate how often a topic was used in the window.
+	 * 
+	 * @param topic
+	 *            The topic, starting with '#' or '@', in lower case.
+	 * @return The estimate, which is never less than the true count.
+	 */
+	public synchronized int estimate(String topic) {
+		advance(System.currentTimeMillis());
+		return estimateInTotal(topic);
+	}
+
+	private int estimateInTotal(String topic) {
+		long h = hash(topic);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, total[row * WIDTH
+					+ ((h1 + row * h2) & (WIDTH - 1))]);
+		}
+		return estimate;
+	}
+
+	/**
+	 * Move the window on to a given time, forgetting the slots which fall out
+	 * of it. A clock which goes back leaves the window where it is.
+	 */
+	private void advance(long timeMillis) {
+		long slot = timeMillis / slotMillis;
+		if (slot <= currentSlot)
+			return;
+		long expired = Math.min(slot - currentSlot, slots.length);
+		for (long s = slot - expired + 1; s <= slot; s++) {
+			int[] counts = slots[(int) (s % slots.length)];
+			for (int i = 0; i < counts.length; i++) {
+				total[i] -= counts[i];
+			}
+			Arrays.fill(counts, 0);
+		}
+		currentSlot = slot;
+		rebuildHeap();
+	}
+
+	/**
+	 * Look up the estimates of the topics in the heap again, dropping those
+	 * which are no longer used, and restore the heap order.
+	 */
+	private void rebuildHeap() {
+		int kept = 0;
+		heapIndex.clear();
+		for (int i = 0; i < heapSize; i++) {
+			int estimate = estimateInTotal(heapTopics[i]);
+			if (estimate > 0) {
+				heapTopics[kept] = heapTopics[i];
+				heapCounts[kept] = estimate;
+				heapIndex.put(heapTopics[kept], kept);
+				kept++;
+			}
+		}
+		Arrays.fill(heapTopics, kept, heapSize, null);
+		heapSize = kept;
+		for (int i = heapSize / 2 - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+	}
+
+	/**
+	 * Put a topic in the heap if it is used more than the least used topic
+	 * there, or update its count if it is already there. Counts only grow
+	 * between rebuilds, so an updated topic can only move down the heap.
+	 */
+	private void offer(String topic, int estimate) {
+		Integer index = heapIndex.get(topic);
+		if (index != null) {
+			heapCounts[index] = estimate;
+			siftDown(index);
+		} else if (heapSize < capacity) {
+			set(heapSize, topic, estimate);
+			siftUp(heapSize++);
+		} else if (estimate > heapCounts[0]) {
+			heapIndex.remove(heapTopics[0]);
+			set(0, topic, estimate);
+			siftDown(0);
+		}
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (heapCounts[parent] <= heapCounts[i])
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < heapSize && heapCounts[left] < heapCounts[smallest])
+				smallest = left;
+			if (right < heapSize && heapCounts[right] < heapCounts[smallest])
+				smallest = right;
+			if (smallest == i)
+				return;
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+
+	private void swap(int i, int j) {
+		String topic = heapTopics[i];
+		int count = heapCounts[i];
+		set(i, heapTopics[j], heapCounts[j]);
+		set(j, topic, count);
+	}
+
+	private void set(int i, String topic, int count) {
+		heapTopics[i] = topic;
+		heapCounts[i] = count;
+		heapIndex.put(topic, i);
+	}
+
+	/**
+	 * Spread the bits of a topic's hash code over a long, from which the
+	 * column in each row is derived as h1 + row * h2.
+	 */
+	private static long hash(String topic) {
+		long h = topic.hashCode() * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+}
@@ -0,0 +1,273 @@
+package twit.testing;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import twit.client.MessageSender;
+import twit.client.PooledMessageSender;
+import twit.metrics.Counter;
+import twit.metrics.Histogram;
+import twit.metrics.HistogramSnapshot;
+
+/**
+ * Sends messages to a TWIt server from several threads and reports
+ * throughput and latency.
+ * 
+ * In closed-loop mode (no rate given) every thread sends its next message as
+ * soon as the previous one has been confirmed. In open-loop mode messages are
+ * scheduled at a fixed rate, and latency is measured from the time a message
+ * was scheduled to be sent rather than the time it was actually sent. A slow
+ * server therefore cannot hide its stalls by delaying the requests which
+ * would have measured them (coordinated omission).
+ * 
+ * With -pooled, messages are sent over keep-alive connections from a
+ * PooledMessageSender instead of a new connection per message.
+ * 
+ * Usage: LoadGenerator [-host hostname] [-port port] [-threads n]
+ * [-rate messagesPerSecond] [-duration seconds] [-size bytes|min-max]
+ * [-pooled]
+ */
+public class LoadGenerator {
+	private static final String CHARACTERS = "abcdefghijklmnopqrstuvwxyz"
+			+ "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 ";
+
+	private final String hostname;
+	private final int port;
+	private final int threads;
+	// messages per second, or 0 for a closed loop.
+	private final double rate;
+	private final long durationNanos;
+	private final int minSize;
+	private final int maxSize;
+	// null if every message is sent over a new connection.
+	private final PooledMessageSender pool;
+
+	// latency from the intended send time until the confirmation arrived.
+	private final Histogram latency = new Histogram();
+	// latency from the actual send time until the confirmation arrived.
+	private final Histogram serviceTime = new Histogram();
+	private final Counter sent = new Counter();
+	private final Counter failed = new Counter();
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Create a new LoadGenerator.
+	 * 
+	 * @param hostname
+	 *            The hostname of the server.
+	 * @param port
+	 *            The port of the server.
+	 * @param threads
+	 *            The number of sending threads.
+	 * @param rate
+	 *            The total number of messages per second to be sent, or 0 to
+	 *            send as fast as the server confirms them.
+	 * @param durationSeconds
+	 *            How long to send for.
+	 * @param minSize
+	 *            The smallest message size in bytes.
+	 * @param maxSize
+	 *            The largest message size in bytes. Sizes are uniformly
+	 *            distributed between minSize and maxSize inclusive.
+	 * @param pooled
+	 *            Whether to send over pooled keep-alive connections.
+	 */
+	public LoadGenerator(String hostname, int port, int threads, double rate,
+			int durationSeconds, int minSize, int maxSize, boolean pooled) {
+		this.hostname = hostname;
+		this.port = port;
+		this.threads = threads;
+		this.rate = rate;
+		this.durationNanos = durationSeconds * 1000000000L;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.pool = pooled ? new PooledMessageSender() : null;
+	}
+
+	/**
+	 * Send messages until the duration has passed, then print a report.
+	 * 
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the sending threads.
+	 */
+	public void run() throws InterruptedException {
+		final long start = System.nanoTime();
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final Random random = new Random(i);
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					sendUntil(start, random);
+				}
+			}, "load-" + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		if (pool != null)
+			pool.close();
+		report((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Send messages from the current thread until the duration has passed.
+	 * 
+	 * @param start
+	 *            System.nanoTime() when the run started.
+	 * @param random
+	 *            Source of message sizes and contents for this thread.
+	 */
+	private void sendUntil(long start, Random random) {
+		long end = start + durationNanos;
+		while (true) {
+			long intended;
+			if (rate > 0) {
+				long n = sequence.getAndIncrement();
+				intended = start + (long) (n * 1e9 / rate);
+				if (intended >= end)
+					return;
+				long wait = intended - System.nanoTime();
+				if (wait > 0)
+					LockSupport.parkNanos(wait);
+			} else {
+				intended = System.nanoTime();
+				if (intended >= end)
+					return;
+			}
+			sendOne(intended, randomMessage(random));
+		}
+	}
+
+	/**
+	 * Send one message and record how long it took.
+	 * 
+	 * @param intended
+	 *            System.nanoTime() at which the message should have been sent.
+	 * @param message
+	 *            The message.
+	 */
+	private void sendOne(long intended, String message) {
+		long sendStart = System.nanoTime();
+		try {
+			String received;
+			if (pool != null) {
+				byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+				received = pool.send(hostname, port, bytes, 0, bytes.length);
+			} else {
+				received = MessageSender.send(hostname, port, message);
+			}
+			long now = System.nanoTime();
+			if (received.equals(message)) {
+				sent.increment();
+				latency.record(now - intended);
+				serviceTime.record(now - sendStart);
+			} else {
+				failed.increment();
+			}
+		} catch (IOException e) {
+			failed.increment();
+		}
+	}
+
+	/**
+	 * Create a message of random length and content.
+	 * 
+	 * @param random
+	 *            A source of randomness.
+	 * @return A message between minSize and maxSize characters long.
+	 */
+	private String randomMessage(Random random) {
+		int size = minSize + random.nextInt(maxSize - minSize + 1);
+		char[] chars = new char[size];
+		for (int i = 0; i < size; i++) {
+			chars[i] = CHARACTERS.charAt(random.nextInt(CHARACTERS.length()));
+		}
+		// avoid sending a message made up only of spaces.
+		chars[0] = 'x';
+		return new String(chars);
+	}
+
+	/**
+	 * Print throughput and latency percentiles.
+	 * 
+	 * @param seconds
+	 *            The time the run took.
+	 */
+	private void report(double seconds) {
+		System.out.printf("%d messages confirmed, %d failed in %.1f s: %.1f messages/s%n",
+				sent.get(), failed.get(), seconds, sent.get() / seconds);
+		printLatency(rate > 0 ? "latency (from intended send time)"
+				: "latency", latency.snapshot());
+		if (rate > 0)
+			printLatency("service time", serviceTime.snapshot());
+	}
+
+	private static void printLatency(String name, HistogramSnapshot h) {
+		System.out.printf(
+				"%s: p50=%.2f ms p99=%.2f ms p999=%.2f ms max=%.2f ms%n",
+				name, h.getValueAtQuantile(0.5) / 1e6,
+				h.getValueAtQuantile(0.99) / 1e6,
+				h.getValueAtQuantile(0.999) / 1e6, h.getMax() / 1e6);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		String hostname = MessageSender.DEFAULT_HOSTNAME;
+		int port = MessageSender.DEFAULT_PORT;
+		int threads = 4;
+		double rate = 0;
+		int duration = 10;
+		int minSize = 20;
+		int maxSize = 140;
+		boolean pooled = false;
+		try {
+			for (int i = 0; i < args.length; i += 2) {
+				String option = args[i];
+				if (option.equals("-pooled")) {
+					pooled = true;
+					i--;
+					continue;
+				}
+				String value = args[i + 1];
+				if (option.equals("-host")) {
+					hostname = value;
+				} else if (option.equals("-port")) {
+					port = Integer.parseInt(value);
+				} else if (option.equals("-threads")) {
+					threads = Integer.parseInt(value);
+				} else if (option.equals("-rate")) {
+					rate = Double.parseDouble(value);
+				} else if (option.equals("-duration")) {
+					duration = Integer.parseInt(value);
+				} else if (option.equals("-size")) {
+					int dash = value.indexOf('-');
+					if (dash == -1) {
+						minSize = maxSize = Integer.parseInt(value);
+					} else {
+						minSize = Integer.parseInt(value.substring(0, dash));
+						maxSize = Integer.parseInt(value.substring(dash + 1));
+					}
+				} else {
+					throw new IllegalArgumentException(option);
+				}
+			}
+			if (threads < 1 || minSize < 1 || maxSize < minSize)
+				throw new IllegalArgumentException(Arrays.toString(args));
+		} catch (RuntimeException e) {
+			System.out.println("Usage: LoadGenerator [-host hostname] [-port port]"
+					+ " [-threads n] [-rate messagesPerSecond]"
+					+ " [-duration seconds] [-size bytes|min-max] [-pooled]");
+			return;
+		}
+		System.out.println("Sending to " + hostname + ":" + port + " from "
+				+ threads + " thread(s) for " + duration + " s, "
+				+ (rate > 0 ? rate + " messages/s" : "closed loop")
+				+ (pooled ? ", pooled connections." : "."));
+		new LoadGenerator(hostname, port, threads, rate, duration, minSize,
+				maxSize, pooled).run();
+	}
+}
@@ -0,0 +1,89 @@
+package twit.testing;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+
+import twit.client.ProfileComboBoxModel;
+import twit.client.ProfileStore;
+import twit.client.ServerProfile;
+import twit.client.Validator;
+
+/**
+ * Measures how long a large profile file takes to load and validate, and how
+ * long a single change takes to save, with ProfileStore.
+ * 
+ * Usage: ProfileStoreLoad [profiles]
+ */
+public class ProfileStoreLoad {
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) throws IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		File directory = Files.createTempDirectory("twit-profiles").toFile();
+		File file = new File(directory, "servers.txt");
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(
+				file)));
+		for (int i = 0; i < count; i++) {
+			out.println(new ServerProfile("server" + i, "host" + i
+					+ ".example.com", 32768 + i % 28000).toLine());
+		}
+		out.close();
+		System.out.println(count + " profiles, " + file.length() / 1024
+				+ " KB");
+
+		// the first runs warm up the JIT compiler.
+		long best = Long.MAX_VALUE;
+		ProfileStore store = null;
+		for (int i = 0; i < RUNS; i++) {
+			if (store != null)
+				store.close();
+			long start = System.nanoTime();
+			store = new ProfileStore(file);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("load: %.1f ms%n", best / 1e6);
+
+		long start = System.nanoTime();
+		Validator.Result[] results = Validator.validateAll(store.getProfiles());
+		int invalid = 0;
+		for (Validator.Result result : results) {
+			if (result != Validator.Result.VALID)
+				invalid++;
+		}
+		System.out.printf("validate: %.1f ms, %d invalid%n",
+				(System.nanoTime() - start) / 1e6, invalid);
+
+		start = System.nanoTime();
+		ProfileComboBoxModel model = new ProfileComboBoxModel(store);
+		model.setFilter("host4242");
+		System.out.printf("filter: %.1f ms, %d matches%n",
+				(System.nanoTime() - start) / 1e6, model.getSize());
+
+		int changes = 500;
+		start = System.nanoTime();
+		for (int i = 0; i < changes; i++) {
+			store.set(i, new ServerProfile("renamed" + i, "host" + i
+					+ ".example.com", 40000));
+		}
+		System.out.printf("save one change: %.1f us%n",
+				(System.nanoTime() - start) / 1e3 / changes);
+
+		start = System.nanoTime();
+		store.compact();
+		System.out.printf("rewrite every profile: %.1f ms%n",
+				(System.nanoTime() - start) / 1e6);
+		store.close();
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+}
@@ -0,0 +1,282 @@
+package twit.testing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import twit.client.MessageSender;
+import twit.metrics.Counter;
+import twit.metrics.Histogram;
+import twit.metrics.HistogramSnapshot;
+import twit.server.Server;
+
+/**
+ * Starts a Server in this process on a free port with a temporary message
+ * directory, sends messages to it from several concurrent clients over the
+ * loopback interface, and checks that every confirmed message was stored
+ * exactly once. Throughput and 99th percentile latency are then compared with
+ * a baseline stored in a file; the run fails (exit code 1) if either has
+ * become worse by more than the tolerance, or if any message was lost or
+ * duplicated. The baseline is written if the file does not exist yet, or
+ * when -record is given.
+ * 
+ * Usage: ThroughputRegression [-clients n] [-messages perClient]
+ * [-baseline file] [-tolerance fraction] [-record]
+ */
+public class ThroughputRegression {
+	private static final String THROUGHPUT = "throughput";
+	private static final String P99_MICROS = "p99Micros";
+
+	private final int clients;
+	private final int messagesPerClient;
+
+	private final Set<String> confirmed = ConcurrentHashMap.newKeySet();
+	private final Counter failed = new Counter();
+	private final Histogram latency = new Histogram();
+
+	/**
+	 * Create a new ThroughputRegression.
+	 * 
+	 * @param clients
+	 *            The number of concurrent clients.
+	 * @param messagesPerClient
+	 *            The number of messages sent by each client.
+	 */
+	public ThroughputRegression(int clients, int messagesPerClient) {
+		this.clients = clients;
+		this.messagesPerClient = messagesPerClient;
+	}
+
+	/**
+	 * Send every message to a server at a given port.
+	 * 
+	 * @param port
+	 *            The port of a server on this machine.
+	 * @return The number of seconds it took.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the clients.
+	 */
+	double sendAll(final int port) throws InterruptedException {
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			final int client = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < messagesPerClient; j++) {
+						send(port, "client " + client + " message " + j);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	/**
+	 * Send one message and remember it if the server confirmed it.
+	 * 
+	 * @param port
+	 *            The port of the server.
+	 * @param message
+	 *            A message.
+	 */
+	private void send(int port, String message) {
+		long start = System.nanoTime();
+		try {
+			String received = MessageSender.send("localhost", port, message);
+			if (received.equals(message)) {
+				latency.record(System.nanoTime() - start);
+				confirmed.add(message);
+				return;
+			}
+		} catch (IOException e) {
+			// counted as failed below.
+		}
+		failed.increment();
+	}
+
+	/**
+	 * Check that every confirmed message is stored in exactly one file.
+	 * 
+	 * @param directory
+	 *            The message directory of the server.
+	 * @return A description of each problem found, or an empty string.
+	 * @throws IOException
+	 *             If the stored messages cannot be read.
+	 */
+	String verify(File directory) throws IOException {
+		Map<String, Integer> stored = new HashMap<String, Integer>();
+		countMessages(directory, stored);
+		StringBuilder problems = new StringBuilder();
+		for (String message : confirmed) {
+			Integer count = stored.get(message);
+			if (count == null) {
+				problems.append("Confirmed but not stored: " + message + "\n");
+			} else if (count > 1) {
+				problems.append("Stored " + count + " times: " + message
+						+ "\n");
+			}
+		}
+		return problems.toString();
+	}
+
+	/**
+	 * Read every message file below a directory and count how often each
+	 * message appears.
+	 */
+	private static void countMessages(File directory,
+			Map<String, Integer> counts) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				countMessages(file, counts);
+			} else {
+				String message = new String(Files.readAllBytes(file.toPath()),
+						StandardCharsets.UTF_8);
+				Integer count = counts.get(message);
+				counts.put(message, count == null ? 1 : count + 1);
+			}
+		}
+	}
+
+	/**
+	 * Compare this run with the baseline, or record it as the new baseline.
+	 * 
+	 * @return A description of each regression found, or an empty string.
+	 */
+	private static String compareWithBaseline(File baselineFile,
+			boolean record, double tolerance, double throughput,
+			double p99Micros) throws IOException {
+		Properties baseline = new Properties();
+		if (record || !baselineFile.exists()) {
+			baseline.setProperty(THROUGHPUT, Double.toString(throughput));
+			baseline.setProperty(P99_MICROS, Double.toString(p99Micros));
+			OutputStream out = new FileOutputStream(baselineFile);
+			try {
+				baseline.store(out, "TWIt loopback throughput baseline");
+			} finally {
+				out.close();
+			}
+			System.out.println("Baseline recorded in " + baselineFile);
+			return "";
+		}
+		InputStream in = new FileInputStream(baselineFile);
+		try {
+			baseline.load(in);
+		} finally {
+			in.close();
+		}
+		double baseThroughput = Double.parseDouble(baseline
+				.getProperty(THROUGHPUT));
+		double baseP99 = Double.parseDouble(baseline.getProperty(P99_MICROS));
+		System.out.printf("Baseline: %.1f messages/s, p99 %.1f us%n",
+				baseThroughput, baseP99);
+		StringBuilder problems = new StringBuilder();
+		if (throughput < baseThroughput * (1 - tolerance))
+			problems.append("Throughput regressed from " + baseThroughput
+					+ " to " + throughput + " messages/s\n");
+		if (p99Micros > baseP99 * (1 + tolerance))
+			problems.append("p99 latency regressed from " + baseP99 + " to "
+					+ p99Micros + " us\n");
+		return problems.toString();
+	}
+
+	/**
+	 * Delete a file, or a directory and everything in it.
+	 */
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = 8;
+		int messages = 500;
+		File baselineFile = new File("throughput-baseline.txt");
+		double tolerance = 0.25;
+		boolean record = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-clients")) {
+				clients = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-messages")) {
+				messages = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-baseline")) {
+				baselineFile = new File(args[++i]);
+			} else if (args[i].equals("-tolerance")) {
+				tolerance = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-record")) {
+				record = true;
+			} else {
+				System.out.println("Usage: ThroughputRegression [-clients n]"
+						+ " [-messages perClient] [-baseline file]"
+						+ " [-tolerance fraction] [-record]");
+				System.exit(2);
+			}
+		}
+
+		File directory = Files.createTempDirectory("twit-regression").toFile();
+		ThroughputRegression regression = new ThroughputRegression(clients,
+				messages);
+		PrintStream console = System.out;
+		String problems;
+		double seconds;
+		try {
+			// the server reports every connection and message on the console.
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int b) {
+				}
+			}));
+			Server server = new Server(0, directory);
+			try {
+				seconds = regression.sendAll(server.getPort());
+			} finally {
+				server.shutdown(5000);
+			}
+			System.setOut(console);
+			problems = regression.verify(directory);
+		} finally {
+			System.setOut(console);
+			delete(directory);
+		}
+
+		int confirmedCount = regression.confirmed.size();
+		double throughput = confirmedCount / seconds;
+		HistogramSnapshot h = regression.latency.snapshot();
+		double p99Micros = h.getValueAtQuantile(0.99) / 1000.0;
+		System.out.printf("%d clients: %d confirmed, %d failed in %.2f s: "
+				+ "%.1f messages/s, p50 %.1f us, p99 %.1f us%n", clients,
+				confirmedCount, regression.failed.get(), seconds, throughput,
+				h.getValueAtQuantile(0.5) / 1000.0, p99Micros);
+		if (regression.failed.get() > 0)
+			problems += regression.failed.get() + " message(s) not confirmed\n";
+		problems += compareWithBaseline(baselineFile, record, tolerance,
+				throughput, p99Micros);
+		if (problems.length() > 0) {
+			System.out.print("FAILED\n" + problems);
+			System.exit(1);
+		}
+		System.out.println("PASSED");
+	}
+}